@@ -69,15 +69,13 @@ public class RedReader extends Application {
 
 		final CacheManager cm = CacheManager.getInstance(this);
 
-		cm.pruneTemp();
-
 		new Thread() {
 			@Override
 			public void run() {
 
 				android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
 
-				cm.pruneCache(); // Hope for the best :)
+				cm.pruneCacheIfDue(); // Hope for the best :)
 
 				final RedditChangeDataManager cdm = RedditChangeDataManager.getInstance(RedReader.this);
 				cdm.prune(PrefsUtility.pref_cache_maxage(RedReader.this, PreferenceManager.getDefaultSharedPreferences(RedReader.this)));
@@ -1,5 +1,6 @@
 package org.quantumbadger.redreader.adapters;
 
+import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -26,6 +27,21 @@ public final class PostListingAdapter extends BaseAdapter {
 	private final ListView listViewParent;
 	private final PostListingFragment fragmentParent;
 
+	private static final int MSG_POST_ADDED = 0, MSG_CLEAR = 1;
+
+	// Thumbnails on or near the screen are downloaded before other thumbnails, and those far from it after
+	// everything else. Distances are in posts.
+	private static final int NEAR_DISTANCE = 5, FAR_DISTANCE = 20;
+	private static final int NEAR_PRIORITY_ADJUSTMENT = -50, FAR_PRIORITY_ADJUSTMENT = 1000;
+
+	public static final int DEFAULT_CANCEL_DISTANCE = 50;
+
+	// Thumbnails which haven't started downloading are cancelled once they are further away than this
+	private int cancelDistance = DEFAULT_CANCEL_DISTANCE;
+
+	// The range of posts last reported as visible, or -1 if unknown
+	private int firstVisiblePost = -1, lastVisiblePost = -1;
+
 	private final Handler postAddedHandler;
 	private boolean postUpdateQueued = false;
 
@@ -45,12 +61,33 @@ public final class PostListingAdapter extends BaseAdapter {
 			@Override
 			public void handleMessage(final Message msg) {
 
+				if(msg.what == MSG_CLEAR) {
+
+					// The posts are being replaced, so their thumbnails and precached images are no longer
+					// needed. Any which have already started downloading are left to finish.
+					final Context context = listViewParent.getContext();
+					for(final RedditPreparedPost post : posts) {
+						post.setThumbnailPriority(context, 0, true);
+					}
+
+					posts.clear();
+					postIds.clear();
+					firstVisiblePost = -1;
+					lastVisiblePost = -1;
+					updatePosts();
+					return;
+				}
+
 				final RedditPreparedPost post = (RedditPreparedPost)msg.obj;
 
 				if(!postIds.add(post.idAlone)) return;
 
 				posts.add(post);
 
+				if(firstVisiblePost >= 0) {
+					updateThumbnailPriority(posts.size() - 1);
+				}
+
 				queuePostUpdate();
 			}
 		};
@@ -76,8 +113,81 @@ public final class PostListingAdapter extends BaseAdapter {
 		}
 	}
 
+	public void setCancelDistance(final int cancelDistance) {
+		this.cancelDistance = cancelDistance;
+	}
+
+	/**
+	 * Called on the UI thread when the visible posts change, to update the priority of the thumbnail
+	 * downloads. The positions are indices into the posts, not including any header views.
+	 */
+	public void onVisibleRangeChanged(final int firstVisible, final int lastVisible) {
+
+		if(firstVisible == firstVisiblePost && lastVisible == lastVisiblePost) return;
+
+		final int oldFirstVisible = firstVisiblePost, oldLastVisible = lastVisiblePost;
+
+		firstVisiblePost = firstVisible;
+		lastVisiblePost = lastVisible;
+
+		if(oldFirstVisible < 0) {
+			updateThumbnailPriorities(0, posts.size());
+			return;
+		}
+
+		// A post only changes priority when it moves across one of these distances from the visible posts,
+		// so only the posts which the edges of the range have passed at each distance are updated
+		for(final int distance : new int[] {NEAR_DISTANCE, FAR_DISTANCE, cancelDistance}) {
+
+			updateThumbnailPriorities(
+					Math.min(oldFirstVisible, firstVisible) - distance,
+					Math.max(oldFirstVisible, firstVisible) - distance);
+
+			updateThumbnailPriorities(
+					Math.min(oldLastVisible, lastVisible) + distance + 1,
+					Math.max(oldLastVisible, lastVisible) + distance + 1);
+		}
+	}
+
+	// Updates the posts from start (inclusive) to end (exclusive), ignoring positions outside the list
+	private void updateThumbnailPriorities(final int start, final int end) {
+		for(int i = Math.max(0, start); i < Math.min(end, posts.size()); i++) {
+			updateThumbnailPriority(i);
+		}
+	}
+
+	private void updateThumbnailPriority(final int position) {
+
+		final int distance;
+
+		if(position < firstVisiblePost) {
+			distance = firstVisiblePost - position;
+		} else if(position > lastVisiblePost) {
+			distance = position - lastVisiblePost;
+		} else {
+			distance = 0;
+		}
+
+		final int adjustment;
+
+		if(distance <= NEAR_DISTANCE) {
+			adjustment = NEAR_PRIORITY_ADJUSTMENT;
+		} else if(distance > FAR_DISTANCE) {
+			adjustment = FAR_PRIORITY_ADJUSTMENT;
+		} else {
+			adjustment = 0;
+		}
+
+		posts.get(position).setThumbnailPriority(listViewParent.getContext(), adjustment, distance > cancelDistance);
+	}
+
 	public void onPostDownloaded(final RedditPreparedPost post) {
-		postAddedHandler.sendMessage(General.handlerMessage(0, post));
+		postAddedHandler.sendMessage(General.handlerMessage(MSG_POST_ADDED, post));
+	}
+
+	// Removes all posts, including any which have been downloaded but not yet added
+	public void clearPosts() {
+		postAddedHandler.sendMessage(General.handlerMessage(MSG_CLEAR, null));
 	}
 
 	public int getCount() {
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.cache;
+
+import android.os.SystemClock;
+import org.quantumbadger.redreader.common.Constants;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Slows down background downloads (thumbnails and precached images) while a foreground download is in
+ * progress, so that they don't compete with it for a slow connection.
+ *
+ * The throughput of the connection is estimated from the bytes read by all downloads. While any
+ * foreground download is active, background downloads share a fixed fraction of the estimate between
+ * them. Otherwise they are not limited at all.
+ */
+final class BandwidthScheduler {
+
+	private static final double BACKGROUND_SHARE = 0.25;
+	private static final double MIN_BACKGROUND_BYTES_PER_SECOND = 16 * 1024;
+
+	// Throughput is measured over windows of this length. The estimate is the recent peak, decaying slowly,
+	// as the throttling itself lowers the measured throughput.
+	private static final long WINDOW_MS = 1000;
+	private static final double PEAK_DECAY = 0.8;
+
+	private int foregroundActive = 0;
+
+	private long windowStart = SystemClock.elapsedRealtime();
+	private long windowBytes = 0;
+	private double throughputEstimate = 0;
+
+	// Bytes which background downloads may read before waiting. Negative if they have read ahead.
+	private double backgroundAllowance = 0;
+	private long lastRefill = SystemClock.elapsedRealtime();
+
+	static boolean isBackground(final int priority) {
+		return priority >= Constants.Priority.THUMBNAIL;
+	}
+
+	synchronized void onForegroundStarted() {
+		foregroundActive++;
+	}
+
+	synchronized void onForegroundFinished() {
+
+		foregroundActive--;
+
+		if(foregroundActive == 0) {
+			// Lift the throttle for any background downloads which are waiting
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Records bytes read by a download. If the download is in the background and has read more than its
+	 * share, waits until it's allowed to continue.
+	 */
+	synchronized void onBytesRead(final int bytes, final boolean background) throws IOException {
+
+		final long now = SystemClock.elapsedRealtime();
+
+		windowBytes += bytes;
+
+		if(now - windowStart >= WINDOW_MS) {
+			final double throughput = windowBytes * 1000.0 / (now - windowStart);
+			throughputEstimate = Math.max(throughput, throughputEstimate * PEAK_DECAY);
+			windowStart = now;
+			windowBytes = 0;
+		}
+
+		if(!background) return;
+
+		refill(now);
+		backgroundAllowance -= bytes;
+
+		while(foregroundActive > 0 && backgroundAllowance < 0) {
+
+			final long waitMs = Math.max(1, (long)Math.ceil(-backgroundAllowance * 1000 / getBackgroundRate()));
+
+			try {
+				wait(waitMs);
+			} catch(InterruptedException e) {
+				throw new IOException("Interrupted while throttled");
+			}
+
+			refill(SystemClock.elapsedRealtime());
+		}
+	}
+
+	// Must be called with the lock held
+	private void refill(final long now) {
+
+		if(foregroundActive == 0) {
+			backgroundAllowance = 0;
+
+		} else {
+			// Allow at most a second's worth to build up
+			final double rate = getBackgroundRate();
+			backgroundAllowance = Math.min(rate, backgroundAllowance + (now - lastRefill) * rate / 1000);
+		}
+
+		lastRefill = now;
+	}
+
+	// Must be called with the lock held
+	private double getBackgroundRate() {
+		return Math.max(MIN_BACKGROUND_BYTES_PER_SECOND, throughputEstimate * BACKGROUND_SHARE);
+	}
+
+	/**
+	 * Wraps the response stream of the download, so that its reads are recorded and throttled. Whether the
+	 * download is in the background is checked on each read, as its priority may change.
+	 */
+	InputStream wrap(final InputStream is, final CacheDownload download) {
+
+		return new FilterInputStream(is) {
+
+			@Override
+			public int read() throws IOException {
+
+				final int result = super.read();
+
+				if(result >= 0) {
+					download.onBytesReceived(1);
+					onBytesRead(1, isBackground(download.getPrimaryPriority()));
+				}
+
+				return result;
+			}
+
+			@Override
+			public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+
+				final int result = super.read(buffer, offset, count);
+
+				if(result > 0) {
+					download.onBytesReceived(result);
+					onBytesRead(result, isBackground(download.getPrimaryPriority()));
+				}
+
+				return result;
+			}
+		};
+	}
+}
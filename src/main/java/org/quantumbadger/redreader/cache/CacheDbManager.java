@@ -22,15 +22,20 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.util.Log;
+import android.database.sqlite.SQLiteStatement;
 import org.quantumbadger.redreader.activities.BugReportActivity;
 import org.quantumbadger.redreader.common.RRTime;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 final class CacheDbManager extends SQLiteOpenHelper {
@@ -44,14 +49,38 @@ final class CacheDbManager extends SQLiteOpenHelper {
 			FIELD_USER = "user",
 			FIELD_STATUS = "status",
 			FIELD_TYPE = "type",
-			FIELD_MIMETYPE = "mimetype";
+			FIELD_MIMETYPE = "mimetype",
+			FIELD_SIZE = "size",
+			FIELD_LAST_ACCESS = "last_access",
+			FIELD_ETAG = "etag",
+			FIELD_LAST_MODIFIED = "last_modified",
+			FIELD_CODEC = "codec",
+			FIELD_LOCATION = "location",
+			FIELD_SEGMENT = "segment",
+			FIELD_SEGMENT_OFFSET = "segment_offset",
+			PARTIAL_TABLE = "partial",
+			FIELD_KEY = "key",
+			JOURNAL_TABLE = "journal",
+			FIELD_TMP_PATH = "tmp_path",
+			FIELD_DST_DIR = "dst_dir";
+
+	// The columns read by the CacheEntry constructor, in order
+	private static final String[] ENTRY_FIELDS = {FIELD_ID, FIELD_URL, FIELD_USER, FIELD_SESSION, FIELD_TIMESTAMP,
+			FIELD_STATUS, FIELD_TYPE, FIELD_MIMETYPE, FIELD_ETAG, FIELD_LAST_MODIFIED, FIELD_CODEC, FIELD_LOCATION,
+			FIELD_SIZE, FIELD_SEGMENT, FIELD_SEGMENT_OFFSET};
 
 	private static final int STATUS_MOVING = 1, STATUS_DONE = 2;
 
-	private static final int CACHE_DB_VERSION = 1;
+	private static final int CACHE_DB_VERSION = 8;
 
 	private final Context context;
 
+	// Replaced as a whole, with the lock held, whenever it's rebuilt. Lookups read it once, without the lock.
+	private volatile CacheIndex index = new CacheIndex();
+
+	// Entries which have been inserted, but which have not yet been marked as done
+	private final HashMap<Long, CacheEntry> movingEntries = new HashMap<Long, CacheEntry>();
+
 	CacheDbManager(final Context context) {
 		super(context, CACHE_DB_FILENAME, null, CACHE_DB_VERSION);
 		this.context = context;
@@ -70,6 +99,14 @@ final class CacheDbManager extends SQLiteOpenHelper {
 						"%s INTEGER," +
 						"%s INTEGER," +
 						"%s TEXT," +
+						"%s INTEGER," +
+						"%s INTEGER," +
+						"%s TEXT," +
+						"%s TEXT," +
+						"%s INTEGER," +
+						"%s INTEGER," +
+						"%s INTEGER," +
+						"%s INTEGER," +
 						"UNIQUE (%s, %s, %s) ON CONFLICT REPLACE)",
 				TABLE,
 				FIELD_ID,
@@ -80,20 +117,98 @@ final class CacheDbManager extends SQLiteOpenHelper {
 				FIELD_STATUS,
 				FIELD_TYPE,
 				FIELD_MIMETYPE,
+				FIELD_SIZE,
+				FIELD_LAST_ACCESS,
+				FIELD_ETAG,
+				FIELD_LAST_MODIFIED,
+				FIELD_CODEC,
+				FIELD_LOCATION,
+				FIELD_SEGMENT,
+				FIELD_SEGMENT_OFFSET,
 				FIELD_USER, FIELD_URL, FIELD_SESSION);
 
 		db.execSQL(queryString);
+
+		createPartialTable(db);
+		createJournalTable(db);
+	}
+
+	// Interrupted downloads which can be resumed, keyed by CacheManager.getPartialKey()
+	private static void createPartialTable(final SQLiteDatabase db) {
+
+		db.execSQL(String.format(
+				"CREATE TABLE %s (" +
+						"%s TEXT PRIMARY KEY ON CONFLICT REPLACE," +
+						"%s TEXT," +
+						"%s TEXT," +
+						"%s INTEGER)",
+				PARTIAL_TABLE,
+				FIELD_KEY,
+				FIELD_ETAG,
+				FIELD_LAST_MODIFIED,
+				FIELD_TIMESTAMP));
+	}
+
+	// Entries whose file is being moved into place. Written in the same transaction as the entry, and deleted
+	// in the same transaction as the entry is marked as done, so that an interrupted move can be finished
+	// or undone after a crash.
+	private static void createJournalTable(final SQLiteDatabase db) {
+
+		db.execSQL(String.format(
+				"CREATE TABLE %s (" +
+						"%s INTEGER PRIMARY KEY," +
+						"%s TEXT NOT NULL," +
+						"%s TEXT NOT NULL," +
+						"%s INTEGER)",
+				JOURNAL_TABLE,
+				FIELD_ID,
+				FIELD_TMP_PATH,
+				FIELD_DST_DIR,
+				FIELD_TIMESTAMP));
 	}
 
 	@Override
 	public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
-		throw new RuntimeException("Attempt to upgrade database in first version of the app!");
+
+		if(oldVersion < 2) {
+			// Sizes of existing entries are filled in by the next prune
+			db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER", TABLE, FIELD_SIZE));
+			db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER", TABLE, FIELD_LAST_ACCESS));
+			db.execSQL(String.format("UPDATE %s SET %s=%s", TABLE, FIELD_LAST_ACCESS, FIELD_TIMESTAMP));
+		}
+
+		if(oldVersion < 3) {
+			db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s TEXT", TABLE, FIELD_ETAG));
+			db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s TEXT", TABLE, FIELD_LAST_MODIFIED));
+		}
+
+		if(oldVersion < 4) {
+			createPartialTable(db);
+		}
+
+		if(oldVersion < 5) {
+			// Existing entries are left as they are, and read with CODEC_NONE
+			db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER", TABLE, FIELD_CODEC));
+		}
+
+		if(oldVersion < 6) {
+			// Entries already left moving by older versions are removed by the pruner
+			createJournalTable(db);
+		}
+
+		if(oldVersion < 7) {
+			// Existing entries have LOCATION_UNKNOWN, and are looked for in both directories
+			db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER", TABLE, FIELD_LOCATION));
+		}
+
+		if(oldVersion < 8) {
+			db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER", TABLE, FIELD_SEGMENT));
+			db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER", TABLE, FIELD_SEGMENT_OFFSET));
+		}
 	}
 
 	synchronized LinkedList<CacheEntry> select(final URI url, final String user, final UUID session) {
 
-		final String[] fields = {FIELD_ID, FIELD_URL, FIELD_USER, FIELD_SESSION, FIELD_TIMESTAMP, FIELD_STATUS, FIELD_TYPE, FIELD_MIMETYPE};
-
 		final SQLiteDatabase db = this.getReadableDatabase();
 
 		final String queryString;
@@ -108,7 +223,7 @@ final class CacheDbManager extends SQLiteOpenHelper {
 			queryParams = new String[] {url.toString(), user, session.toString()};
 		}
 
-		final Cursor cursor = db.query(TABLE, fields, queryString, queryParams, null, null, FIELD_TIMESTAMP + " DESC");
+		final Cursor cursor = db.query(TABLE, ENTRY_FIELDS, queryString, queryParams, null, null, FIELD_TIMESTAMP + " DESC");
 
 		final LinkedList<CacheEntry> result = new LinkedList<CacheEntry>();
 
@@ -127,13 +242,143 @@ final class CacheDbManager extends SQLiteOpenHelper {
 		return result;
 	}
 
-	synchronized long newEntry(final CacheRequest request, final UUID session, final String mimetype) throws IOException {
+	/**
+	 * Returns the most recent completed entry for the specified URL and user, restricted to the specified
+	 * session if it is not null. This is answered from memory, and doesn't touch the database once the
+	 * index is loaded.
+	 */
+	CacheEntry selectMostRecent(final URI url, final String user, final UUID session) {
+		return getLoadedIndex().getMostRecent(url.toString(), user, session);
+	}
+
+	/**
+	 * Returns the completed entry with the specified ID, or null if it has been removed. Like
+	 * selectMostRecent(), this is answered from memory.
+	 */
+	CacheEntry selectById(final long id) {
+		return getLoadedIndex().getById(id);
+	}
+
+	private CacheIndex getLoadedIndex() {
+
+		final CacheIndex result = index;
+
+		if(result.isLoaded()) {
+			return result;
+		}
+
+		loadIndex();
+		return index;
+	}
+
+	synchronized void loadIndex() {
+		if(!index.isLoaded()) {
+			index = buildIndex();
+		}
+	}
+
+	// Must be called with the lock held
+	private CacheIndex buildIndex() {
+
+		final CacheIndex result = new CacheIndex();
+
+		final SQLiteDatabase db = this.getReadableDatabase();
+
+		final Cursor cursor = db.query(TABLE, ENTRY_FIELDS, String.format("%s=%d", FIELD_STATUS, STATUS_DONE), null, null, null, null);
+
+		while(cursor.moveToNext()) {
+			result.put(new CacheEntry(cursor));
+		}
+
+		cursor.close();
+
+		result.setLoaded();
+
+		return result;
+	}
+
+	/**
+	 * Inserts an entry which is not yet visible to select(), along with a journal record saying that its
+	 * file is about to be moved from tmpFile into dstDir. setEntryDone() must be called once it has been.
+	 */
+	synchronized long newEntry(final CacheRequest request, final UUID session, final String mimetype, final long size,
+							   final String etag, final String lastModified, final int codec,
+							   final File tmpFile, final File dstDir, final int location) throws IOException {
+
+		final SQLiteDatabase db = this.getWritableDatabase();
+
+		final ContentValues row = createEntryRow(request, session, mimetype, size, etag, lastModified, codec);
+		row.put(FIELD_STATUS, STATUS_MOVING);
+		row.put(FIELD_LOCATION, location);
+
+		final long result;
+
+		db.beginTransaction();
+
+		try {
+			result = db.insert(TABLE, null, row);
+
+			if(result < 0) throw new IOException("DB insert failed");
+
+			final ContentValues journalRow = new ContentValues();
+			journalRow.put(FIELD_ID, result);
+			journalRow.put(FIELD_TMP_PATH, tmpFile.getAbsolutePath());
+			journalRow.put(FIELD_DST_DIR, dstDir.getAbsolutePath());
+			journalRow.put(FIELD_TIMESTAMP, row.getAsLong(FIELD_TIMESTAMP));
+
+			if(db.insert(JOURNAL_TABLE, null, journalRow) < 0) throw new IOException("DB journal insert failed");
+
+			db.setTransactionSuccessful();
+
+		} finally {
+			db.endTransaction();
+		}
+
+		movingEntries.put(result, new CacheEntry(result, request.url, request.user.username, session,
+				row.getAsLong(FIELD_TIMESTAMP), STATUS_DONE, request.fileType, mimetype, etag, lastModified, codec,
+				location, size, 0, 0));
+
+		return result;
+	}
+
+	/**
+	 * Inserts a completed entry whose data has already been appended to a segment. No journal record is
+	 * needed, as the data is in place before the entry exists.
+	 */
+	synchronized long newSegmentEntry(final CacheRequest request, final UUID session, final String mimetype,
+									  final long size, final String etag, final String lastModified,
+									  final int codec, final long segment, final long segmentOffset) throws IOException {
+
+		final SQLiteDatabase db = this.getWritableDatabase();
+
+		final ContentValues row = createEntryRow(request, session, mimetype, size, etag, lastModified, codec);
+		row.put(FIELD_STATUS, STATUS_DONE);
+		row.put(FIELD_LOCATION, CacheEntry.LOCATION_SEGMENT);
+		row.put(FIELD_SEGMENT, segment);
+		row.put(FIELD_SEGMENT_OFFSET, segmentOffset);
+
+		final long result = db.insert(TABLE, null, row);
+
+		if(result < 0) throw new IOException("DB insert failed");
+
+		if(index.isLoaded()) {
+			index.put(new CacheEntry(result, request.url, request.user.username, session,
+					row.getAsLong(FIELD_TIMESTAMP), STATUS_DONE, request.fileType, mimetype, etag, lastModified, codec,
+					CacheEntry.LOCATION_SEGMENT, size, segment, segmentOffset));
+		}
+
+		return result;
+	}
+
+	private static ContentValues createEntryRow(final CacheRequest request, final UUID session, final String mimetype,
+												final long size, final String etag, final String lastModified,
+												final int codec) {
 
 		if(session == null) {
 			throw new RuntimeException("No session to write");
 		}
 
-		final SQLiteDatabase db = this.getWritableDatabase();
+		final long now = RRTime.utcCurrentTimeMillis();
 
 		final ContentValues row = new ContentValues();
 
@@ -141,15 +386,15 @@ final class CacheDbManager extends SQLiteOpenHelper {
 		row.put(FIELD_USER, request.user.username);
 		row.put(FIELD_SESSION, session.toString());
 		row.put(FIELD_TYPE, request.fileType);
-		row.put(FIELD_STATUS, STATUS_MOVING);
-		row.put(FIELD_TIMESTAMP, RRTime.utcCurrentTimeMillis());
+		row.put(FIELD_TIMESTAMP, now);
 		row.put(FIELD_MIMETYPE, mimetype);
+		row.put(FIELD_SIZE, size);
+		row.put(FIELD_LAST_ACCESS, now);
+		row.put(FIELD_ETAG, etag);
+		row.put(FIELD_LAST_MODIFIED, lastModified);
+		row.put(FIELD_CODEC, codec);
 
-		final long result = db.insert(TABLE, null, row);
-
-		if(result < 0) throw new IOException("DB insert failed");
-
-		return result;
+		return row;
 	}
 
 	synchronized void setEntryDone(final long id) {
@@ -158,88 +403,612 @@ final class CacheDbManager extends SQLiteOpenHelper {
 		final ContentValues row = new ContentValues();
 		row.put(FIELD_STATUS, STATUS_DONE);
 
-		db.update(TABLE, row, FIELD_ID + "=?", new String[] {String.valueOf(id)});
+		final String[] idParam = {String.valueOf(id)};
+
+		db.beginTransaction();
+
+		try {
+			db.update(TABLE, row, FIELD_ID + "=?", idParam);
+			db.delete(JOURNAL_TABLE, FIELD_ID + "=?", idParam);
+			db.setTransactionSuccessful();
+
+		} finally {
+			db.endTransaction();
+		}
+
+		final CacheEntry entry = movingEntries.remove(id);
+
+		if(entry != null && index.isLoaded()) {
+			index.put(entry);
+		}
+	}
+
+	/**
+	 * Marks the entry as current, after the server has confirmed that it hasn't changed.
+	 *
+	 * @return The entry, with its new timestamp
+	 */
+	synchronized CacheEntry refreshTimestamp(final CacheEntry entry) {
+
+		final SQLiteDatabase db = this.getWritableDatabase();
+
+		final long now = RRTime.utcCurrentTimeMillis();
+
+		final ContentValues row = new ContentValues();
+		row.put(FIELD_TIMESTAMP, now);
+		row.put(FIELD_LAST_ACCESS, now);
+
+		db.update(TABLE, row, FIELD_ID + "=?", new String[] {String.valueOf(entry.id)});
+
+		final CacheEntry result = entry.withTimestamp(now);
+
+		if(index.isLoaded() && index.getById(entry.id) != null) {
+			index.put(result);
+		}
+
+		return result;
 	}
 
 	synchronized int delete(final long id) {
 		final SQLiteDatabase db = this.getWritableDatabase();
+		index.remove(id);
+		movingEntries.remove(id);
+		db.delete(JOURNAL_TABLE, FIELD_ID + "=?", new String[] {String.valueOf(id)});
 		return db.delete(TABLE, FIELD_ID + "=?", new String[] {String.valueOf(id)});
 	}
 
+	static final class JournalEntry {
+
+		final long id, size;
+		final String tmpPath, dstDir;
+
+		private JournalEntry(final long id, final long size, final String tmpPath, final String dstDir) {
+			this.id = id;
+			this.size = size;
+			this.tmpPath = tmpPath;
+			this.dstDir = dstDir;
+		}
+	}
+
+	/**
+	 * Returns up to limit entries whose file was being moved into place before the specified time, oldest
+	 * first. Entries whose row has gone are removed from the journal.
+	 */
+	synchronized ArrayList<JournalEntry> getJournal(final long beforeTimestamp, final int limit) {
+
+		final SQLiteDatabase db = this.getWritableDatabase();
+
+		db.delete(JOURNAL_TABLE, String.format("%s NOT IN (SELECT %s FROM %s)", FIELD_ID, FIELD_ID, TABLE), null);
+
+		final Cursor cursor = db.rawQuery(String.format(
+				"SELECT j.%s, w.%s, j.%s, j.%s FROM %s j, %s w WHERE j.%s=w.%s AND j.%s<? ORDER BY j.%s ASC LIMIT %d",
+				FIELD_ID, FIELD_SIZE, FIELD_TMP_PATH, FIELD_DST_DIR, JOURNAL_TABLE, TABLE,
+				FIELD_ID, FIELD_ID, FIELD_TIMESTAMP, FIELD_ID, limit),
+				new String[] {String.valueOf(beforeTimestamp)});
+
+		final ArrayList<JournalEntry> result = new ArrayList<JournalEntry>();
+
+		while(cursor.moveToNext()) {
+			result.add(new JournalEntry(cursor.getLong(0), cursor.getLong(1), cursor.getString(2), cursor.getString(3)));
+		}
+
+		cursor.close();
+
+		return result;
+	}
+
+	// The temporary files of all entries in the journal
+	synchronized HashSet<String> getJournalTmpPaths() {
+
+		final SQLiteDatabase db = this.getReadableDatabase();
+
+		final Cursor cursor = db.query(JOURNAL_TABLE, new String[] {FIELD_TMP_PATH}, null, null, null, null, null);
+
+		final HashSet<String> result = new HashSet<String>();
+
+		while(cursor.moveToNext()) {
+			result.add(cursor.getString(0));
+		}
+
+		cursor.close();
+
+		return result;
+	}
+
 	protected synchronized int deleteAllBeforeTimestamp(final long timestamp) {
 		final SQLiteDatabase db = this.getWritableDatabase();
-		return db.delete(TABLE, FIELD_TIMESTAMP + "<?", new String[] {String.valueOf(timestamp)});
+		final int result = db.delete(TABLE, FIELD_TIMESTAMP + "<?", new String[] {String.valueOf(timestamp)});
+		reloadIndex();
+		return result;
+	}
+
+	// Must be called with the lock held
+	private void forgetEntries(final Collection<Long> ids) {
+
+		index.remove(ids);
+
+		for(final long id : ids) {
+			movingEntries.remove(id);
+		}
+	}
+
+	// Must be called with the lock held. The new index is built before it replaces the old one, so lookups
+	// carry on using the old one in the meantime, rather than finding it empty.
+	private void reloadIndex() {
+		if(index.isLoaded()) {
+			index = buildIndex();
+		}
+	}
+
+	/**
+	 * The rows read by one call to selectForPruning(). The arrays are reused for each batch, rather than
+	 * allocating objects for every row.
+	 */
+	static final class PruneBatch {
+
+		final long[] ids, timestamps;
+		final int[] types;
+		final boolean[] moving;
+
+		// Entries stored in a segment, which have no file of their own
+		final boolean[] inSegment;
+
+		int count = 0;
+
+		PruneBatch(final int size) {
+			ids = new long[size];
+			timestamps = new long[size];
+			types = new int[size];
+			moving = new boolean[size];
+			inSegment = new boolean[size];
+		}
+	}
+
+	synchronized long getMaxId() {
+
+		final SQLiteDatabase db = this.getReadableDatabase();
+
+		final Cursor cursor = db.rawQuery(String.format("SELECT MAX(%s) FROM %s", FIELD_ID, TABLE), null);
+
+		final long result = cursor.moveToNext() ? cursor.getLong(0) : 0;
+
+		cursor.close();
+
+		return result;
+	}
+
+	/**
+	 * Reads the next batch of entries with IDs greater than afterId and no greater than maxId, in ID order.
+	 * The batch is full unless there are no more entries.
+	 */
+	synchronized void selectForPruning(final long afterId, final long maxId, final PruneBatch batch) {
+
+		final SQLiteDatabase db = this.getReadableDatabase();
+
+		final Cursor cursor = db.query(TABLE, new String[] {FIELD_ID, FIELD_TIMESTAMP, FIELD_TYPE, FIELD_STATUS, FIELD_LOCATION},
+				FIELD_ID + ">? AND " + FIELD_ID + "<=?", new String[] {String.valueOf(afterId), String.valueOf(maxId)},
+				null, null, FIELD_ID + " ASC", String.valueOf(batch.ids.length));
+
+		batch.count = 0;
+
+		while(cursor.moveToNext()) {
+			batch.ids[batch.count] = cursor.getLong(0);
+			batch.timestamps[batch.count] = cursor.getLong(1);
+			batch.types[batch.count] = cursor.getInt(2);
+			batch.moving[batch.count] = cursor.getInt(3) == STATUS_MOVING;
+			batch.inSegment[batch.count] = cursor.getInt(4) == CacheEntry.LOCATION_SEGMENT;
+			batch.count++;
+		}
+
+		cursor.close();
+	}
+
+	// Deletes the first count IDs in the array, in a single transaction
+	synchronized void deleteEntries(final long[] ids, final int count) {
+
+		final SQLiteDatabase db = this.getWritableDatabase();
+		final SQLiteStatement statement = db.compileStatement(String.format("DELETE FROM %s WHERE %s=?", TABLE, FIELD_ID));
+
+		db.beginTransaction();
+
+		try {
+			for(int i = 0; i < count; i++) {
+				statement.bindLong(1, ids[i]);
+				statement.execute();
+			}
+
+			db.setTransactionSuccessful();
+
+		} finally {
+			db.endTransaction();
+			statement.close();
+		}
+
+		for(int i = 0; i < count; i++) {
+			index.remove(ids[i]);
+			movingEntries.remove(ids[i]);
+		}
 	}
 
-	public synchronized LinkedList<Long> getFilesToPrune(HashSet<Long> currentFiles, final HashMap<Integer, Long> maxAge, final long defaultMaxAge) {
+	synchronized void updateLastAccess(final HashMap<Long, Long> accessTimes) {
 
 		final SQLiteDatabase db = this.getWritableDatabase();
 
-		final long currentTime = RRTime.utcCurrentTimeMillis();
+		db.beginTransaction();
+
+		try {
+			final ContentValues row = new ContentValues();
+
+			for(final Map.Entry<Long, Long> access : accessTimes.entrySet()) {
+				row.put(FIELD_LAST_ACCESS, access.getValue());
+				db.update(TABLE, row, FIELD_ID + "=?", new String[] {String.valueOf(access.getKey())});
+			}
+
+			db.setTransactionSuccessful();
+
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	// Entries written by older versions, which didn't record the size or location of the file
+	synchronized LinkedList<Long> getEntriesWithUnknownFileInfo() {
 
-		final Cursor cursor = db.query(TABLE, new String[] {FIELD_ID, FIELD_TIMESTAMP, FIELD_TYPE}, null, null, null, null, null, null);
+		final SQLiteDatabase db = this.getReadableDatabase();
 
-		final HashSet<Long> currentEntries = new HashSet<Long>();
-		final LinkedList<Long> entriesToDelete = new LinkedList<Long>(),
-			filesToDelete = new LinkedList<Long>();
+		final Cursor cursor = db.query(TABLE, new String[] {FIELD_ID},
+				String.format("%s IS NULL OR %s IS NULL OR %s=%d", FIELD_SIZE, FIELD_LOCATION, FIELD_LOCATION, CacheEntry.LOCATION_UNKNOWN),
+				null, null, null, null);
+
+		final LinkedList<Long> result = new LinkedList<Long>();
 
 		while(cursor.moveToNext()) {
+			result.add(cursor.getLong(0));
+		}
 
-			final long id = cursor.getLong(0);
-			final long timestamp = cursor.getLong(1);
-			final int type = cursor.getInt(2);
+		cursor.close();
+
+		return result;
+	}
+
+	// Sets the location and size of the first count entries in the arrays
+	synchronized void setFileInfo(final long[] ids, final int[] locations, final long[] sizes, final int count) {
+
+		final SQLiteDatabase db = this.getWritableDatabase();
+
+		db.beginTransaction();
 
-			final long pruneIfBeforeMs;
+		try {
+			final ContentValues row = new ContentValues();
 
-			if(maxAge.containsKey(type)) {
-				pruneIfBeforeMs = currentTime - maxAge.get(type);
-			} else {
-				Log.e("RR DEBUG cache", "Using default age! Filetype " + type);
-				pruneIfBeforeMs = currentTime - defaultMaxAge;
+			for(int i = 0; i < count; i++) {
+				row.put(FIELD_LOCATION, locations[i]);
+				row.put(FIELD_SIZE, sizes[i]);
+				db.update(TABLE, row, FIELD_ID + "=?", new String[] {String.valueOf(ids[i])});
 			}
 
-			if(!currentFiles.contains(id)) {
-				entriesToDelete.add(id);
-				//Log.i("RR DEBUG cache", "DELETED ENTRY " + id + "(type " + type + ") since it had no matching file");
+			db.setTransactionSuccessful();
 
-			} else if(timestamp < pruneIfBeforeMs) {
-				entriesToDelete.add(id);
-				filesToDelete.add(id);
-				//Log.i("RR DEBUG cache", "DELETED ENTRY " + id + "(type " + type + ") since was too old");
+		} finally {
+			db.endTransaction();
+		}
+
+		if(index.isLoaded()) {
+			for(int i = 0; i < count; i++) {
+
+				final CacheEntry entry = index.getById(ids[i]);
 
-			} else {
-				currentEntries.add(id);
+				if(entry != null) {
+					index.put(entry.withFileInfo(locations[i], sizes[i]));
+				}
 			}
 		}
+	}
+
+	/**
+	 * @return The total size of the entries stored in each segment. Segments with no entries are absent.
+	 */
+	synchronized HashMap<Long, Long> getSegmentUsage() {
+
+		final SQLiteDatabase db = this.getReadableDatabase();
+
+		final Cursor cursor = db.rawQuery(String.format("SELECT %s, SUM(%s) FROM %s WHERE %s=%d GROUP BY %s",
+				FIELD_SEGMENT, FIELD_SIZE, TABLE, FIELD_LOCATION, CacheEntry.LOCATION_SEGMENT, FIELD_SEGMENT), null);
+
+		final HashMap<Long, Long> result = new HashMap<Long, Long>();
+
+		while(cursor.moveToNext()) {
+			result.put(cursor.getLong(0), cursor.getLong(1));
+		}
+
+		cursor.close();
+
+		return result;
+	}
+
+	/**
+	 * The entries stored in one segment, in the order they were written.
+	 */
+	static final class SegmentContents {
+
+		final long[] ids, offsets, sizes;
+		final int count;
+
+		private SegmentContents(final int count) {
+			this.ids = new long[count];
+			this.offsets = new long[count];
+			this.sizes = new long[count];
+			this.count = count;
+		}
+	}
+
+	synchronized SegmentContents getSegmentContents(final long segment) {
 
-		for(final long id : currentFiles) {
-			if(!currentEntries.contains(id)) {
-				filesToDelete.add(id);
-				//Log.i("RR DEBUG cache", "DELETED FILE " + id + " since it had no matching entry");
+		final SQLiteDatabase db = this.getReadableDatabase();
+
+		final Cursor cursor = db.query(TABLE, new String[] {FIELD_ID, FIELD_SEGMENT_OFFSET, FIELD_SIZE},
+				String.format("%s=%d AND %s=?", FIELD_LOCATION, CacheEntry.LOCATION_SEGMENT, FIELD_SEGMENT),
+				new String[] {String.valueOf(segment)}, null, null, FIELD_SEGMENT_OFFSET + " ASC");
+
+		final SegmentContents result = new SegmentContents(cursor.getCount());
+
+		int i = 0;
+
+		while(cursor.moveToNext() && i < result.count) {
+			result.ids[i] = cursor.getLong(0);
+			result.offsets[i] = cursor.getLong(1);
+			result.sizes[i] = cursor.getLong(2);
+			i++;
+		}
+
+		cursor.close();
+
+		return result;
+	}
+
+	/**
+	 * Points the first count entries at their new place in a segment, in a single transaction. Entries
+	 * which have been removed in the meantime are ignored.
+	 */
+	synchronized void moveToSegment(final long[] ids, final long segment, final long[] offsets, final int count) {
+
+		final SQLiteDatabase db = this.getWritableDatabase();
+
+		db.beginTransaction();
+
+		try {
+			final ContentValues row = new ContentValues();
+
+			for(int i = 0; i < count; i++) {
+				row.put(FIELD_SEGMENT, segment);
+				row.put(FIELD_SEGMENT_OFFSET, offsets[i]);
+				db.update(TABLE, row, FIELD_ID + "=?", new String[] {String.valueOf(ids[i])});
 			}
+
+			db.setTransactionSuccessful();
+
+		} finally {
+			db.endTransaction();
 		}
 
-		if(!entriesToDelete.isEmpty()) {
+		if(index.isLoaded()) {
+			for(int i = 0; i < count; i++) {
 
-			final StringBuilder query = new StringBuilder(String.format("DELETE FROM %s WHERE %s IN (", TABLE, FIELD_ID));
+				final CacheEntry entry = index.getById(ids[i]);
 
-			query.append(entriesToDelete.removeFirst());
+				if(entry != null) {
+					index.put(entry.withSegment(segment, offsets[i]));
+				}
+			}
+		}
+	}
 
-			for(final long id : entriesToDelete) {
-				query.append(",").append(id);
-				if(query.length() > 512 * 1024) break;
+	static final class Eviction {
+
+		// The entries which were removed, so that their files can be deleted
+		final LinkedList<Long> ids;
+
+		// How much more can be written before the total or one of the budgets is exceeded again
+		final long headroomBytes;
+
+		private Eviction(final LinkedList<Long> ids, final long headroomBytes) {
+			this.ids = ids;
+			this.headroomBytes = headroomBytes;
+		}
+	}
+
+	/**
+	 * Removes the least recently read entries until the total size of the cache is within maxTotalBytes,
+	 * and the data of the types covered by each budget is within that budget. Entries of a type which no
+	 * budget covers are only removed to satisfy the total.
+	 */
+	synchronized Eviction getFilesToEvict(final long maxTotalBytes, final List<CacheSizeBudget> budgets) {
+
+		final SQLiteDatabase db = this.getWritableDatabase();
+
+		// The index in budgets of the budget covering each type
+		final HashMap<Integer, Integer> budgetOfType = new HashMap<Integer, Integer>();
+
+		final long[] bytesPerBudget = new long[budgets.size()];
+		long totalBytes = 0;
+
+		final Cursor sumCursor = db.rawQuery(String.format("SELECT %s, SUM(%s) FROM %s GROUP BY %s",
+				FIELD_TYPE, FIELD_SIZE, TABLE, FIELD_TYPE), null);
+
+		while(sumCursor.moveToNext()) {
+
+			final int type = sumCursor.getInt(0);
+			final long bytes = sumCursor.getLong(1);
+
+			for(int i = 0; i < budgets.size(); i++) {
+				if(budgets.get(i).covers(type)) {
+					budgetOfType.put(type, i);
+					bytesPerBudget[i] += bytes;
+					break;
+				}
+			}
+
+			totalBytes += bytes;
+		}
+
+		sumCursor.close();
+
+		final LinkedList<Long> entriesToEvict = new LinkedList<Long>();
+
+		if(totalBytes <= maxTotalBytes && !isAnyBudgetExceeded(bytesPerBudget, budgets)) {
+			return new Eviction(entriesToEvict, getHeadroom(totalBytes, maxTotalBytes, bytesPerBudget, budgets));
+		}
+
+		final Cursor cursor = db.query(TABLE, new String[] {FIELD_ID, FIELD_TYPE, FIELD_SIZE},
+				FIELD_SIZE + " IS NOT NULL", null, null, null, FIELD_LAST_ACCESS + " ASC");
+
+		while(cursor.moveToNext()) {
+
+			final long id = cursor.getLong(0);
+			final int type = cursor.getInt(1);
+			final long size = cursor.getLong(2);
+
+			final Integer budget = budgetOfType.get(type);
+
+			if(totalBytes > maxTotalBytes
+					|| (budget != null && bytesPerBudget[budget] > budgets.get(budget).maxBytes)) {
+
+				entriesToEvict.add(id);
+				totalBytes -= size;
+
+				if(budget != null) {
+					bytesPerBudget[budget] -= size;
+				}
+
+				if(totalBytes <= maxTotalBytes && !isAnyBudgetExceeded(bytesPerBudget, budgets)) {
+					break;
+				}
+			}
+		}
+
+		cursor.close();
+
+		deleteEntries(db, entriesToEvict);
+		forgetEntries(entriesToEvict);
+
+		return new Eviction(entriesToEvict, getHeadroom(totalBytes, maxTotalBytes, bytesPerBudget, budgets));
+	}
+
+	private static long getHeadroom(final long totalBytes, final long maxTotalBytes,
+									final long[] bytesPerBudget, final List<CacheSizeBudget> budgets) {
+
+		long headroom = maxTotalBytes - totalBytes;
+
+		for(int i = 0; i < bytesPerBudget.length; i++) {
+			headroom = Math.min(headroom, budgets.get(i).maxBytes - bytesPerBudget[i]);
+		}
+
+		return Math.max(headroom, 0);
+	}
+
+	private static boolean isAnyBudgetExceeded(final long[] bytesPerBudget, final List<CacheSizeBudget> budgets) {
+
+		for(int i = 0; i < bytesPerBudget.length; i++) {
+			if(bytesPerBudget[i] > budgets.get(i).maxBytes) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static void deleteEntries(final SQLiteDatabase db, final LinkedList<Long> ids) {
+
+		db.beginTransaction();
+
+		try {
+			for(final long id : ids) {
+				db.delete(TABLE, FIELD_ID + "=?", new String[] {String.valueOf(id)});
 			}
 
-			query.append(')');
+			db.setTransactionSuccessful();
 
-			db.execSQL(query.toString());
+		} finally {
+			db.endTransaction();
 		}
+	}
 
-		return filesToDelete;
+	/**
+	 * An interrupted download. The validators must be sent with the range request when resuming it, so
+	 * that the server doesn't append a newer version of the data to the old one.
+	 */
+	static final class PartialDownload {
+
+		final String etag, lastModified;
+		final long length;
+
+		private PartialDownload(final String etag, final String lastModified, final long length) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+
+		PartialDownload withLength(final long length) {
+			return new PartialDownload(etag, lastModified, length);
+		}
+	}
+
+	synchronized PartialDownload getPartialDownload(final String key) {
+
+		final SQLiteDatabase db = this.getReadableDatabase();
+
+		final Cursor cursor = db.query(PARTIAL_TABLE, new String[] {FIELD_ETAG, FIELD_LAST_MODIFIED},
+				FIELD_KEY + "=?", new String[] {key}, null, null, null);
+
+		final PartialDownload result;
+
+		if(cursor.moveToNext()) {
+			result = new PartialDownload(cursor.getString(0), cursor.getString(1), 0);
+		} else {
+			result = null;
+		}
+
+		cursor.close();
+
+		return result;
+	}
+
+	synchronized void setPartialDownload(final String key, final String etag, final String lastModified) {
+
+		final SQLiteDatabase db = this.getWritableDatabase();
+
+		final ContentValues row = new ContentValues();
+		row.put(FIELD_KEY, key);
+		row.put(FIELD_ETAG, etag);
+		row.put(FIELD_LAST_MODIFIED, lastModified);
+		row.put(FIELD_TIMESTAMP, RRTime.utcCurrentTimeMillis());
+
+		db.insert(PARTIAL_TABLE, null, row);
+	}
+
+	synchronized void deletePartialDownload(final String key) {
+		final SQLiteDatabase db = this.getWritableDatabase();
+		db.delete(PARTIAL_TABLE, FIELD_KEY + "=?", new String[] {key});
+	}
+
+	synchronized void deletePartialDownloadsBeforeTimestamp(final long timestamp) {
+		final SQLiteDatabase db = this.getWritableDatabase();
+		db.delete(PARTIAL_TABLE, FIELD_TIMESTAMP + "<?", new String[] {String.valueOf(timestamp)});
 	}
 
 	public synchronized void emptyTheWholeCache() {
 		final SQLiteDatabase db = this.getWritableDatabase();
 		db.execSQL(String.format("DELETE FROM %s", TABLE));
+		db.execSQL(String.format("DELETE FROM %s", PARTIAL_TABLE));
+		db.execSQL(String.format("DELETE FROM %s", JOURNAL_TABLE));
+
+		final CacheIndex emptyIndex = new CacheIndex();
+
+		if(index.isLoaded()) {
+			emptyIndex.setLoaded();
+		}
+
+		index = emptyIndex;
+		movingEntries.clear();
 	}
 }
\ No newline at end of file
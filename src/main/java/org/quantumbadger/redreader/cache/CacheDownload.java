@@ -17,6 +17,9 @@
 
 package org.quantumbadger.redreader.cache;
 
+import android.os.SystemClock;
+import android.util.Log;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
@@ -33,6 +36,7 @@ import org.apache.http.protocol.HttpContext;
 import org.quantumbadger.redreader.activities.BugReportActivity;
 import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
 import org.quantumbadger.redreader.common.RRTime;
+import org.quantumbadger.redreader.common.Scheduler;
 import org.quantumbadger.redreader.jsonwrap.JsonValue;
 import org.quantumbadger.redreader.reddit.api.RedditOAuth;
 
@@ -40,6 +44,7 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.UUID;
 
 public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
@@ -53,6 +58,25 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 
 	private final PrioritisedDownloadQueue mQueue;
 
+	// The number of times an interrupted download is resumed before giving up
+	private static final int MAX_RESUME_ATTEMPTS = 3;
+
+	// All requests waiting for the result of this download, including the initiator
+	private final ArrayList<CacheRequest> mSubscribers = new ArrayList<CacheRequest>(1);
+	private boolean mStarted = false, mFinished = false;
+
+	// Whether the download is reading from the network, and whether it's counted by the bandwidth scheduler
+	// as a foreground download while it does
+	private boolean mTransferring = false, mForeground = false;
+
+	// Only used by the thread running the download
+	private long mBytesReceived = 0;
+
+	// The JSON value sent to the subscribers, kept for requests which attach later. Guarded by this.
+	private JsonValue mJsonValue = null;
+	private long mJsonTimestamp;
+	private UUID mJsonSession;
+
 	public CacheDownload(final CacheRequest initiator, final CacheManager manager, final PrioritisedDownloadQueue queue) {
 
 		this.mInitiator = initiator;
@@ -60,10 +84,6 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 		this.manager = manager;
 		this.mQueue = queue;
 
-		if(!initiator.setDownload(this)) {
-			cancel();
-		}
-
 		if(initiator.requestSession != null) {
 			session = initiator.requestSession;
 		} else {
@@ -82,31 +102,221 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 		} else {
 			mHttpRequest = new HttpGet(mInitiator.url);
 		}
+
+		if(initiator.setDownload(this)) {
+			mSubscribers.add(initiator);
+		} else {
+			mCancelled = true;
+		}
 	}
 
-	public synchronized void cancel() {
+	CacheRequest getInitiator() {
+		return mInitiator;
+	}
+
+	/**
+	 * Attaches another request for the same data to this download. The request receives the same
+	 * callbacks as the initiator from this point on, including any it has missed so far. The missed
+	 * callbacks are sent after the lock is released, so the caller must not hold any locks either.
+	 *
+	 * @return False if this download has already finished or been cancelled, in which case the
+	 * request must be downloaded separately.
+	 */
+	boolean addSubscriber(final CacheRequest request) {
+
+		final boolean started;
+		final JsonValue jsonValue;
+		final long jsonTimestamp;
+		final UUID jsonSession;
+
+		synchronized(this) {
+
+			if(mFinished || mCancelled || mInitiator.isJsonStreamed() || request.isJsonStreamed()) {
+				return false;
+			}
+
+			// The request may need parts of the response which this download doesn't keep
+			if(mInitiator.getJsonProjection() != request.getJsonProjection()) {
+				return false;
+			}
+
+			if(!request.setDownload(this)) {
+				// The request was cancelled before it got here
+				return true;
+			}
+
+			mSubscribers.add(request);
+
+			started = mStarted;
+			jsonValue = mJsonValue;
+			jsonTimestamp = mJsonTimestamp;
+			jsonSession = mJsonSession;
+		}
 
-		mCancelled = true;
+		// The new request may be in the foreground
+		updateForeground();
 
-		new Thread() {
+		if(started) {
+			request.notifyDownloadStarted();
+		}
+
+		if(jsonValue != null) {
+			request.notifyJsonParseStarted(jsonValue, jsonTimestamp, jsonSession, false);
+		}
+
+		return true;
+	}
+
+	// Called by CacheRequest. The HTTP request is only aborted once no requests are waiting for it.
+	void cancel(final CacheRequest request) {
+
+		final boolean abort;
+
+		synchronized(this) {
+
+			if(!mSubscribers.remove(request)) {
+				return;
+			}
+
+			abort = mSubscribers.isEmpty();
+
+			if(abort) {
+				mCancelled = true;
+			}
+
+			updateForeground();
+		}
+
+		// Not a network lane, as those threads may all be busy with the downloads we're trying to cancel
+		Scheduler.add(Scheduler.Lane.CALLBACK, Scheduler.PRIORITY_URGENT, new Runnable() {
 			public void run() {
-				mHttpRequest.abort();
-				mInitiator.notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
+				if(abort) mHttpRequest.abort();
+				request.notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
 			}
-		}.start();
+		});
+	}
+
+	// Called as the response is read
+	void onBytesReceived(final int bytes) {
+		mBytesReceived += bytes;
+	}
+
+	synchronized boolean isStarted() {
+		return mStarted;
 	}
 
 	public void doDownload() {
 
-		if(mCancelled) {
-			return;
+		final long startTime = SystemClock.elapsedRealtime();
+		final long startTimeNs = System.nanoTime();
+
+		final CacheMetrics metrics = manager.getMetrics();
+		metrics.recordTiming(mInitiator.fileType, CacheMetrics.Timing.QUEUED, startTimeNs - mInitiator.madeAtNs);
+
+		synchronized(this) {
+			mTransferring = true;
+			updateForeground();
 		}
 
 		try {
+			if(mCancelled) {
+				return;
+			}
+
 			performDownload(mQueue.getHttpClient(), mHttpRequest);
 
 		} catch(Throwable t) {
 			BugReportActivity.handleGlobalError(mInitiator.context, t);
+
+		} finally {
+			synchronized(this) {
+				mTransferring = false;
+				updateForeground();
+			}
+
+			metrics.recordTiming(mInitiator.fileType, CacheMetrics.Timing.DOWNLOAD, System.nanoTime() - startTimeNs);
+			metrics.recordNetworkBytes(mInitiator.fileType, mBytesReceived);
+
+			markFinished();
+			mQueue.onDownloadFinished(this, SystemClock.elapsedRealtime() - startTime);
+		}
+	}
+
+	/**
+	 * Tells the bandwidth scheduler whether the download is in the foreground, which depends on the
+	 * priority of its most urgent subscriber. Called as the transfer starts and ends, and whenever the
+	 * subscribers or their priorities change.
+	 */
+	synchronized void updateForeground() {
+
+		final boolean foreground = mTransferring && !BandwidthScheduler.isBackground(getPrimaryPriority());
+
+		if(foreground == mForeground) return;
+
+		mForeground = foreground;
+
+		if(foreground) {
+			mQueue.getBandwidthScheduler().onForegroundStarted();
+		} else {
+			mQueue.getBandwidthScheduler().onForegroundFinished();
+		}
+	}
+
+	private synchronized ArrayList<CacheRequest> markFinished() {
+		mFinished = true;
+		return new ArrayList<CacheRequest>(mSubscribers);
+	}
+
+	private synchronized ArrayList<CacheRequest> getSubscribers() {
+		return new ArrayList<CacheRequest>(mSubscribers);
+	}
+
+	private void notifyDownloadStarted() {
+
+		// Requests which attach after this are notified by addSubscriber() instead
+		final ArrayList<CacheRequest> subscribers;
+
+		synchronized(this) {
+			mStarted = true;
+			subscribers = new ArrayList<CacheRequest>(mSubscribers);
+		}
+
+		for(final CacheRequest request : subscribers) {
+			request.notifyDownloadStarted();
+		}
+	}
+
+	private void notifyProgress(final boolean authorizationInProgress, final long bytesRead, final long totalBytes) {
+		for(final CacheRequest request : getSubscribers()) {
+			request.notifyProgress(authorizationInProgress, bytesRead, totalBytes);
+		}
+	}
+
+	private void notifyJsonParseStarted(final JsonValue value, final long timestamp, final UUID session) {
+
+		final ArrayList<CacheRequest> subscribers;
+
+		synchronized(this) {
+			mJsonValue = value;
+			mJsonTimestamp = timestamp;
+			mJsonSession = session;
+			subscribers = new ArrayList<CacheRequest>(mSubscribers);
+		}
+
+		for(final CacheRequest request : subscribers) {
+			request.notifyJsonParseStarted(value, timestamp, session, false);
+		}
+	}
+
+	private void notifyFailure(final RequestFailureType type, final Throwable t, final StatusLine status, final String readableMessage) {
+		for(final CacheRequest request : markFinished()) {
+			request.notifyFailure(type, t, status, readableMessage);
+		}
+	}
+
+	private void notifySuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final UUID session, final String mimetype) {
+		for(final CacheRequest request : markFinished()) {
+			request.notifySuccess(cacheFile, timestamp, session, false, mimetype);
 		}
 	}
 
@@ -114,6 +324,19 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 
 		if(mInitiator.isJson) httpRequest.setHeader("Accept-Encoding", "gzip");
 
+		final CacheEntry cachedEntry;
+
+		if(mInitiator.cache && mInitiator.postFields == null) {
+			cachedEntry = manager.getEntryForRevalidation(mInitiator);
+		} else {
+			cachedEntry = null;
+		}
+
+		if(cachedEntry != null) {
+			if(cachedEntry.etag != null) httpRequest.setHeader("If-None-Match", cachedEntry.etag);
+			if(cachedEntry.lastModified != null) httpRequest.setHeader("If-Modified-Since", cachedEntry.lastModified);
+		}
+
 		final HttpContext localContext = new BasicHttpContext();
 		localContext.setAttribute(ClientContext.COOKIE_STORE, mInitiator.getCookies());
 
@@ -123,7 +346,7 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 
 			if(accessToken == null || accessToken.isExpired()) {
 
-				mInitiator.notifyProgress(true, 0, 0);
+				notifyProgress(true, 0, 0);
 
 				final RedditOAuth.FetchAccessTokenResult result;
 
@@ -135,7 +358,7 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 				}
 
 				if(result.status != RedditOAuth.FetchAccessTokenResultStatus.SUCCESS) {
-					mInitiator.notifyFailure(RequestFailureType.REQUEST, result.error.t, result.error.httpStatus, result.error.title + ": " + result.error.message);
+					notifyFailure(RequestFailureType.REQUEST, result.error.t, result.error.httpStatus, result.error.title + ": " + result.error.message);
 					return;
 				}
 
@@ -147,58 +370,75 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 
 		}
 
-		mInitiator.notifyDownloadStarted();
+		notifyDownloadStarted();
 
-		final HttpResponse response;
-		final StatusLine status;
+		final String partialKey = isResumable() ? manager.claimPartialFile(mInitiator) : null;
 
-		try {
-			if(mCancelled) {
-				mInitiator.notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
-				return;
+		if(partialKey != null) {
+
+			try {
+				performResumableDownload(httpClient, httpRequest, localContext, cachedEntry, partialKey);
+			} finally {
+				manager.releasePartialFile(partialKey);
 			}
-			response = httpClient.execute(httpRequest, localContext);
-			status = response.getStatusLine();
 
-		} catch(Throwable t) {
+			return;
+		}
 
-			if(t.getCause() != null
-					&& t.getCause() instanceof RedirectException
-					&& httpRequest.getURI().getHost().endsWith("reddit.com")) {
+		HttpResponse response = execute(httpClient, httpRequest, localContext);
 
-				mInitiator.notifyFailure(RequestFailureType.REDDIT_REDIRECT, t, null, "Unable to open a connection");
-			} else {
-				mInitiator.notifyFailure(RequestFailureType.CONNECTION, t, null, "Unable to open a connection");
-			}
+		if(response == null) {
 			return;
 		}
 
+		StatusLine status = response.getStatusLine();
+
+		if(status.getStatusCode() == 304 && cachedEntry != null) {
+
+			if(onNotModified(response, cachedEntry)) {
+				return;
+			}
+
+			// The cached copy has gone, so the data is downloaded again in full
+			removeValidators(httpRequest);
+			response = execute(httpClient, httpRequest, localContext);
+
+			if(response == null) {
+				return;
+			}
+
+			status = response.getStatusLine();
+		}
+
 		if(status.getStatusCode() != 200 && status.getStatusCode() != 202) {
-			mInitiator.notifyFailure(RequestFailureType.REQUEST, null, status, String.format("HTTP error %d (%s)", status.getStatusCode(), status.getReasonPhrase()));
+			notifyFailure(RequestFailureType.REQUEST, null, status, String.format("HTTP error %d (%s)", status.getStatusCode(), status.getReasonPhrase()));
 			return;
 		}
 
 		if(mCancelled) {
-			mInitiator.notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
+			notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
 			return;
 		}
 
 		final HttpEntity entity = response.getEntity();
 
 		if(entity == null) {
-			mInitiator.notifyFailure(RequestFailureType.CONNECTION, null, status, "Did not receive a valid HTTP response");
+			notifyFailure(RequestFailureType.CONNECTION, null, status, "Did not receive a valid HTTP response");
 			return;
 		}
 
 		final InputStream is;
 
 		final String mimetype;
+		final String etag = getHeaderValue(response, "ETag");
+		final String lastModified = getHeaderValue(response, "Last-Modified");
+
 		try {
-			is = entity.getContent();
+			is = mQueue.getBandwidthScheduler().wrap(entity.getContent(), this);
 			mimetype = entity.getContentType() == null ? null : entity.getContentType().getValue();
 		} catch (Throwable t) {
 			t.printStackTrace();
-			mInitiator.notifyFailure(RequestFailureType.CONNECTION, t, status, "Could not open an input stream");
+			notifyFailure(RequestFailureType.CONNECTION, t, status, "Could not open an input stream");
 			return;
 		}
 
@@ -206,11 +446,11 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 		final CacheManager.WritableCacheFile cacheFile;
 		if(mInitiator.cache) {
 			try {
-				cacheFile = manager.openNewCacheFile(mInitiator, session, mimetype);
+				cacheFile = manager.openNewCacheFile(mInitiator, session, mimetype, etag, lastModified);
 				cacheOs = cacheFile.getOutputStream();
 			} catch (IOException e) {
 				e.printStackTrace();
-				mInitiator.notifyFailure(RequestFailureType.STORAGE, e, null, "Could not access the local cache");
+				notifyFailure(RequestFailureType.STORAGE, e, null, "Could not access the local cache");
 				return;
 			}
 		} else {
@@ -228,7 +468,7 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 
 				bis = new BufferedInputStream(new CachingInputStream(is, cacheOs, new CachingInputStream.BytesReadListener() {
 					public void onBytesRead(final long total) {
-						mInitiator.notifyProgress(false, total, contentLength);
+						notifyProgress(false, total, contentLength);
 					}
 				}), 8 * 1024);
 
@@ -236,31 +476,40 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 				bis = new BufferedInputStream(is, 8 * 1024);
 			}
 
-			final JsonValue value;
-
 			try {
-				value = new JsonValue(bis);
 
-				synchronized(this) {
-					mInitiator.notifyJsonParseStarted(value, RRTime.utcCurrentTimeMillis(), session, false);
-				}
+				if(mInitiator.isJsonStreamed()) {
+
+					// The initiator is the only subscriber
+					mInitiator.notifyJsonStreamed(bis, RRTime.utcCurrentTimeMillis(), session, false);
+
+					// The rest is read anyway, so that all of it is cached
+					final byte[] buf = new byte[8 * 1024];
+					while(bis.read(buf) >= 0);
+
+				} else {
 
-				value.buildInThisThread();
+					final JsonValue value = new JsonValue(bis, mInitiator.getJsonProjection());
+
+					notifyJsonParseStarted(value, RRTime.utcCurrentTimeMillis(), session);
+
+					value.buildInThisThread();
+				}
 
 			} catch (Throwable t) {
 				t.printStackTrace();
-				mInitiator.notifyFailure(RequestFailureType.PARSE, t, null, "Error parsing the JSON stream");
+				notifyFailure(RequestFailureType.PARSE, t, null, "Error parsing the JSON stream");
 				return;
 			}
 
 			if(mInitiator.cache && cacheFile != null) {
 				try {
-					mInitiator.notifySuccess(cacheFile.getReadableCacheFile(), RRTime.utcCurrentTimeMillis(), session, false, mimetype);
+					notifySuccess(cacheFile.getReadableCacheFile(), RRTime.utcCurrentTimeMillis(), session, mimetype);
 				} catch(IOException e) {
 					if(e.getMessage().contains("ENOSPC")) {
-						mInitiator.notifyFailure(RequestFailureType.DISK_SPACE, e, null, "Out of disk space");
+						notifyFailure(RequestFailureType.DISK_SPACE, e, null, "Out of disk space");
 					} else {
-						mInitiator.notifyFailure(RequestFailureType.STORAGE, e, null, "Cache file not found");
+						notifyFailure(RequestFailureType.STORAGE, e, null, "Cache file not found");
 					}
 				}
 			}
@@ -280,47 +529,389 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 				while((bytesRead = is.read(buf)) > 0) {
 					totalBytesRead += bytesRead;
 					cacheOs.write(buf, 0, bytesRead);
-					mInitiator.notifyProgress(false, totalBytesRead, contentLength);
+					notifyProgress(false, totalBytesRead, contentLength);
 				}
 
 				cacheOs.flush();
 				cacheOs.close();
 
 				try {
-					mInitiator.notifySuccess(cacheFile.getReadableCacheFile(), RRTime.utcCurrentTimeMillis(), session, false, mimetype);
+					notifySuccess(cacheFile.getReadableCacheFile(), RRTime.utcCurrentTimeMillis(), session, mimetype);
 				} catch(IOException e) {
 					if(e.getMessage().contains("ENOSPC")) {
-						mInitiator.notifyFailure(RequestFailureType.DISK_SPACE, e, null, "Out of disk space");
+						notifyFailure(RequestFailureType.DISK_SPACE, e, null, "Out of disk space");
 					} else {
-						mInitiator.notifyFailure(RequestFailureType.STORAGE, e, null, "Cache file not found");
+						notifyFailure(RequestFailureType.STORAGE, e, null, "Cache file not found");
 					}
 				}
 
 			} catch(IOException e) {
 
 				if(e.getMessage() != null && e.getMessage().contains("ENOSPC")) {
-					mInitiator.notifyFailure(RequestFailureType.STORAGE, e, null, "Out of disk space");
+					notifyFailure(RequestFailureType.STORAGE, e, null, "Out of disk space");
 
 				} else {
 					e.printStackTrace();
-					mInitiator.notifyFailure(RequestFailureType.CONNECTION, e, null, "The connection was interrupted");
+					notifyFailure(RequestFailureType.CONNECTION, e, null, "The connection was interrupted");
 				}
 
 			} catch(Throwable t) {
 				t.printStackTrace();
-				mInitiator.notifyFailure(RequestFailureType.CONNECTION, t, null, "The connection was interrupted");
+				notifyFailure(RequestFailureType.CONNECTION, t, null, "The connection was interrupted");
+			}
+		}
+	}
+
+	// Large files which are cached can be resumed from where they stopped if the connection drops
+	private boolean isResumable() {
+		return !mInitiator.isJson
+				&& mInitiator.cache
+				&& mInitiator.postFields == null
+				&& mInitiator.requestSession == null;
+	}
+
+	// Returns null if the request failed, in which case the subscribers have already been notified
+	private HttpResponse execute(final HttpClient httpClient, final HttpRequestBase httpRequest, final HttpContext localContext) {
+
+		try {
+			if(mCancelled) {
+				notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
+				return null;
+			}
+
+			final long startTime = System.nanoTime();
+
+			final HttpResponse response = httpClient.execute(httpRequest, localContext);
+
+			manager.getMetrics().recordTiming(mInitiator.fileType, CacheMetrics.Timing.TIME_TO_FIRST_BYTE, System.nanoTime() - startTime);
+
+			if(mInitiator.isRedditApi) {
+				mQueue.getRedditRateLimiter().onResponse(
+						getHeaderValue(response, "X-Ratelimit-Remaining"),
+						getHeaderValue(response, "X-Ratelimit-Reset"));
 			}
+
+			return response;
+
+		} catch(Throwable t) {
+
+			if(t.getCause() != null
+					&& t.getCause() instanceof RedirectException
+					&& httpRequest.getURI().getHost().endsWith("reddit.com")) {
+
+				notifyFailure(RequestFailureType.REDDIT_REDIRECT, t, null, "Unable to open a connection");
+			} else {
+				notifyFailure(RequestFailureType.CONNECTION, t, null, "Unable to open a connection");
+			}
+			return null;
 		}
 	}
 
+	/**
+	 * Downloads a non-JSON file into a partial file which is kept if the connection is interrupted. The
+	 * download is then resumed with a range request, both immediately (up to MAX_RESUME_ATTEMPTS times)
+	 * and the next time the same file is requested.
+	 */
+	private void performResumableDownload(final HttpClient httpClient, final HttpRequestBase httpRequest,
+										  final HttpContext localContext, final CacheEntry cachedEntry,
+										  final String partialKey) {
+
+		int attempts = 0;
+
+		// Cleared if the cached copy turns out to be unreadable
+		CacheEntry revalidatedEntry = cachedEntry;
+
+		while(true) {
+
+			final CacheDbManager.PartialDownload partial = manager.getPartialDownload(partialKey);
+
+			httpRequest.removeHeaders("Range");
+			httpRequest.removeHeaders("If-Range");
+
+			if(partial != null) {
+				httpRequest.setHeader("Range", "bytes=" + partial.length + "-");
+				httpRequest.setHeader("If-Range", partial.etag != null ? partial.etag : partial.lastModified);
+			}
+
+			final HttpResponse response = execute(httpClient, httpRequest, localContext);
+
+			if(response == null) {
+				return;
+			}
+
+			final StatusLine status = response.getStatusLine();
+
+			if(status.getStatusCode() == 304 && revalidatedEntry != null) {
+
+				if(onNotModified(response, revalidatedEntry)) {
+					return;
+				}
+
+				// The cached copy has gone, so the data is downloaded again in full
+				removeValidators(httpRequest);
+				revalidatedEntry = null;
+				continue;
+			}
+
+			final boolean append;
+
+			if(status.getStatusCode() == 206 && partial != null && getRangeStart(response) == partial.length) {
+				append = true;
+
+			} else if(status.getStatusCode() == 200 || status.getStatusCode() == 202) {
+				// The file has changed, or the server ignored the range
+				append = false;
+
+			} else if((status.getStatusCode() == 206 || status.getStatusCode() == 416) && partial != null) {
+
+				// The partial file doesn't match what's on the server, so start again
+				consume(response);
+				manager.deletePartialDownload(partialKey);
+				continue;
+
+			} else {
+				notifyFailure(RequestFailureType.REQUEST, null, status, String.format("HTTP error %d (%s)", status.getStatusCode(), status.getReasonPhrase()));
+				return;
+			}
+
+			if(mCancelled) {
+				notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
+				return;
+			}
+
+			final HttpEntity entity = response.getEntity();
+
+			if(entity == null) {
+				notifyFailure(RequestFailureType.CONNECTION, null, status, "Did not receive a valid HTTP response");
+				return;
+			}
+
+			final InputStream is;
+			final String mimetype;
+
+			// A 206 response only carries validators if they are unchanged, so fall back to the saved ones
+			final String etag = getHeaderValue(response, "ETag", append ? partial.etag : null);
+			final String lastModified = getHeaderValue(response, "Last-Modified", append ? partial.lastModified : null);
+
+			try {
+				is = mQueue.getBandwidthScheduler().wrap(entity.getContent(), this);
+				mimetype = entity.getContentType() == null ? null : entity.getContentType().getValue();
+			} catch (Throwable t) {
+				t.printStackTrace();
+				notifyFailure(RequestFailureType.CONNECTION, t, status, "Could not open an input stream");
+				return;
+			}
+
+			final CacheManager.WritableCacheFile cacheFile;
+			final NotifyOutputStream cacheOs;
+
+			try {
+				cacheFile = manager.openPartialCacheFile(mInitiator, session, mimetype, etag, lastModified, partialKey, append);
+				cacheOs = cacheFile.getOutputStream();
+			} catch (IOException e) {
+				e.printStackTrace();
+				notifyFailure(RequestFailureType.STORAGE, e, null, "Could not access the local cache");
+				return;
+			}
+
+			final long alreadyRead = append ? partial.length : 0;
+			final long contentLength = entity.getContentLength() < 0 ? -1 : alreadyRead + entity.getContentLength();
+
+			try {
+				final byte[] buf = new byte[8 * 1024];
+
+				int bytesRead;
+				long totalBytesRead = alreadyRead;
+				while((bytesRead = is.read(buf)) > 0) {
+					totalBytesRead += bytesRead;
+					cacheOs.write(buf, 0, bytesRead);
+					notifyProgress(false, totalBytesRead, contentLength);
+				}
+
+			} catch(IOException e) {
+
+				cacheFile.abandon();
+
+				try {
+					is.close();
+				} catch(IOException e2) {
+					// The connection is already broken
+				}
+
+				if(e.getMessage() != null && e.getMessage().contains("ENOSPC")) {
+					manager.deletePartialDownload(partialKey);
+					notifyFailure(RequestFailureType.STORAGE, e, null, "Out of disk space");
+					return;
+				}
+
+				if(etag == null && lastModified == null) {
+					// Without a validator, there's no way to be sure the rest of the file will match
+					manager.deletePartialDownload(partialKey);
+					notifyFailure(RequestFailureType.CONNECTION, e, null, "The connection was interrupted");
+					return;
+				}
+
+				manager.savePartialDownload(partialKey, etag, lastModified);
+
+				if(mCancelled || ++attempts > MAX_RESUME_ATTEMPTS) {
+					e.printStackTrace();
+					notifyFailure(RequestFailureType.CONNECTION, e, null, "The connection was interrupted");
+					return;
+				}
+
+				Log.i("CacheDownload", "Resuming interrupted download of " + mInitiator.url);
+				continue;
+
+			} catch(Throwable t) {
+				cacheFile.abandon();
+				manager.deletePartialDownload(partialKey);
+				t.printStackTrace();
+				notifyFailure(RequestFailureType.CONNECTION, t, null, "The connection was interrupted");
+				return;
+			}
+
+			try {
+				cacheOs.flush();
+				cacheOs.close();
+				notifySuccess(cacheFile.getReadableCacheFile(), RRTime.utcCurrentTimeMillis(), session, mimetype);
+
+			} catch(IOException e) {
+
+				manager.deletePartialDownload(partialKey);
+
+				if(e.getMessage() != null && e.getMessage().contains("ENOSPC")) {
+					notifyFailure(RequestFailureType.DISK_SPACE, e, null, "Out of disk space");
+				} else {
+					notifyFailure(RequestFailureType.STORAGE, e, null, "Cache file not found");
+				}
+			}
+
+			return;
+		}
+	}
+
+	// Returns the first byte position of a "Content-Range: bytes first-last/length" header, or -1
+	private static long getRangeStart(final HttpResponse response) {
+
+		final String contentRange = getHeaderValue(response, "Content-Range");
+
+		if(contentRange == null || !contentRange.startsWith("bytes ")) {
+			return -1;
+		}
+
+		final int dash = contentRange.indexOf('-');
+
+		if(dash < 0) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void consume(final HttpResponse response) {
+		try {
+			final HttpEntity entity = response.getEntity();
+			if(entity != null) entity.consumeContent();
+		} catch(IOException e) {
+			// Nothing to read anyway
+		}
+	}
+
+	private static String getHeaderValue(final HttpResponse response, final String name, final String defaultValue) {
+		final String value = getHeaderValue(response, name);
+		return value == null ? defaultValue : value;
+	}
+
+	private static String getHeaderValue(final HttpResponse response, final String name) {
+		final Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+
+	/**
+	 * The server has confirmed that our cached copy is current, so serve that instead. Returns false if the
+	 * cached copy couldn't be read, in which case its entry is removed, and the download must be made again
+	 * without validators. If part of it had already been streamed to the initiator, the request fails
+	 * instead.
+	 */
+	private boolean onNotModified(final HttpResponse response, final CacheEntry cachedEntry) {
+
+		consume(response);
+
+		final CacheEntry entry = manager.markEntryRevalidated(cachedEntry);
+		final CacheManager.ReadableCacheFile cacheFile = manager.getReadableCacheFile(entry);
+
+		try {
+			final InputStream is = cacheFile.getInputStream();
+
+			if(is == null) {
+				manager.removeUnreadableEntry(entry);
+				return false;
+			}
+
+			try {
+				if(mInitiator.isJson) {
+
+					if(mInitiator.isJsonStreamed()) {
+						mInitiator.notifyJsonStreamed(is, entry.timestamp, entry.session, false);
+
+					} else {
+						final JsonValue value = new JsonValue(is, mInitiator.getJsonProjection());
+						notifyJsonParseStarted(value, entry.timestamp, entry.session);
+						value.buildInThisThread();
+					}
+				}
+
+			} finally {
+				is.close();
+			}
+
+		} catch(Throwable t) {
+			t.printStackTrace();
+			manager.removeUnreadableEntry(entry);
+
+			if(!mInitiator.canDownloadAfterCacheFailure()) {
+				notifyFailure(RequestFailureType.PARSE, t, null, "Error parsing the JSON stream");
+				return true;
+			}
+
+			return false;
+		}
+
+		notifySuccess(cacheFile, entry.timestamp, entry.session, entry.mimetype);
+		return true;
+	}
+
+	private static void removeValidators(final HttpRequestBase httpRequest) {
+		httpRequest.removeHeaders("If-None-Match");
+		httpRequest.removeHeaders("If-Modified-Since");
+	}
+
+	// The download runs at the priority of the most urgent request waiting for it
+	private synchronized CacheRequest getMostUrgentSubscriber() {
+
+		CacheRequest result = null;
+
+		for(final CacheRequest request : mSubscribers) {
+			if(result == null || request.isHigherPriorityThan(result)) {
+				result = request;
+			}
+		}
+
+		return result == null ? mInitiator : result;
+	}
+
 	@Override
 	public int getPrimaryPriority() {
-		return mInitiator.priority;
+		return getMostUrgentSubscriber().getPriority();
 	}
 
 	@Override
 	public int getSecondaryPriority() {
-		return mInitiator.listId;
+		return getMostUrgentSubscriber().listId;
 	}
 
 	@Override
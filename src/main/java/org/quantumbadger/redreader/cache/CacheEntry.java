@@ -25,9 +25,17 @@ import java.util.UUID;
 
 public final class CacheEntry {
 
+	// How the data is stored on disk. Entries written before the codec was recorded have CODEC_NONE.
+	static final int CODEC_NONE = 0, CODEC_DEFLATE = 1;
+
+	// Which cache directory the file is in. Entries written before the location was recorded have
+	// LOCATION_UNKNOWN, and their file must be looked for in both. Entries with LOCATION_SEGMENT have no
+	// file of their own, and are stored in a segment of CacheSegmentStore.
+	public static final int LOCATION_UNKNOWN = 0, LOCATION_EXTERNAL = 1, LOCATION_INTERNAL = 2, LOCATION_SEGMENT = 3;
+
 	public final long id;
-	private final URI url;
-	private final String user;
+	final URI url;
+	final String user;
 	public final UUID session;
 
 	public final long timestamp;
@@ -35,6 +43,20 @@ public final class CacheEntry {
 	private final int type;
 	public final String mimetype;
 
+	// HTTP validators, used to check whether the cached copy is still current
+	final String etag;
+	final String lastModified;
+
+	final int codec;
+
+	final int location;
+
+	// The size of the file, or -1 if unknown
+	final long size;
+
+	// Where the data is, if the location is LOCATION_SEGMENT
+	final long segment, segmentOffset;
+
 	CacheEntry(final Cursor cursor) {
 
 		id = cursor.getLong(0);
@@ -45,5 +67,48 @@ public final class CacheEntry {
 		status = cursor.getInt(5);
 		type = cursor.getInt(6);
 		mimetype = cursor.getString(7);
+		etag = cursor.getString(8);
+		lastModified = cursor.getString(9);
+		codec = cursor.getInt(10);
+		location = cursor.getInt(11);
+		size = cursor.isNull(12) ? -1 : cursor.getLong(12);
+		segment = cursor.getLong(13);
+		segmentOffset = cursor.getLong(14);
+	}
+
+	CacheEntry(final long id, final URI url, final String user, final UUID session, final long timestamp,
+			   final int status, final int type, final String mimetype, final String etag, final String lastModified,
+			   final int codec, final int location, final long size, final long segment, final long segmentOffset) {
+
+		this.id = id;
+		this.url = url;
+		this.user = user;
+		this.session = session;
+		this.timestamp = timestamp;
+		this.status = status;
+		this.type = type;
+		this.mimetype = mimetype;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.codec = codec;
+		this.location = location;
+		this.size = size;
+		this.segment = segment;
+		this.segmentOffset = segmentOffset;
+	}
+
+	CacheEntry withTimestamp(final long newTimestamp) {
+		return new CacheEntry(id, url, user, session, newTimestamp, status, type, mimetype, etag, lastModified, codec,
+				location, size, segment, segmentOffset);
+	}
+
+	CacheEntry withFileInfo(final int newLocation, final long newSize) {
+		return new CacheEntry(id, url, user, session, timestamp, status, type, mimetype, etag, lastModified, codec,
+				newLocation, newSize, segment, segmentOffset);
+	}
+
+	CacheEntry withSegment(final long newSegment, final long newSegmentOffset) {
+		return new CacheEntry(id, url, user, session, timestamp, status, type, mimetype, etag, lastModified, codec,
+				LOCATION_SEGMENT, size, newSegment, newSegmentOffset);
 	}
 }
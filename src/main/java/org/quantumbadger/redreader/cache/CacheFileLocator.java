@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.cache;
+
+import java.io.File;
+
+/**
+ * Finds the file of a cache entry in the external or internal cache directory, given the location which
+ * was recorded for it. Either directory can be cleared by the system or the user at any time, so a
+ * recorded location only says where the file should be.
+ */
+public final class CacheFileLocator {
+
+	public static final String EXT = ".rr_cache_data";
+
+	private final File externalDir, internalDir;
+
+	/**
+	 * @param externalDir The external cache directory, or null if it isn't available.
+	 */
+	public CacheFileLocator(final File externalDir, final File internalDir) {
+		this.externalDir = externalDir;
+		this.internalDir = internalDir;
+	}
+
+	/**
+	 * Returns where the file of an entry should be, without checking that it's there. Only entries with an
+	 * unknown location are looked for. Returns null if the file can't be there.
+	 */
+	public File getFile(final long id, final int location) {
+
+		switch(location) {
+
+			case CacheEntry.LOCATION_EXTERNAL:
+				return externalDir == null ? null : new File(externalDir, id + EXT);
+
+			case CacheEntry.LOCATION_INTERNAL:
+				return new File(internalDir, id + EXT);
+
+			default:
+				return findExistingFile(id);
+		}
+	}
+
+	/**
+	 * Returns the file of an entry if it still exists, or null if it has been deleted.
+	 */
+	public File findFile(final long id, final int location) {
+
+		final File file = getFile(id, location);
+
+		if(file == null || !file.exists()) {
+			return null;
+		}
+
+		return file;
+	}
+
+	/**
+	 * Looks for the file of an entry in both directories.
+	 */
+	public File findExistingFile(final long id) {
+
+		if(externalDir != null) {
+			final File fExternal = new File(externalDir, id + EXT);
+
+			if(fExternal.exists()) {
+				return fExternal;
+			}
+		}
+
+		final File fInternal = new File(internalDir, id + EXT);
+
+		if(fInternal.exists()) {
+			return fInternal;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the location to record for a file in one of the cache directories.
+	 */
+	public int getLocation(final File file) {
+		return externalDir != null && file.getParentFile().equals(externalDir)
+				? CacheEntry.LOCATION_EXTERNAL : CacheEntry.LOCATION_INTERNAL;
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.cache;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of the completed entries in the cache database, so that lookups don't need to query SQLite.
+ *
+ * Lookups may happen from any thread without locking. All modifications must be made while holding the
+ * CacheDbManager lock, so that they are ordered with the corresponding database writes. An index is never
+ * cleared: CacheDbManager builds a new one and replaces the old one with it.
+ */
+final class CacheIndex {
+
+	private final ConcurrentHashMap<Key, ConcurrentHashMap<UUID, CacheEntry>> entries
+			= new ConcurrentHashMap<Key, ConcurrentHashMap<UUID, CacheEntry>>();
+
+	private final ConcurrentHashMap<Long, CacheEntry> entriesById = new ConcurrentHashMap<Long, CacheEntry>();
+
+	private volatile boolean loaded = false;
+
+	boolean isLoaded() {
+		return loaded;
+	}
+
+	void setLoaded() {
+		loaded = true;
+	}
+
+	CacheEntry getMostRecent(final String url, final String user, final UUID session) {
+
+		final ConcurrentHashMap<UUID, CacheEntry> sessions = entries.get(new Key(url, user));
+
+		if(sessions == null) {
+			return null;
+		}
+
+		if(session != null) {
+			return sessions.get(session);
+		}
+
+		CacheEntry result = null;
+
+		for(final CacheEntry entry : sessions.values()) {
+			if(result == null || result.timestamp < entry.timestamp) {
+				result = entry;
+			}
+		}
+
+		return result;
+	}
+
+	CacheEntry getById(final long id) {
+		return entriesById.get(id);
+	}
+
+	void put(final CacheEntry entry) {
+
+		final Key key = new Key(entry.url.toString(), entry.user);
+
+		ConcurrentHashMap<UUID, CacheEntry> sessions = entries.get(key);
+
+		if(sessions == null) {
+			sessions = new ConcurrentHashMap<UUID, CacheEntry>(4);
+			entries.put(key, sessions);
+		}
+
+		// The database replaces rows with the same url, user, and session
+		final CacheEntry replaced = sessions.put(entry.session, entry);
+
+		if(replaced != null) {
+			entriesById.remove(replaced.id);
+		}
+
+		entriesById.put(entry.id, entry);
+	}
+
+	void remove(final long id) {
+
+		final CacheEntry entry = entriesById.remove(id);
+
+		if(entry == null) {
+			return;
+		}
+
+		final Key key = new Key(entry.url.toString(), entry.user);
+		final ConcurrentHashMap<UUID, CacheEntry> sessions = entries.get(key);
+
+		if(sessions != null) {
+
+			sessions.remove(entry.session, entry);
+
+			if(sessions.isEmpty()) {
+				entries.remove(key, sessions);
+			}
+		}
+	}
+
+	void remove(final Collection<Long> ids) {
+		for(final long id : ids) {
+			remove(id);
+		}
+	}
+
+	private static final class Key {
+
+		private final String url, user;
+
+		private Key(final String url, final String user) {
+			this.url = url;
+			this.user = user;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+
+			if(this == o) return true;
+			if(!(o instanceof Key)) return false;
+
+			final Key other = (Key)o;
+			return url.equals(other.url) && user.equals(other.user);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * url.hashCode() + user.hashCode();
+		}
+	}
+}
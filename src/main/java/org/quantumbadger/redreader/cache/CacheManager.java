@@ -43,21 +43,33 @@ import org.holoeverywhere.preference.SharedPreferences;
 import org.quantumbadger.redreader.account.RedditAccount;
 import org.quantumbadger.redreader.activities.BugReportActivity;
 import org.quantumbadger.redreader.common.*;
+import org.quantumbadger.redreader.common.collections.LongArrayList;
 import org.quantumbadger.redreader.jsonwrap.JsonValue;
 
 import java.io.*;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 // TODO consider moving to service
 public final class CacheManager {
 
-	private static final String ext = ".rr_cache_data", tempExt = ".rr_cache_data_tmp";
+	private static final String ext = CacheFileLocator.EXT, tempExt = ".rr_cache_data_tmp",
+			partialExt = ".rr_cache_data_partial";
+
+	// Interrupted downloads are only resumed if this recent
+	private static final long PARTIAL_MAX_AGE_MS = 24L * 60 * 60 * 1000;
 
 	private static final AtomicBoolean isAlreadyInitialized = new AtomicBoolean(false);
 	private final CacheDbManager dbManager;
@@ -66,8 +78,76 @@ public final class CacheManager {
 
 	private final UniqueSynchronizedQueue<Long> fileDeletionQueue = new UniqueSynchronizedQueue<Long>();
 
+	// Deletes the files in fileDeletionQueue in the background, a batch at a time
+	private final TriggerableThread fileDeletionThread = new TriggerableThread(new Runnable() {
+		public void run() {
+			processDeletionQueue();
+		}
+	}, 1000);
+
+	private static final int FILE_DELETION_BATCH_SIZE = 32;
+	private final AtomicLong bytesReclaimed = new AtomicLong(0);
+
+	// Reads of cache files which a request is waiting for. File deletion waits until there are none.
+	private final AtomicInteger foregroundReadsInProgress = new AtomicInteger(0);
+
+	// Read times are only written to the database in batches, to avoid a write on every cache hit
+	private final HashMap<Long, Long> pendingAccessTimes = new HashMap<Long, Long>();
+	private static final int ACCESS_TIME_FLUSH_THRESHOLD = 32;
+
+	// Partial files which a download is currently writing to
+	private final HashSet<String> partialFilesInUse = new HashSet<String>();
+
+	private final AtomicBoolean pruneInProgress = new AtomicBoolean(false);
+	private static final long PRUNE_SLICE_DURATION_MS = 50, PRUNE_SLICE_INTERVAL_MS = 100;
+
+	// The full prune compares every entry with the files on disk. Interrupted writes are recovered from the
+	// journal instead, so this is only needed for expiry and orphaned files, and doesn't run on every startup.
+	private static final long FULL_PRUNE_INTERVAL_MS = 24L * 60 * 60 * 1000;
+	private static final String PREF_LAST_FULL_PRUNE = "cache_last_full_prune";
+
+	// Eviction runs on every startup, and again once more has been written since the last pass than the
+	// headroom it left below the size limits
+	private final AtomicBoolean evictionQueued = new AtomicBoolean(false);
+	private final AtomicLong bytesWrittenSinceEviction = new AtomicLong(0);
+	private volatile long evictionHeadroomBytes = 0;
+
+	// After reads for any request, including thumbnails and precached images
+	private static final int EVICTION_PRIORITY = 1000;
+
+	// Held while compacting, as both eviction and the full prune may do it
+	private final Object compactionLock = new Object();
+
+	// Journal entries recovered per startup. Any more are recovered next time.
+	private static final int JOURNAL_RECOVERY_LIMIT = 64;
+
+	// Writes started before this were interrupted by the process ending
+	private final long startTime = RRTime.utcCurrentTimeMillis();
+
 	private final PrioritisedDownloadQueue downloadQueue;
-	private final PrioritisedCachedThreadPool mDiskCacheThreadPool = new PrioritisedCachedThreadPool(2, "Disk Cache");
+
+	// Thumbnails and JSON responses up to this size are appended to a segment, rather than each having a file
+	private static final long SEGMENT_MAX_ENTRY_BYTES = 64 * 1024;
+
+	/**
+	 * Whether a response is appended to a segment rather than given a file of its own. Only types which are
+	 * always read through ReadableCacheFile.getInputStream() are stored this way, as data in a segment has no
+	 * URI: JSON, and thumbnails. Images and videos, which may be passed to a player by URI, always get a file.
+	 */
+	private static boolean isStoredInSegment(final CacheRequest request, final long size) {
+		return size <= SEGMENT_MAX_ENTRY_BYTES
+				&& (request.isJson || request.fileType == Constants.FileType.THUMBNAIL);
+	}
+
+	// Segments are compacted once less than this fraction of their space is used by entries
+	private static final double SEGMENT_COMPACTION_THRESHOLD = 0.5;
+
+	private final CacheSegmentStore segmentStore;
+
+	// Counted down once interrupted writes have been recovered. Lookups and pruning wait for this.
+	private final CountDownLatch recoveryDone = new CountDownLatch(1);
+
+	private final CacheMetrics metrics = new CacheMetrics();
 
 	private final Context context;
 
@@ -133,44 +213,67 @@ public final class CacheManager {
 		this.context = context;
 
 		dbManager = new CacheDbManager(context);
+		segmentStore = new CacheSegmentStore(new File(context.getCacheDir(), "segments"));
 
 		final HttpClient httpClient = createHttpClient(context);
 		downloadQueue = new PrioritisedDownloadQueue(httpClient);
 
+		// Interrupted writes are recovered off the UI thread, but before any lookup can see their entries
+		Scheduler.add(Scheduler.Lane.DISK_IO, Scheduler.PRIORITY_URGENT, new Runnable() {
+			public void run() {
+				try {
+					recoverInterruptedWrites();
+					pruneTemp();
+				} catch(Throwable t) {
+					BugReportActivity.handleGlobalError(context, t);
+				} finally {
+					recoveryDone.countDown();
+				}
+			}
+		});
+
+		// The last session may have ended over the limits, or they may have been lowered since
+		queueEviction();
+
 		final RequestHandlerThread requestHandler = new RequestHandlerThread();
 		requestHandler.start();
 	}
 
-	private Long isCacheFile(final String file) {
+	// Returns the ID of the cache file with this name, or -1 if it isn't a cache file
+	private static long getCacheFileId(final String file) {
+
+		if(!file.endsWith(ext)) return -1;
 
-		if(!file.endsWith(ext)) return null;
+		final String idString = file.substring(0, file.length() - ext.length());
+		if(idString.length() == 0) return -1;
 
-		final String[] fileSplit = file.split("\\.");
-		if(fileSplit.length != 2) return null;
+		for(int i = 0; i < idString.length(); i++) {
+			if(idString.charAt(i) < '0' || idString.charAt(i) > '9') return -1;
+		}
 
 		try {
-			return Long.parseLong(fileSplit[0]);
-		} catch(Exception e) {
-			return null;
+			return Long.parseLong(idString);
+		} catch(NumberFormatException e) {
+			return -1;
 		}
 	}
 
-	private void getCacheFileList(final File dir, final HashSet<Long> currentFiles) {
+	private static void getCacheFileList(final File dir, final LongArrayList currentFiles) {
 
 		final String[] list = dir.list();
 		if(list == null) return;
 
 		for(final String file : list) {
 
-			final Long cacheFileId = isCacheFile(file);
+			final long cacheFileId = getCacheFileId(file);
 
-			if(cacheFileId != null) {
+			if(cacheFileId >= 0) {
 				currentFiles.add(cacheFileId);
 			}
 		}
 	}
 
-	private static void pruneTemp(final File dir) {
+	private void pruneTemp(final File dir, final HashSet<String> journalTmpPaths) {
 
 		final String[] list = dir.list();
 		if(list == null) return;
@@ -178,30 +281,122 @@ public final class CacheManager {
 		for(final String file : list) {
 
 			if(file.endsWith(tempExt)) {
-				new File(dir, file).delete();
+
+				final File tmpFile = new File(dir, file);
+
+				// Files in the journal are left for recovery, and newer files may still be being written
+				if(!journalTmpPaths.contains(tmpFile.getAbsolutePath()) && tmpFile.lastModified() < startTime) {
+					tmpFile.delete();
+				}
+
+			} else if(file.endsWith(partialExt)) {
+
+				final File partialFile = new File(dir, file);
+
+				if(partialFile.lastModified() < RRTime.utcCurrentTimeMillis() - PARTIAL_MAX_AGE_MS) {
+					partialFile.delete();
+				}
 			}
 		}
 	}
 
-	public void pruneTemp() {
+	private void pruneTemp() {
+
+		dbManager.deletePartialDownloadsBeforeTimestamp(RRTime.utcCurrentTimeMillis() - PARTIAL_MAX_AGE_MS);
+
+		final HashSet<String> journalTmpPaths = dbManager.getJournalTmpPaths();
 
 		final File externalCacheDir = context.getExternalCacheDir();
 		final File internalCacheDir = context.getCacheDir();
 
 		if(externalCacheDir != null) {
-			pruneTemp(externalCacheDir);
+			pruneTemp(externalCacheDir, journalTmpPaths);
 		}
 
 		if(internalCacheDir != null) {
-			pruneTemp(internalCacheDir);
+			pruneTemp(internalCacheDir, journalTmpPaths);
+		}
+	}
+
+	/**
+	 * Finishes or undoes cache writes which were interrupted while their file was being moved into place.
+	 * If the file reached its destination, or the temporary file is complete, the entry is completed.
+	 * Otherwise the entry and any files are removed. Must be called before pruneTemp().
+	 */
+	private void recoverInterruptedWrites() {
+
+		final ArrayList<CacheDbManager.JournalEntry> journal
+				= dbManager.getJournal(startTime, JOURNAL_RECOVERY_LIMIT);
+
+		int completed = 0, rolledBack = 0;
+
+		for(final CacheDbManager.JournalEntry entry : journal) {
+
+			final File tmpFile = new File(entry.tmpPath);
+			final File dstFile = new File(entry.dstDir, entry.id + ext);
+
+			try {
+				if(dstFile.exists() && dstFile.length() == entry.size) {
+					dbManager.setEntryDone(entry.id);
+					tmpFile.delete();
+					completed++;
+					continue;
+				}
+
+				if(tmpFile.exists() && tmpFile.length() == entry.size) {
+					General.moveFile(tmpFile, dstFile);
+					dbManager.setEntryDone(entry.id);
+					completed++;
+					continue;
+				}
+
+			} catch(IOException e) {
+				Log.e("CacheManager", "Error recovering cache entry " + entry.id, e);
+			}
+
+			dbManager.delete(entry.id);
+			tmpFile.delete();
+			dstFile.delete();
+			rolledBack++;
+		}
+
+		if(!journal.isEmpty()) {
+			Log.i("CacheManager", String.format("Recovered interrupted writes: %d completed, %d rolled back", completed, rolledBack));
 		}
 	}
 
-	public synchronized void pruneCache() {
+	/**
+	 * Calls pruneCache() if it hasn't finished successfully in the last day.
+	 */
+	public void pruneCacheIfDue() {
+
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+		if(RRTime.since(prefs.getLong(PREF_LAST_FULL_PRUNE, 0)) >= FULL_PRUNE_INTERVAL_MS) {
+			pruneCache();
+		}
+	}
+
+	/**
+	 * Removes old entries, and files without entries, then compacts the segments. The first part is done
+	 * in short slices, each of which waits until no requests are waiting to be handled. This may take a
+	 * while, so it must not be called on the UI thread. Eviction is done separately: see queueEviction().
+	 */
+	public void pruneCache() {
+
+		if(!pruneInProgress.compareAndSet(false, true)) {
+			return;
+		}
 
 		try {
 
-			final HashSet<Long> currentFiles = new HashSet<Long>(128);
+			// Entries of interrupted writes would otherwise look like orphans
+			recoveryDone.await();
+
+			// Read before listing the files, so that entries created in the meantime aren't mistaken for orphans
+			final long maxId = dbManager.getMaxId();
+
+			final LongArrayList currentFiles = new LongArrayList(1024);
 
 			final File externalCacheDir = context.getExternalCacheDir();
 			final File internalCacheDir = context.getCacheDir();
@@ -217,41 +412,383 @@ public final class CacheManager {
 			final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 			final HashMap<Integer, Long> maxAge = PrefsUtility.pref_cache_maxage(context, prefs);
 
-			final LinkedList<Long> filesToDelete = dbManager.getFilesToPrune(currentFiles, maxAge, 72);
-			for(final long id : filesToDelete) {
-				fileDeletionQueue.enqueue(id);
+			final CachePruner pruner = new CachePruner(dbManager, new CachePruner.FileDeleter() {
+				public void deleteFile(final long id) {
+					queueFileDeletion(id);
+				}
+			}, currentFiles.getArray(), currentFiles.size(), maxId, maxAge, 72);
+
+			while(!pruner.runSlice(PRUNE_SLICE_DURATION_MS)) {
+				waitForIdle();
 			}
 
+			compactSegments();
+
+			prefs.edit().putLong(PREF_LAST_FULL_PRUNE, RRTime.utcCurrentTimeMillis()).commit();
+
 		} catch(Throwable t) {
 			BugReportActivity.handleGlobalError(context, t);
+
+		} finally {
+			pruneInProgress.set(false);
+		}
+	}
+
+	// Queues an eviction pass on the disk lane, unless one is already waiting
+	private void queueEviction() {
+
+		if(!evictionQueued.compareAndSet(false, true)) {
+			return;
+		}
+
+		Scheduler.add(Scheduler.Lane.DISK_IO, EVICTION_PRIORITY, new Runnable() {
+			public void run() {
+				try {
+					evict();
+				} catch(Throwable t) {
+					BugReportActivity.handleGlobalError(context, t);
+				} finally {
+					evictionQueued.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Evicts the least recently read entries until the cache is within its size limits. If nothing needs
+	 * evicting, this only sums the sizes of the entries, so it's cheap enough to run on every startup.
+	 */
+	private void evict() throws InterruptedException {
+
+		// Entries of interrupted writes may not have their size yet
+		recoveryDone.await();
+
+		fillInUnknownFileInfo();
+		flushAccessTimes();
+
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		final long maxSize = PrefsUtility.pref_cache_maxsize(context, prefs);
+		final ArrayList<CacheSizeBudget> budgets = PrefsUtility.pref_cache_maxsize_budgets(context, prefs);
+
+		// Anything written from now on is counted against the headroom found below
+		bytesWrittenSinceEviction.set(0);
+
+		final CacheDbManager.Eviction eviction = dbManager.getFilesToEvict(maxSize, budgets);
+		evictionHeadroomBytes = eviction.headroomBytes;
+
+		for(final long id : eviction.ids) {
+			queueFileDeletion(id);
+		}
+
+		// Entries evicted from segments only give back their space once the segment is compacted
+		if(!eviction.ids.isEmpty()) {
+			compactSegments();
+		}
+	}
+
+	private void onEntryWritten(final long size) {
+		if(bytesWrittenSinceEviction.addAndGet(size) > evictionHeadroomBytes) {
+			queueEviction();
+		}
+	}
+
+	// Waits between pruning slices, and for as long as there are requests waiting to be handled
+	private void waitForIdle() throws InterruptedException {
+
+		Thread.sleep(PRUNE_SLICE_INTERVAL_MS);
+
+		while(!requests.isEmpty()) {
+			Thread.sleep(PRUNE_SLICE_INTERVAL_MS);
+		}
+	}
+
+	// Looks for the files of entries written by older versions, so that they don't need to be looked for again
+	private void fillInUnknownFileInfo() {
+
+		final LinkedList<Long> ids = dbManager.getEntriesWithUnknownFileInfo();
+		if(ids.isEmpty()) return;
+
+		final long[] idArray = new long[ids.size()];
+		final int[] locations = new int[ids.size()];
+		final long[] sizes = new long[ids.size()];
+
+		int count = 0;
+
+		final CacheFileLocator locator = getFileLocator();
+
+		for(final long id : ids) {
+
+			final File f = locator.findExistingFile(id);
+
+			idArray[count] = id;
+
+			if(f == null) {
+				// Removed by the next prune
+				locations[count] = CacheEntry.LOCATION_UNKNOWN;
+				sizes[count] = 0;
+
+			} else {
+				locations[count] = locator.getLocation(f);
+				sizes[count] = f.length();
+			}
+
+			count++;
+		}
+
+		dbManager.setFileInfo(idArray, locations, sizes, count);
+	}
+
+	/**
+	 * Deletes segments which no longer have any entries, and copies the entries of mostly-empty segments to
+	 * the end of the current one, so that the old segment can be deleted. Segments whose file has gone
+	 * have their entries removed.
+	 */
+	private void compactSegments() throws InterruptedException {
+
+		synchronized(compactionLock) {
+
+			// Anything written from now on goes into this segment or a later one
+			final long currentSegment = segmentStore.getCurrentSegment();
+
+			final HashMap<Long, Long> usage = dbManager.getSegmentUsage();
+			final ArrayList<Long> segments = segmentStore.listSegments();
+
+			for(final long segment : usage.keySet()) {
+				if(segment < currentSegment && !segments.contains(segment)) {
+					final CacheDbManager.SegmentContents contents = dbManager.getSegmentContents(segment);
+					dbManager.deleteEntries(contents.ids, contents.count);
+				}
+			}
+
+			int segmentsCompacted = 0, entriesMoved = 0;
+			long bytesDeleted = 0;
+
+			for(final long segment : segments) {
+
+				if(segment >= currentSegment) continue;
+
+				final long length = segmentStore.getSegmentLength(segment);
+				final Long usedBytes = usage.get(segment);
+
+				if(usedBytes != null && usedBytes >= length * SEGMENT_COMPACTION_THRESHOLD) continue;
+
+				if(usedBytes != null) {
+
+					final CacheDbManager.SegmentContents contents = dbManager.getSegmentContents(segment);
+
+					final long[] newOffsets = new long[contents.count];
+					long newSegment = -1;
+					int moved = 0;
+
+					try {
+						for(int i = 0; i < contents.count; i++) {
+
+							final CacheSegmentStore.Location newLocation
+									= segmentStore.copy(segment, contents.offsets[i], contents.sizes[i]);
+
+							// A new segment was started, so the entries copied so far are recorded first
+							if(newSegment >= 0 && newLocation.segment != newSegment) {
+								moveToSegment(contents, moved, i, newSegment, newOffsets);
+								moved = i;
+							}
+
+							newSegment = newLocation.segment;
+							newOffsets[i] = newLocation.offset;
+						}
+
+					} catch(IOException e) {
+						// The remaining entries are left where they are, and the segment is tried again next time
+						Log.e("CacheManager", "Error compacting cache segment " + segment, e);
+						continue;
+					}
+
+					if(newSegment >= 0) {
+						moveToSegment(contents, moved, contents.count, newSegment, newOffsets);
+					}
+
+					entriesMoved += contents.count;
+				}
+
+				// Readers which found an entry before it was moved may be about to open the old segment. Reads
+				// which are still queued keep it pinned, and it's deleted by a later compaction instead.
+				waitForForegroundIo();
+
+				if(segmentStore.deleteSegment(segment)) {
+					bytesDeleted += length;
+					bytesReclaimed.addAndGet(length);
+					segmentsCompacted++;
+				}
+			}
+
+			if(segmentsCompacted > 0) {
+				Log.i("CacheManager", String.format("Compacted %d cache segments, moving %d entries and reclaiming %d bytes",
+						segmentsCompacted, entriesMoved, bytesDeleted));
+			}
+		}
+	}
+
+	// Records the new location of the entries from start (inclusive) to end (exclusive)
+	private void moveToSegment(final CacheDbManager.SegmentContents contents, final int start, final int end,
+							   final long newSegment, final long[] newOffsets) {
+
+		final int count = end - start;
+		if(count <= 0) return;
+
+		final long[] ids = new long[count];
+		final long[] offsets = new long[count];
+
+		System.arraycopy(contents.ids, start, ids, 0, count);
+		System.arraycopy(newOffsets, start, offsets, 0, count);
+
+		dbManager.moveToSegment(ids, newSegment, offsets, count);
+	}
+
+	private void recordAccess(final long id) {
+		synchronized(pendingAccessTimes) {
+			pendingAccessTimes.put(id, RRTime.utcCurrentTimeMillis());
+		}
+	}
+
+	private void flushAccessTimes() {
+		flushAccessTimes(1);
+	}
+
+	private void flushAccessTimes(final int threshold) {
+
+		final HashMap<Long, Long> accessTimes;
+
+		synchronized(pendingAccessTimes) {
+			if(pendingAccessTimes.isEmpty() || pendingAccessTimes.size() < threshold) return;
+			accessTimes = new HashMap<Long, Long>(pendingAccessTimes);
+			pendingAccessTimes.clear();
 		}
 
+		dbManager.updateLastAccess(accessTimes);
 	}
 
 	public synchronized void emptyTheWholeCache() {
 		dbManager.emptyTheWholeCache();
 	}
 
+	public RedditRateLimiter.State getRedditRateLimiterState() {
+		return downloadQueue.getRedditRateLimiter().getState();
+	}
+
+	public ArrayList<DownloadHostStats> getDownloadHostStats() {
+		return downloadQueue.getHostStats();
+	}
+
 	public void makeRequest(final CacheRequest request) {
+		request.madeAtNs = System.nanoTime();
 		requests.put(request);
 	}
 
+	public CacheMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Changes the priority of a request, by adding the adjustment to the priority it was created with. A
+	 * download which is still queued for the request is moved to its new place in the queue. May be called
+	 * before the request is made.
+	 */
+	public void updatePriority(final CacheRequest request, final int adjustment) {
+
+		request.setPriorityAdjustment(adjustment);
+
+		final CacheDownload download = request.getDownload();
+
+		if(download != null) {
+			downloadQueue.updatePriority(download);
+		}
+	}
+
+	/**
+	 * Cancels the request if it's waiting for a download which hasn't started. Requests which are being
+	 * read from the cache, or which haven't got as far as the download queue, are left alone.
+	 *
+	 * @return True if the request was cancelled.
+	 */
+	public boolean cancelIfNotStarted(final CacheRequest request) {
+
+		final CacheDownload download = request.getDownload();
+
+		if(download == null || download.isStarted()) {
+			return false;
+		}
+
+		request.cancel();
+		return true;
+	}
+
+	private void queueFileDeletion(final long id) {
+		fileDeletionQueue.enqueue(id);
+		fileDeletionThread.trigger();
+	}
+
+	/**
+	 * @return The total size of the cache files which have been deleted since the app started.
+	 */
+	public long getBytesReclaimed() {
+		return bytesReclaimed.get();
+	}
+
+	// Runs on the deletion thread until the queue is empty
 	private void processDeletionQueue() {
 
-		final int maxToDelete = 2;
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
+
+		int filesDeleted = 0;
+		long bytesDeleted = 0;
+
+		try {
+
+			while(true) {
+
+				waitForForegroundIo();
+
+				int deletedInBatch = 0;
+				Long toDelete = null;
 
-		int deleted = 0;
+				while(deletedInBatch < FILE_DELETION_BATCH_SIZE && (toDelete = fileDeletionQueue.dequeue()) != null) {
 
-		Long toDelete;
+					final File f = getExistingCacheFile(toDelete);
 
-		while(maxToDelete > deleted++ && (toDelete = fileDeletionQueue.dequeue()) != null) {
+					if(f != null) {
 
-			// Attempt to delete file
-			final File f = getExistingCacheFile(toDelete);
+						final long size = f.length();
+
+						if(f.delete()) {
+							filesDeleted++;
+							bytesDeleted += size;
+							bytesReclaimed.addAndGet(size);
+						} else {
+							f.deleteOnExit();
+						}
+					}
 
-			if(f != null && !f.delete()) {
-				f.deleteOnExit();
+					deletedInBatch++;
+				}
+
+				if(toDelete == null) {
+					break;
+				}
 			}
+
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+
+		if(filesDeleted > 0) {
+			Log.i("CacheManager", String.format("Deleted %d cache files, reclaiming %d bytes (%d in total)",
+					filesDeleted, bytesDeleted, bytesReclaimed.get()));
+		}
+	}
+
+	// Deletion is never urgent, so it waits while requests are being handled or cache files are being read
+	private void waitForForegroundIo() throws InterruptedException {
+		while(!requests.isEmpty() || foregroundReadsInProgress.get() > 0) {
+			Thread.sleep(100);
 		}
 	}
 
@@ -262,40 +799,107 @@ public final class CacheManager {
 	public class WritableCacheFile {
 
 		private final NotifyOutputStream os;
+		private final OutputStream bufferedOs;
+		private final Deflater deflater;
 		private long cacheFileId = -1;
 		private ReadableCacheFile readableCacheFile = null;
 		private final CacheRequest request;
 
-		private WritableCacheFile(final CacheRequest request, final UUID session, final String mimetype) throws IOException {
+		private WritableCacheFile(final CacheRequest request, final UUID session, final String mimetype,
+								  final String etag, final String lastModified,
+								  final File tmpFile, final String partialKey, final boolean append) throws IOException {
 
 			this.request = request;
 
-			final File tmpFile = new File(General.getBestCacheDir(context), UUID.randomUUID().toString() + tempExt);
-			final FileOutputStream fos = new FileOutputStream(tmpFile);
+			final FileOutputStream fos = new FileOutputStream(tmpFile, append);
+
+			bufferedOs = new BufferedOutputStream(fos, 8 * 1024);
 
-			final OutputStream bufferedOs = new BufferedOutputStream(fos, 8 * 1024);
+			// JSON compresses well, and is stored compressed. Partial files must stay appendable.
+			final int codec = request.isJson && partialKey == null ? CacheEntry.CODEC_DEFLATE : CacheEntry.CODEC_NONE;
+
+			final OutputStream encodedOs;
+
+			if(codec == CacheEntry.CODEC_DEFLATE) {
+				deflater = new Deflater(Deflater.BEST_SPEED);
+				encodedOs = new DeflaterOutputStream(bufferedOs, deflater, 8 * 1024);
+			} else {
+				deflater = null;
+				encodedOs = bufferedOs;
+			}
 
 			final NotifyOutputStream.Listener listener = new NotifyOutputStream.Listener() {
 				public void onClose() throws IOException {
 
-					cacheFileId = dbManager.newEntry(request, session, mimetype);
+					if(deflater != null) {
+						deflater.end();
+					}
 
-					final File dstFile = new File(General.getBestCacheDir(context), cacheFileId + ext);
-					General.moveFile(tmpFile, dstFile);
+					if(partialKey != null) {
+						dbManager.deletePartialDownload(partialKey);
+					}
+
+					final long size = tmpFile.length();
+
+					if(isStoredInSegment(request, size)) {
+
+						// If the app ends before the entry is inserted, the appended data is reclaimed by compaction
+						final CacheSegmentStore.Location segmentLocation = segmentStore.append(tmpFile);
+
+						try {
+							cacheFileId = dbManager.newSegmentEntry(request, session, mimetype, size, etag, lastModified,
+									codec, segmentLocation.segment, segmentLocation.offset);
+						} finally {
+							segmentStore.unpin(segmentLocation.segment);
+						}
+
+						tmpFile.delete();
+
+						readableCacheFile = new ReadableCacheFile(cacheFileId, codec, CacheEntry.LOCATION_SEGMENT, size,
+								segmentLocation.segment, segmentLocation.offset);
+
+						onEntryWritten(size);
+						return;
+					}
+
+					final File externalCacheDir = context.getExternalCacheDir();
+
+					final File dstDir = externalCacheDir != null ? externalCacheDir : context.getCacheDir();
+					final int location = externalCacheDir != null ? CacheEntry.LOCATION_EXTERNAL : CacheEntry.LOCATION_INTERNAL;
+					cacheFileId = dbManager.newEntry(request, session, mimetype, size, etag, lastModified,
+							codec, tmpFile, dstDir, location);
+
+					General.moveFile(tmpFile, new File(dstDir, cacheFileId + ext));
 
 					dbManager.setEntryDone(cacheFileId);
 
-					readableCacheFile = new ReadableCacheFile(cacheFileId);
+					readableCacheFile = new ReadableCacheFile(cacheFileId, codec, location, size, 0, 0);
+
+					onEntryWritten(size);
 				}
 			};
 
-			this.os = new NotifyOutputStream(bufferedOs, listener);
+			this.os = new NotifyOutputStream(encodedOs, listener);
 		}
 
 		public NotifyOutputStream getOutputStream() {
 			return os;
 		}
 
+		// Closes the file without adding it to the cache, leaving any partial file in place to be resumed
+		void abandon() {
+
+			try {
+				bufferedOs.close();
+			} catch(IOException e) {
+				Log.e("RR DEBUG abandon", "Error closing abandoned cache file");
+			}
+
+			if(deflater != null) {
+				deflater.end();
+			}
+		}
+
 		public ReadableCacheFile getReadableCacheFile() throws IOException {
 
 			if(readableCacheFile == null) {
@@ -320,17 +924,66 @@ public final class CacheManager {
 	public class ReadableCacheFile {
 
 		private final long id;
+		private final int codec, location;
+		private final long size, segment, segmentOffset;
 
-		private ReadableCacheFile(final long id) {
+		private ReadableCacheFile(final long id, final int codec, final int location, final long size,
+								  final long segment, final long segmentOffset) {
 			this.id = id;
+			this.codec = codec;
+			this.location = location;
+			this.size = size;
+			this.segment = segment;
+			this.segmentOffset = segmentOffset;
+		}
+
+		private ReadableCacheFile(final CacheEntry entry) {
+			this(entry.id, entry.codec, entry.location, entry.size, entry.segment, entry.segmentOffset);
 		}
 
+		// Returns the data as it was downloaded, decompressing it if necessary
 		public InputStream getInputStream() throws IOException {
-			return getCacheFileInputStream(id);
+			recordAccess(id);
+			return openInputStream();
 		}
 
+		private InputStream openInputStream() throws IOException {
+
+			final InputStream is;
+
+			if(location == CacheEntry.LOCATION_SEGMENT) {
+				is = segmentStore.openInputStream(segment, segmentOffset, size);
+
+			} else {
+
+				final File cacheFile = getCacheFile(id, location);
+
+				if(cacheFile == null) {
+					return null;
+				}
+
+				is = new FileInputStream(cacheFile);
+			}
+
+			final InputStream bufferedIs = new BufferedInputStream(is, 8 * 1024);
+
+			if(codec == CacheEntry.CODEC_DEFLATE) {
+				return new InflaterInputStream(bufferedIs);
+			}
+
+			return bufferedIs;
+		}
+
+		// Data which may be opened by URI is never stored in a segment (see isStoredInSegment()), so this only
+		// fails if a caller asks for the URI of JSON or a thumbnail
 		public Uri getUri() throws IOException {
-			return getCacheFileUri(id);
+
+			if(location == CacheEntry.LOCATION_SEGMENT) {
+				throw new IOException("Cache entry " + id + " is stored in a segment, and has no file");
+			}
+
+			recordAccess(id);
+			return getCacheFileUri(id, location);
 		}
 
 		@Override
@@ -339,49 +992,146 @@ public final class CacheManager {
 		}
 
 		public long getSize() {
-			return getExistingCacheFile(id).length();
+
+			if(size >= 0) {
+				return size;
+			}
+
+			final File file = getCacheFile(id, location);
+			return file == null ? 0 : file.length();
 		}
 	}
 
-	public WritableCacheFile openNewCacheFile(final CacheRequest request, final UUID session, final String mimetype) throws IOException {
-		return new WritableCacheFile(request, session, mimetype);
+	public WritableCacheFile openNewCacheFile(final CacheRequest request, final UUID session, final String mimetype,
+											  final String etag, final String lastModified) throws IOException {
+		final File tmpFile = new File(General.getBestCacheDir(context), UUID.randomUUID().toString() + tempExt);
+		return new WritableCacheFile(request, session, mimetype, etag, lastModified, tmpFile, null, false);
 	}
 
-	private File getExistingCacheFile(final long id) {
+	static String getPartialKey(final CacheRequest request) {
+		return General.sha1((request.user.username + "\n" + request.url.toString()).getBytes());
+	}
 
-		final File externalCacheDir = context.getExternalCacheDir();
+	private File getPartialFile(final String partialKey) {
+		return new File(General.getBestCacheDir(context), partialKey + partialExt);
+	}
 
-		if(externalCacheDir != null) {
-			final File fExternal = new File(externalCacheDir, id + ext);
+	/**
+	 * Reserves the partial file for the specified request, so that two downloads never write to it at once.
+	 *
+	 * @return The key of the partial file, or null if it is already in use, in which case the download
+	 * must not be resumable.
+	 */
+	String claimPartialFile(final CacheRequest request) {
 
-			if(fExternal.exists()) {
-				return fExternal;
-			}
+		final String partialKey = getPartialKey(request);
+
+		synchronized(partialFilesInUse) {
+			return partialFilesInUse.add(partialKey) ? partialKey : null;
 		}
+	}
 
-		final File fInternal = new File(context.getCacheDir(), id + ext);
+	void releasePartialFile(final String partialKey) {
+		synchronized(partialFilesInUse) {
+			partialFilesInUse.remove(partialKey);
+		}
+	}
+
+	/**
+	 * @return The partial download which can be resumed for the specified key, including the number of
+	 * bytes already downloaded, or null if there isn't one.
+	 */
+	CacheDbManager.PartialDownload getPartialDownload(final String partialKey) {
 
-		if(fInternal.exists()) {
-			return fInternal;
+		final CacheDbManager.PartialDownload partial = dbManager.getPartialDownload(partialKey);
+		final File partialFile = getPartialFile(partialKey);
+
+		if(partial == null || !partialFile.exists() || partialFile.length() == 0) {
+
+			if(partial != null || partialFile.exists()) {
+				deletePartialDownload(partialKey);
+			}
+
+			return null;
 		}
 
-		return null;
+		return partial.withLength(partialFile.length());
 	}
 
-	private InputStream getCacheFileInputStream(final long id) throws IOException {
+	/**
+	 * Opens the partial file for the specified key. Closing the output stream moves the file into the
+	 * cache, as with openNewCacheFile(), and abandoning it leaves the file in place to be resumed.
+	 *
+	 * @param append If true, data is written after the bytes which have already been downloaded.
+	 */
+	WritableCacheFile openPartialCacheFile(final CacheRequest request, final UUID session, final String mimetype,
+										   final String etag, final String lastModified,
+										   final String partialKey, final boolean append) throws IOException {
+		return new WritableCacheFile(request, session, mimetype, etag, lastModified,
+				getPartialFile(partialKey), partialKey, append);
+	}
 
-		final File cacheFile = getExistingCacheFile(id);
+	// Called after the partial file has been abandoned, so that the download can be resumed later
+	void savePartialDownload(final String partialKey, final String etag, final String lastModified) {
+		dbManager.setPartialDownload(partialKey, etag, lastModified);
+	}
 
-		if(cacheFile == null) {
+	void deletePartialDownload(final String partialKey) {
+		dbManager.deletePartialDownload(partialKey);
+		getPartialFile(partialKey).delete();
+	}
+
+	/**
+	 * Returns the cached copy of the requested data which the server may be asked to validate, or null
+	 * if there is no such copy, or it was stored without any validators.
+	 */
+	CacheEntry getEntryForRevalidation(final CacheRequest request) {
+
+		final CacheEntry entry = dbManager.selectMostRecent(request.url, request.user.username, request.requestSession);
+
+		if(entry == null || (entry.etag == null && entry.lastModified == null)) {
+			return null;
+		}
+
+		if(entry.location == CacheEntry.LOCATION_UNKNOWN && getExistingCacheFile(entry.id) == null) {
 			return null;
 		}
 
-		return new BufferedInputStream(new FileInputStream(cacheFile), 8 * 1024);
+		return entry;
+	}
+
+	// Called when the server confirms that the cached copy hasn't changed
+	CacheEntry markEntryRevalidated(final CacheEntry entry) {
+		return dbManager.refreshTimestamp(entry);
 	}
 
-	private Uri getCacheFileUri(final long id) throws IOException {
+	ReadableCacheFile getReadableCacheFile(final CacheEntry entry) {
+		return new ReadableCacheFile(entry);
+	}
 
-		final File cacheFile = getExistingCacheFile(id);
+	// Called when the data of an entry which was going to be served can't be read
+	void removeUnreadableEntry(final CacheEntry entry) {
+		dbManager.delete(entry.id);
+		queueFileDeletion(entry.id);
+	}
+
+	// The external directory may become available or unavailable while the app is running
+	private CacheFileLocator getFileLocator() {
+		return new CacheFileLocator(context.getExternalCacheDir(), context.getCacheDir());
+	}
+
+	private File getExistingCacheFile(final long id) {
+		return getFileLocator().findExistingFile(id);
+	}
+
+	// Doesn't check that the file is there. See CacheFileLocator.getFile().
+	private File getCacheFile(final long id, final int location) {
+		return getFileLocator().getFile(id, location);
+	}
+
+	private Uri getCacheFileUri(final long id, final int location) throws IOException {
+
+		final File cacheFile = getCacheFile(id, location);
 
 		if(cacheFile == null) {
 			return null;
@@ -403,9 +1153,12 @@ public final class CacheManager {
 
 			try {
 
+				recoveryDone.await();
+				dbManager.loadIndex();
+
 				CacheRequest request;
 				while((request = requests.take()) != null) {
-					processDeletionQueue();
+					flushAccessTimes(ACCESS_TIME_FLUSH_THRESHOLD);
 					handleRequest(request);
 				}
 
@@ -425,28 +1178,29 @@ public final class CacheManager {
 
 				case NEVER: {
 
-					final LinkedList<CacheEntry> result = dbManager.select(request.url, request.user.username, request.requestSession);
+					final CacheEntry entry = selectMostRecent(request);
 
-					if(result.size() == 0) {
+					if(entry == null) {
+						metrics.recordMiss(request.fileType);
 						request.notifyFailure(RequestFailureType.CACHE_MISS, null, null, "Could not find this data in the cache");
 
 					} else {
-						final CacheEntry entry = mostRecentFromList(result);
 						handleCacheEntryFound(entry, request);
 					}
 
 					break;
 				}
 
-				case IF_NECESSARY: {
+				case IF_NECESSARY:
+				case STALE_WHILE_REVALIDATE: {
 
-					final LinkedList<CacheEntry> result = dbManager.select(request.url, request.user.username, request.requestSession);
+					final CacheEntry entry = selectMostRecent(request);
 
-					if(result.size() == 0) {
+					if(entry == null) {
+						metrics.recordMiss(request.fileType);
 						queueDownload(request);
 
 					} else {
-						final CacheEntry entry = mostRecentFromList(result);
 						handleCacheEntryFound(entry, request);
 					}
 
@@ -459,17 +1213,15 @@ public final class CacheManager {
 			}
 		}
 
-		private CacheEntry mostRecentFromList(final LinkedList<CacheEntry> list) {
+		private CacheEntry selectMostRecent(final CacheRequest request) {
 
-			CacheEntry entry = null;
+			final long startTime = System.nanoTime();
 
-			for(final CacheEntry e : list) {
-				if(entry == null || entry.timestamp < e.timestamp) {
-					entry = e;
-				}
+			try {
+				return dbManager.selectMostRecent(request.url, request.user.username, request.requestSession);
+			} finally {
+				metrics.recordTiming(request.fileType, CacheMetrics.Timing.DB_LOOKUP, System.nanoTime() - startTime);
 			}
-
-			return entry;
 		}
 
 		private void queueDownload(final CacheRequest request) {
@@ -479,24 +1231,39 @@ public final class CacheManager {
 
 		private void handleCacheEntryFound(final CacheEntry entry, final CacheRequest request) {
 
-			final File cacheFile = getExistingCacheFile(entry.id);
-
-			if(cacheFile == null) {
+			// Entries with a known location are only checked once the read reaches the disk lane, rather than
+			// on this thread
+			final File cacheFile;
 
-				if(request.downloadType == CacheRequest.DownloadType.IF_NECESSARY) {
-					queueDownload(request);
-				} else {
-					request.notifyFailure(RequestFailureType.STORAGE, null, null, "A cache entry was found in the database, but the actual data couldn't be found. Press refresh to download the content again.");
-				}
+			if(entry.location == CacheEntry.LOCATION_SEGMENT) {
+				cacheFile = null;
+			} else if(entry.location == CacheEntry.LOCATION_UNKNOWN) {
+				cacheFile = getExistingCacheFile(entry.id);
+			} else {
+				cacheFile = getCacheFile(entry.id, entry.location);
+			}
 
+			if(cacheFile == null && entry.location != CacheEntry.LOCATION_SEGMENT) {
+				handleCacheFileMissing(entry, request);
 				return;
 			}
 
-			mDiskCacheThreadPool.add(new PrioritisedCachedThreadPool.Task() {
+			recordAccess(entry.id);
+
+			// Streamed JSON is turned into objects as it is read, which makes reading it CPU-bound
+			final Scheduler.Lane lane = request.isJson && request.isJsonStreamed()
+					? Scheduler.Lane.CPU_PARSE : Scheduler.Lane.DISK_IO;
+
+			// Compaction mustn't delete the segment while the read is queued
+			if(entry.location == CacheEntry.LOCATION_SEGMENT) {
+				segmentStore.pin(entry.segment);
+			}
+
+			Scheduler.add(lane, new PrioritisedCachedThreadPool.Task() {
 
 				@Override
 				public int getPrimaryPriority() {
-					return request.priority;
+					return request.getPriority();
 				}
 
 				@Override
@@ -507,37 +1274,143 @@ public final class CacheManager {
 				@Override
 				public void run() {
 
-					if(request.isJson) {
+					foregroundReadsInProgress.incrementAndGet();
+
+					try {
+						if(entry.location != CacheEntry.LOCATION_SEGMENT) {
+							deliverCacheEntry(entry, request);
+							return;
+						}
+
+						final CacheEntry currentEntry = repinSegmentEntry(entry);
+
+						if(currentEntry == null) {
+							handleCacheFileMissing(entry, request);
+							return;
+						}
 
 						try {
-							final InputStream cacheFileInputStream = getCacheFileInputStream(entry.id);
+							deliverCacheEntry(currentEntry, request);
+						} finally {
+							segmentStore.unpin(currentEntry.segment);
+						}
 
-							if(cacheFileInputStream == null) {
-								request.notifyFailure(RequestFailureType.CACHE_MISS, null, null, "Couldn't retrieve cache file");
-								return;
-							}
+					} finally {
+						foregroundReadsInProgress.decrementAndGet();
+					}
+				}
+			});
+		}
 
-							final JsonValue value = new JsonValue(cacheFileInputStream);
-							request.notifyJsonParseStarted(value, entry.timestamp, entry.session, true);
-							value.buildInThisThread();
+		// Called with the segment of the entry pinned. Compaction may have moved the entry after it was found,
+		// so it's looked up again, and the segment it's in now is pinned instead. Once the entry is seen in a
+		// pinned segment, that segment can't be deleted before the read is done. Returns null, with nothing
+		// pinned, if the entry has since been removed.
+		private CacheEntry repinSegmentEntry(final CacheEntry entry) {
 
-						} catch(Throwable t) {
-							dbManager.delete(entry.id);
-							fileDeletionQueue.enqueue(entry.id);
+			long pinnedSegment = entry.segment;
 
-							if(request.downloadType == CacheRequest.DownloadType.IF_NECESSARY) {
-								queueDownload(request);
-							} else {
-								request.notifyFailure(RequestFailureType.PARSE, t, null, "Error parsing the JSON stream");
-							}
+			while(true) {
 
-							return;
+				final CacheEntry currentEntry = dbManager.selectById(entry.id);
+
+				if(currentEntry == null || currentEntry.location != CacheEntry.LOCATION_SEGMENT) {
+					segmentStore.unpin(pinnedSegment);
+					return null;
+				}
+
+				if(currentEntry.segment == pinnedSegment) {
+					return currentEntry;
+				}
+
+				segmentStore.pin(currentEntry.segment);
+				segmentStore.unpin(pinnedSegment);
+				pinnedSegment = currentEntry.segment;
+			}
+		}
+
+		// The directory may have been cleared since the entry was written, so the entry is dropped, and the
+		// request is treated as a miss
+		private void handleCacheFileMissing(final CacheEntry entry, final CacheRequest request) {
+
+			metrics.recordMiss(request.fileType);
+			dbManager.delete(entry.id);
+
+			if(request.downloadType != CacheRequest.DownloadType.NEVER) {
+				queueDownload(request);
+			} else {
+				request.notifyFailure(RequestFailureType.STORAGE, null, null, "A cache entry was found in the database, but the actual data couldn't be found. Press refresh to download the content again.");
+			}
+		}
+
+		private void deliverCacheEntry(final CacheEntry entry, final CacheRequest request) {
+
+			metrics.recordTiming(request.fileType, CacheMetrics.Timing.QUEUED, System.nanoTime() - request.madeAtNs);
+
+			final File cacheFile = entry.location == CacheEntry.LOCATION_SEGMENT
+					? null : getFileLocator().findFile(entry.id, entry.location);
+
+			if(entry.location != CacheEntry.LOCATION_SEGMENT && cacheFile == null) {
+				handleCacheFileMissing(entry, request);
+				return;
+			}
+
+			// Only counted as a hit once the data has been found, as a missing file is counted as a miss
+			final long bytes = entry.size >= 0 ? entry.size : (cacheFile != null ? cacheFile.length() : 0);
+
+			if(request.isJson) {
+
+				try {
+					final InputStream cacheFileInputStream = new ReadableCacheFile(entry).openInputStream();
+
+					if(cacheFileInputStream == null) {
+						request.notifyFailure(RequestFailureType.CACHE_MISS, null, null, "Couldn't retrieve cache file");
+						return;
+					}
+
+					metrics.recordHit(request.fileType, bytes);
+
+					if(request.isJsonStreamed()) {
+
+						try {
+							request.notifyJsonStreamed(cacheFileInputStream, entry.timestamp, entry.session, true);
+						} finally {
+							cacheFileInputStream.close();
 						}
+
+					} else {
+						final JsonValue value = new JsonValue(cacheFileInputStream, request.getJsonProjection());
+						request.notifyJsonParseStarted(value, entry.timestamp, entry.session, true);
+						value.buildInThisThread();
+					}
+
+				} catch(Throwable t) {
+
+					// A segment entry is read from a pinned segment at its current place, so a failure here means
+					// the data itself is bad
+					dbManager.delete(entry.id);
+					queueFileDeletion(entry.id);
+
+					if(request.canDownloadAfterCacheFailure()) {
+						queueDownload(request);
+					} else {
+						request.notifyFailure(RequestFailureType.PARSE, t, null, "Error parsing the JSON stream");
 					}
 
-					request.notifySuccess(new ReadableCacheFile(entry.id), entry.timestamp, entry.session, true, entry.mimetype);
+					return;
 				}
-			});
+			}
+
+			if(!request.isJson) {
+				metrics.recordHit(request.fileType, bytes);
+			}
+
+			request.notifySuccess(new ReadableCacheFile(entry), entry.timestamp, entry.session, true, entry.mimetype);
+
+			// Only queued now, so that the refreshed copy can't be delivered before the cached one
+			if(request.downloadType == CacheRequest.DownloadType.STALE_WHILE_REVALIDATE) {
+				queueDownload(request);
+			}
 		}
 	}
 }
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.cache;
+
+import org.quantumbadger.redreader.common.LatencyHistogram;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts cache hits and misses, bytes served, and how long each stage of a request takes, separately for
+ * each file type (see Constants.FileType). Thread safe.
+ */
+public final class CacheMetrics {
+
+	public enum Timing {
+
+		// Finding the entry for a request in the database
+		DB_LOOKUP,
+
+		// From the request being made until its cache read or download starts
+		QUEUED,
+
+		// From the download starting until the response headers arrive
+		TIME_TO_FIRST_BYTE,
+
+		// The whole download, including reading the response
+		DOWNLOAD
+	}
+
+	private final HashMap<Integer, FileTypeMetrics> metrics = new HashMap<Integer, FileTypeMetrics>();
+
+	private static final class FileTypeMetrics {
+
+		private long hits = 0, misses = 0, bytesFromCache = 0, bytesFromNetwork = 0;
+
+		private final LatencyHistogram[] timings = new LatencyHistogram[Timing.values().length];
+
+		private FileTypeMetrics() {
+			for(int i = 0; i < timings.length; i++) {
+				timings[i] = new LatencyHistogram();
+			}
+		}
+	}
+
+	// Must be called with the lock held
+	private FileTypeMetrics get(final int fileType) {
+
+		FileTypeMetrics result = metrics.get(fileType);
+
+		if(result == null) {
+			result = new FileTypeMetrics();
+			metrics.put(fileType, result);
+		}
+
+		return result;
+	}
+
+	synchronized void recordHit(final int fileType, final long bytes) {
+		final FileTypeMetrics typeMetrics = get(fileType);
+		typeMetrics.hits++;
+		typeMetrics.bytesFromCache += bytes;
+	}
+
+	synchronized void recordMiss(final int fileType) {
+		get(fileType).misses++;
+	}
+
+	synchronized void recordNetworkBytes(final int fileType, final long bytes) {
+		get(fileType).bytesFromNetwork += bytes;
+	}
+
+	synchronized void recordTiming(final int fileType, final Timing timing, final long durationNs) {
+		get(fileType).timings[timing.ordinal()].record(durationNs);
+	}
+
+	/**
+	 * @return The metrics so far for each file type which has had any requests, in file type order.
+	 */
+	public synchronized TreeMap<Integer, Snapshot> getSnapshot() {
+
+		final TreeMap<Integer, Snapshot> result = new TreeMap<Integer, Snapshot>();
+
+		for(final Map.Entry<Integer, FileTypeMetrics> entry : metrics.entrySet()) {
+			result.put(entry.getKey(), new Snapshot(entry.getKey(), entry.getValue()));
+		}
+
+		return result;
+	}
+
+	public synchronized void reset() {
+		metrics.clear();
+	}
+
+	public static final class Snapshot {
+
+		public final int fileType;
+		public final long hits, misses, bytesFromCache, bytesFromNetwork;
+
+		private final TimingSnapshot[] timings;
+
+		private Snapshot(final int fileType, final FileTypeMetrics metrics) {
+
+			this.fileType = fileType;
+			hits = metrics.hits;
+			misses = metrics.misses;
+			bytesFromCache = metrics.bytesFromCache;
+			bytesFromNetwork = metrics.bytesFromNetwork;
+
+			timings = new TimingSnapshot[metrics.timings.length];
+
+			for(int i = 0; i < timings.length; i++) {
+				timings[i] = new TimingSnapshot(metrics.timings[i]);
+			}
+		}
+
+		public TimingSnapshot getTiming(final Timing timing) {
+			return timings[timing.ordinal()];
+		}
+
+		// Zero if there have been no hits or misses
+		public double getHitRate() {
+			return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+		}
+
+		@Override
+		public String toString() {
+
+			final StringBuilder sb = new StringBuilder(512);
+
+			sb.append(String.format("[File type %d : hits %d, misses %d, hit rate %.1f%%, %d bytes from cache, %d bytes from network",
+					fileType, hits, misses, getHitRate() * 100, bytesFromCache, bytesFromNetwork));
+
+			for(final Timing timing : Timing.values()) {
+				sb.append(", ").append(timing.name().toLowerCase()).append(' ').append(getTiming(timing));
+			}
+
+			return sb.append(']').toString();
+		}
+	}
+
+	public static final class TimingSnapshot {
+
+		public final long count, averageUs, p50Us, p90Us, p99Us, maxUs;
+
+		private TimingSnapshot(final LatencyHistogram histogram) {
+			count = histogram.getCount();
+			averageUs = histogram.getAverageUs();
+			p50Us = histogram.getPercentileUs(50);
+			p90Us = histogram.getPercentileUs(90);
+			p99Us = histogram.getPercentileUs(99);
+			maxUs = histogram.getMaxUs();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("[count %d, average %d us, p50 %d us, p90 %d us, p99 %d us, max %d us]",
+					count, averageUs, p50Us, p90Us, p99Us, maxUs);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.cache;
+
+import android.os.SystemClock;
+import android.util.Log;
+import org.quantumbadger.redreader.common.RRTime;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Removes cache entries which are too old, entries whose file is missing, and files which have no entry.
+ *
+ * The database is read in batches in ID order, and compared against a sorted list of the cache files on
+ * disk, so that neither needs to be held in memory as objects. Work is done in slices with a time limit,
+ * so that pruning can be spread out and doesn't hold the database lock for long.
+ *
+ * Entries and files created after the pruner was constructed are left alone. Entries stored in a segment
+ * have no file of their own, and only expire. Their space is reclaimed when the segment is compacted.
+ */
+final class CachePruner {
+
+	private static final int BATCH_SIZE = 256;
+
+	// An entry with no file may just not have been moved into place yet
+	private static final long MOVING_GRACE_PERIOD_MS = 60 * 1000;
+
+	interface FileDeleter {
+		void deleteFile(long id);
+	}
+
+	private final CacheDbManager dbManager;
+	private final FileDeleter fileDeleter;
+
+	private final long[] files;
+	private int filePos = 0;
+
+	private final HashMap<Integer, Long> maxAge;
+	private final long defaultMaxAge;
+
+	private final long maxId;
+	private final long startTime;
+
+	private long lastId = 0;
+	private boolean finished = false;
+
+	private final CacheDbManager.PruneBatch batch = new CacheDbManager.PruneBatch(BATCH_SIZE);
+	private final long[] entriesToDelete = new long[BATCH_SIZE];
+	private final long[] filesToDelete = new long[BATCH_SIZE];
+
+	private int entriesDeleted = 0, filesDeleted = 0;
+
+	/**
+	 * @param files The IDs of the cache files on disk, in any order. The array is sorted in place.
+	 * @param fileCount The number of elements of files which are used.
+	 * @param maxId The largest entry ID which existed before the files were listed.
+	 */
+	CachePruner(final CacheDbManager dbManager, final FileDeleter fileDeleter,
+				final long[] files, final int fileCount, final long maxId,
+				final HashMap<Integer, Long> maxAge, final long defaultMaxAge) {
+
+		this.dbManager = dbManager;
+		this.fileDeleter = fileDeleter;
+		this.files = sortUnique(files, fileCount);
+		this.maxId = maxId;
+		this.maxAge = maxAge;
+		this.defaultMaxAge = defaultMaxAge;
+		this.startTime = RRTime.utcCurrentTimeMillis();
+	}
+
+	// Sorts the array, and returns the distinct values. A file may be present in both cache directories.
+	private static long[] sortUnique(final long[] values, final int count) {
+
+		Arrays.sort(values, 0, count);
+
+		int unique = 0;
+
+		for(int i = 0; i < count; i++) {
+			if(unique == 0 || values[unique - 1] != values[i]) {
+				values[unique++] = values[i];
+			}
+		}
+
+		return unique == values.length ? values : Arrays.copyOf(values, unique);
+	}
+
+	boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Prunes until the time limit is reached, or there is nothing left to do. At least one batch is
+	 * processed, however small the limit.
+	 *
+	 * @return True if pruning has finished.
+	 */
+	boolean runSlice(final long maxDurationMs) {
+
+		final long sliceEnd = SystemClock.uptimeMillis() + maxDurationMs;
+
+		do {
+			processBatch();
+		} while(!finished && SystemClock.uptimeMillis() < sliceEnd);
+
+		if(finished) {
+			Log.i("CachePruner", String.format("Pruned %d entries and %d files", entriesDeleted, filesDeleted));
+		}
+
+		return finished;
+	}
+
+	private void processBatch() {
+
+		if(finished) return;
+
+		dbManager.selectForPruning(lastId, maxId, batch);
+
+		final long currentTime = RRTime.utcCurrentTimeMillis();
+
+		int entriesToDeleteCount = 0, filesToDeleteCount = 0;
+
+		for(int i = 0; i < batch.count; i++) {
+
+			final long id = batch.ids[i];
+			final boolean inSegment = batch.inSegment[i];
+
+			// Files before this entry have no entry of their own
+			while(filePos < files.length && files[filePos] < id) {
+				deleteFile(files[filePos++]);
+			}
+
+			final boolean hasFile = filePos < files.length && files[filePos] == id && !inSegment;
+
+			if(hasFile) {
+				filePos++;
+			}
+
+			final long timestamp = batch.timestamps[i];
+
+			if(inSegment) {
+
+				if(timestamp < currentTime - getMaxAge(batch.types[i])) {
+					entriesToDelete[entriesToDeleteCount++] = id;
+				}
+
+			} else if(!hasFile) {
+
+				if(!batch.moving[i] || timestamp < startTime - MOVING_GRACE_PERIOD_MS) {
+					entriesToDelete[entriesToDeleteCount++] = id;
+				}
+
+			} else if(timestamp < currentTime - getMaxAge(batch.types[i])) {
+				entriesToDelete[entriesToDeleteCount++] = id;
+				filesToDelete[filesToDeleteCount++] = id;
+			}
+
+			lastId = id;
+		}
+
+		if(entriesToDeleteCount > 0) {
+			dbManager.deleteEntries(entriesToDelete, entriesToDeleteCount);
+			entriesDeleted += entriesToDeleteCount;
+		}
+
+		// Only removed once their entries are gone, so that nothing finds an entry without a file
+		for(int i = 0; i < filesToDeleteCount; i++) {
+			deleteFile(filesToDelete[i]);
+		}
+
+		if(batch.count < BATCH_SIZE) {
+
+			// There are no entries left, so the remaining files don't have any
+			while(filePos < files.length && files[filePos] <= maxId) {
+				deleteFile(files[filePos++]);
+			}
+
+			finished = true;
+		}
+	}
+
+	private long getMaxAge(final int type) {
+
+		final Long typeMaxAge = maxAge.get(type);
+
+		if(typeMaxAge == null) {
+			Log.e("RR DEBUG cache", "Using default age! Filetype " + type);
+			return defaultMaxAge;
+		}
+
+		return typeMaxAge;
+	}
+
+	private void deleteFile(final long id) {
+		fileDeleter.deleteFile(id);
+		filesDeleted++;
+	}
+}
@@ -18,6 +18,8 @@
 package org.quantumbadger.redreader.cache;
 
 import android.content.Context;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import org.apache.http.NameValuePair;
 import org.apache.http.StatusLine;
 import org.apache.http.client.CookieStore;
@@ -25,16 +27,20 @@ import org.quantumbadger.redreader.account.RedditAccount;
 import org.quantumbadger.redreader.activities.BugReportActivity;
 import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
 import org.quantumbadger.redreader.common.RRError;
+import org.quantumbadger.redreader.common.Scheduler;
+import org.quantumbadger.redreader.jsonwrap.JsonProjection;
 import org.quantumbadger.redreader.jsonwrap.JsonValue;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
 
 public abstract class CacheRequest implements Comparable<CacheRequest> {
 
-	private static final PrioritisedCachedThreadPool JSON_NOTIFY_THREADS = new PrioritisedCachedThreadPool(2, "JSON notify");
-
 	public final URI url;
 	public final RedditAccount user;
 	public final UUID requestSession;
@@ -55,10 +61,34 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 	private CacheDownload download;
 	private boolean cancelled;
 
+	// Set by CacheManager when the request is made, for measuring how long it waits
+	volatile long madeAtNs;
+
+	// Added to the priority, for example as the item this request is for moves on or off the screen
+	private volatile int priorityAdjustment = 0;
+
+	// A request may receive more than one JSON value, and they are delivered one at a time. Streamed values
+	// are delivered on the thread which reads them, so they arrive in order already. Parsed values are
+	// queued here, and a single callback task at a time works through the queue in order.
+	private final Object jsonCallbackLock = new Object();
+	private final LinkedList<Runnable> pendingJsonCallbacks = new LinkedList<Runnable>();
+	private boolean jsonCallbackTaskQueued = false;
+
+	// Set by onJsonStreamed() once it has passed anything on
+	private volatile boolean jsonStreamDelivered = false;
+
 	public final Context context;
 
 	public enum DownloadType {
-		NEVER, IF_NECESSARY, FORCE
+		NEVER, IF_NECESSARY, FORCE,
+
+		/**
+		 * Delivers the most recent cached copy straight away (with fromCache set), then downloads the data
+		 * again and delivers that as well (with fromCache unset). If there's no cached copy, this is the
+		 * same as IF_NECESSARY. A failure after the cached copy has been delivered only means that the
+		 * refresh failed.
+		 */
+		STALE_WHILE_REVALIDATE
 	}
 
 	// Called by CacheDownload
@@ -68,13 +98,29 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 		return true;
 	}
 
+	synchronized CacheDownload getDownload() {
+		return download;
+	}
+
+	// Called by CacheManager
+	void setPriorityAdjustment(final int adjustment) {
+		priorityAdjustment = adjustment;
+	}
+
+	/**
+	 * The priority passed to the constructor, plus any adjustment made since by CacheManager.updatePriority().
+	 */
+	public final int getPriority() {
+		return (int)Math.max(Integer.MIN_VALUE + 1, Math.min(Integer.MAX_VALUE, (long)priority + priorityAdjustment));
+	}
+
 	// Can be called to cancel the request
 	public synchronized void cancel() {
 
 		cancelled = true;
 
 		if(download != null) {
-			download.cancel();
+			download.cancel(this);
 			download = null;
 		}
 	}
@@ -137,8 +183,10 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 
 	public final boolean isHigherPriorityThan(final CacheRequest another) {
 
-		if(priority != another.priority) {
-			return priority < another.priority;
+		final int priority = getPriority(), anotherPriority = another.getPriority();
+
+		if(priority != anotherPriority) {
+			return priority < anotherPriority;
 		} else {
 			return listId < another.listId;
 		}
@@ -163,6 +211,48 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 		throw new RuntimeException("CacheRequest method has not been overridden");
 	}
 
+	/**
+	 * The parts of the JSON response which are passed to onJsonParseStarted(). By default the whole
+	 * response is kept. A download is only shared between requests with the same projection.
+	 */
+	public JsonProjection getJsonProjection() {
+		return null;
+	}
+
+	/**
+	 * JSON requests which return true receive the data through onJsonStreamed(), rather than as a JsonValue
+	 * tree. A download for such a request is never shared with other requests, as the data can only be
+	 * read once.
+	 */
+	public boolean isJsonStreamed() {
+		return false;
+	}
+
+	/**
+	 * Called in the thread reading the data, which waits until this returns. Anything thrown is treated as
+	 * a parse failure: a cached copy is discarded and downloaded again, and a download fails. Once anything
+	 * read has been passed on, setJsonStreamDelivered() must be called, after which a cached copy which
+	 * fails is not downloaded again, as that would pass it on twice. The parser must not be read past the
+	 * end of the root value, and doesn't need to be closed.
+	 */
+	protected void onJsonStreamed(final JsonParser jp, final long timestamp, final UUID session, final boolean fromCache)
+			throws IOException, InterruptedException, IllegalAccessException, InstantiationException,
+			NoSuchMethodException, InvocationTargetException {
+		throw new RuntimeException("CacheRequest method has not been overridden");
+	}
+
+	protected final void setJsonStreamDelivered() {
+		jsonStreamDelivered = true;
+	}
+
+	/**
+	 * Whether a cached copy which couldn't be read can be replaced by downloading it again. Not if the
+	 * request may not download, or if onJsonStreamed() has already passed on part of the cached copy.
+	 */
+	public final boolean canDownloadAfterCacheFailure() {
+		return downloadType != DownloadType.NEVER && !jsonStreamDelivered;
+	}
+
 	public final void notifyFailure(final RequestFailureType type, final Throwable t, final StatusLine status, final String readableMessage) {
 		try {
 			onFailure(type, t, status, readableMessage);
@@ -204,11 +294,37 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 
 	public final void notifyJsonParseStarted(final JsonValue result, final long timestamp, final UUID session, final boolean fromCache) {
 
-		JSON_NOTIFY_THREADS.add(new PrioritisedCachedThreadPool.Task() {
+		final Runnable callback = new Runnable() {
+			public void run() {
+				try {
+					synchronized(jsonCallbackLock) {
+						onJsonParseStarted(result, timestamp, session, fromCache);
+					}
+				} catch(Throwable t1) {
+					try {
+						onCallbackException(t1);
+					} catch(Throwable t2) {
+						BugReportActivity.addGlobalError(new RRError(null, null, t1));
+						BugReportActivity.handleGlobalError(context, t2);
+					}
+				}
+			}
+		};
+
+		synchronized(pendingJsonCallbacks) {
+
+			pendingJsonCallbacks.add(callback);
+
+			// The task already queued will get to this one after the earlier values
+			if(jsonCallbackTaskQueued) return;
+			jsonCallbackTaskQueued = true;
+		}
+
+		Scheduler.add(Scheduler.Lane.CALLBACK, new PrioritisedCachedThreadPool.Task() {
 
 			@Override
 			public int getPrimaryPriority() {
-				return priority;
+				return getPriority();
 			}
 
 			@Override
@@ -219,20 +335,43 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 			@Override
 			public void run() {
 
-				try {
-					onJsonParseStarted(result, timestamp, session, fromCache);
-				} catch(Throwable t1) {
-					try {
-						onCallbackException(t1);
-					} catch(Throwable t2) {
-						BugReportActivity.addGlobalError(new RRError(null, null, t1));
-						BugReportActivity.handleGlobalError(context, t2);
+				while(true) {
+
+					final Runnable next;
+
+					synchronized(pendingJsonCallbacks) {
+
+						next = pendingJsonCallbacks.poll();
+
+						if(next == null) {
+							jsonCallbackTaskQueued = false;
+							return;
+						}
 					}
+
+					next.run();
 				}
 			}
 		});
 	}
 
+	// The stream is left open, and belongs to the caller
+	public final void notifyJsonStreamed(final InputStream stream, final long timestamp, final UUID session, final boolean fromCache)
+			throws IOException, InterruptedException, IllegalAccessException, InstantiationException,
+			NoSuchMethodException, InvocationTargetException {
+
+		final JsonParser jp = new JsonFactory().createParser(stream);
+		jp.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+		try {
+			synchronized(jsonCallbackLock) {
+				onJsonStreamed(jp, timestamp, session, fromCache);
+			}
+		} finally {
+			jp.close();
+		}
+	}
+
 	public final void notifyDownloadNecessary() {
 		try {
 			onDownloadNecessary();
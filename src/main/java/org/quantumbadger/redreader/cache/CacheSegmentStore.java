@@ -0,0 +1,304 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.cache;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Stores small cache entries by appending them to a few large segment files, rather than giving each
+ * its own file. The database records the segment and offset of each entry.
+ *
+ * Data is only ever appended to the current segment. Space used by entries which have since been removed
+ * is reclaimed by compaction, which copies the remaining entries of a mostly-empty segment into the
+ * current one, and then deletes the old segment. A segment which is pinned by a read isn't deleted until
+ * a later compaction.
+ */
+final class CacheSegmentStore {
+
+	private static final String segmentExt = ".rr_cache_segment";
+
+	// A new segment is started once the current one reaches this size
+	private static final long MAX_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+	static final class Location {
+
+		final long segment, offset;
+
+		private Location(final long segment, final long offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+
+	private final File dir;
+
+	private long currentSegment;
+	private long currentLength;
+	private FileOutputStream currentOs = null;
+
+	// The number of reads of each segment which are queued or in progress
+	private final HashMap<Long, Integer> pins = new HashMap<Long, Integer>();
+
+	CacheSegmentStore(final File dir) {
+
+		this.dir = dir;
+
+		// Appending carries on in the newest segment. If the app ended part way through a write, the
+		// bytes it left at the end have no entry, and are reclaimed by compaction.
+		long newest = 0;
+
+		for(final long segment : listSegments()) {
+			newest = Math.max(newest, segment);
+		}
+
+		currentSegment = newest == 0 ? 1 : newest;
+		currentLength = getSegmentFile(currentSegment).length();
+	}
+
+	private File getSegmentFile(final long segment) {
+		return new File(dir, segment + segmentExt);
+	}
+
+	// Returns the ID of the segment with this name, or -1 if it isn't a segment
+	private static long getSegmentId(final String file) {
+
+		if(!file.endsWith(segmentExt)) return -1;
+
+		try {
+			final long result = Long.parseLong(file.substring(0, file.length() - segmentExt.length()));
+			return result > 0 ? result : -1;
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	ArrayList<Long> listSegments() {
+
+		final ArrayList<Long> result = new ArrayList<Long>();
+
+		final String[] list = dir.list();
+		if(list == null) return result;
+
+		for(final String file : list) {
+
+			final long segment = getSegmentId(file);
+
+			if(segment > 0) {
+				result.add(segment);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Segments with a lower ID than this are no longer written to, and may be compacted.
+	 */
+	synchronized long getCurrentSegment() {
+		return currentSegment;
+	}
+
+	long getSegmentLength(final long segment) {
+		return getSegmentFile(segment).length();
+	}
+
+	/**
+	 * Appends the contents of the file to the current segment. The segment is returned pinned, so that
+	 * compaction can't delete it before the entry is in the database, and must be unpinned after that.
+	 */
+	synchronized Location append(final File src) throws IOException {
+		final Location location = append(new FileInputStream(src), src.length());
+		pin(location.segment);
+		return location;
+	}
+
+	/**
+	 * Copies an entry from another segment to the end of the current one.
+	 */
+	Location copy(final long segment, final long offset, final long length) throws IOException {
+		return append(openInputStream(segment, offset, length), length);
+	}
+
+	private synchronized Location append(final InputStream is, final long length) throws IOException {
+
+		try {
+
+			if(currentLength > 0 && currentLength + length > MAX_SEGMENT_BYTES) {
+				closeCurrentSegment();
+				currentSegment++;
+				currentLength = 0;
+			}
+
+			if(currentOs == null) {
+				dir.mkdirs();
+				currentOs = new FileOutputStream(getSegmentFile(currentSegment), true);
+				currentLength = getSegmentFile(currentSegment).length();
+			}
+
+			final long offset = currentLength;
+
+			final byte[] buf = new byte[32 * 1024];
+			long remaining = length;
+
+			try {
+				while(remaining > 0) {
+
+					final int bytesRead = is.read(buf, 0, (int)Math.min(buf.length, remaining));
+					if(bytesRead < 0) throw new EOFException("Entry ended early");
+
+					currentOs.write(buf, 0, bytesRead);
+					remaining -= bytesRead;
+				}
+
+			} catch(IOException e) {
+				// The segment may now end part way through an entry
+				closeCurrentSegment();
+				currentLength = getSegmentFile(currentSegment).length();
+				throw e;
+			}
+
+			currentLength += length;
+
+			return new Location(currentSegment, offset);
+
+		} finally {
+			is.close();
+		}
+	}
+
+	private void closeCurrentSegment() {
+
+		if(currentOs == null) return;
+
+		try {
+			currentOs.close();
+		} catch(IOException ignored) {}
+
+		currentOs = null;
+	}
+
+	/**
+	 * Returns a stream of the entry at the specified offset. Reading it fails if the segment is shorter
+	 * than the entry should be.
+	 */
+	InputStream openInputStream(final long segment, final long offset, final long length) throws IOException {
+
+		final FileInputStream fis = new FileInputStream(getSegmentFile(segment));
+
+		try {
+			fis.getChannel().position(offset);
+		} catch(IOException e) {
+			fis.close();
+			throw e;
+		}
+
+		return new EntryInputStream(fis, length);
+	}
+
+	/**
+	 * Keeps a segment from being deleted until unpin() is called, so that an entry found in it can still be
+	 * read there. Pinning doesn't stop the entry being moved, so the caller must check that the entry is
+	 * still in this segment after pinning it.
+	 */
+	synchronized void pin(final long segment) {
+		final Integer count = pins.get(segment);
+		pins.put(segment, count == null ? 1 : count + 1);
+	}
+
+	synchronized void unpin(final long segment) {
+
+		final Integer count = pins.get(segment);
+
+		if(count == null || count <= 1) {
+			pins.remove(segment);
+		} else {
+			pins.put(segment, count - 1);
+		}
+	}
+
+	/**
+	 * Deletes a segment, unless it is pinned. Readers which already have it open can carry on reading it.
+	 */
+	synchronized boolean deleteSegment(final long segment) {
+
+		if(pins.containsKey(segment)) {
+			return false;
+		}
+
+		if(segment == currentSegment) {
+			closeCurrentSegment();
+			currentSegment++;
+			currentLength = 0;
+		}
+
+		return getSegmentFile(segment).delete();
+	}
+
+	private static final class EntryInputStream extends InputStream {
+
+		private final InputStream in;
+		private long remaining;
+
+		private EntryInputStream(final InputStream in, final long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			if(remaining <= 0) return -1;
+
+			final int result = in.read();
+			if(result < 0) throw new EOFException("Segment ended early");
+
+			remaining--;
+			return result;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+
+			if(remaining <= 0) return -1;
+			if(length == 0) return 0;
+
+			final int result = in.read(buffer, offset, (int)Math.min(length, remaining));
+			if(result < 0) throw new EOFException("Segment ended early");
+
+			remaining -= result;
+			return result;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -17,22 +17,28 @@
 
 package org.quantumbadger.redreader.cache;
 
-final class CacheDownloadThread extends Thread {
-	private final CacheDownload singleDownload;
+/**
+ * A limit on the total size of the cached data of one or more file types. The types share the limit, so
+ * it's the most their data can take up together.
+ */
+public final class CacheSizeBudget {
 
-	public CacheDownloadThread(
-			final CacheDownload singleDownload,
-			final boolean start,
-			final String name) {
+	public final long maxBytes;
+	private final int[] fileTypes;
 
-		super(name);
-		this.singleDownload = singleDownload;
-		if(start) start();
+	public CacheSizeBudget(final long maxBytes, final int... fileTypes) {
+		this.maxBytes = maxBytes;
+		this.fileTypes = fileTypes.clone();
 	}
 
-	@Override
-	public void run() {
-		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
-		singleDownload.doDownload();
+	public boolean covers(final int fileType) {
+
+		for(final int type : fileTypes) {
+			if(type == fileType) {
+				return true;
+			}
+		}
+
+		return false;
 	}
 }
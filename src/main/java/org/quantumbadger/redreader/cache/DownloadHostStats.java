@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.cache;
+
+public final class DownloadHostStats {
+
+	public final String host;
+	public final int inFlight, queued;
+	public final long completed, averageLatencyMs;
+
+	DownloadHostStats(final String host, final int inFlight, final int queued,
+					  final long completed, final long averageLatencyMs) {
+		this.host = host;
+		this.inFlight = inFlight;
+		this.queued = queued;
+		this.completed = completed;
+		this.averageLatencyMs = averageLatencyMs;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("[%s : in flight %d, queued %d, completed %d, average latency %d ms]",
+				host, inFlight, queued, completed, averageLatencyMs);
+	}
+}
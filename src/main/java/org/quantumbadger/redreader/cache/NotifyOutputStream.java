@@ -30,6 +30,12 @@ public class NotifyOutputStream extends FilterOutputStream {
 		this.listener = listener;
 	}
 
+	// FilterOutputStream would otherwise write the array one byte at a time
+	@Override
+	public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+		out.write(buffer, offset, length);
+	}
+
 	@Override
 	public void close() throws IOException {
 		super.close();
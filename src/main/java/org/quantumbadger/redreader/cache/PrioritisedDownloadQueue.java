@@ -18,19 +18,42 @@
 package org.quantumbadger.redreader.cache;
 
 import org.apache.http.client.HttpClient;
-import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
+import org.quantumbadger.redreader.common.Scheduler;
 
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 
-
+/**
+ * Non-reddit downloads are queued per host, and only a few from each host are handed to the network lane
+ * at once, so that one slow host can't take every thread. Together they never take the whole lane, so
+ * that a reddit download always has a thread. Whenever there's room, the most urgent download of a host
+ * with a free slot is started, and at equal priority the host with the fewest in flight goes first.
+ *
+ * Reddit API downloads are started one at a time, as allowed by the rate limiter.
+ */
 class PrioritisedDownloadQueue {
 
+	private static final int MAX_DOWNLOADS_PER_HOST = 3;
+
+	// One thread of the network lane is left for reddit downloads
+	private static final int MAX_HOST_DOWNLOADS = Scheduler.Lane.NETWORK_IO.getMaxThreads() - 1;
+
+	private int hostDownloadsInFlight = 0;
+
 	private final HashSet<CacheDownload> redditDownloadsQueued = new HashSet<CacheDownload>();
 
-	private final PrioritisedCachedThreadPool mDownloadThreadPool = new PrioritisedCachedThreadPool(5, "Download");
+	// Downloads which later requests for the same data can attach to, rather than downloading it again
+	private final HashMap<DownloadKey, CacheDownload> downloadsInProgress = new HashMap<DownloadKey, CacheDownload>();
+
+	private final HashMap<String, HostQueue> hostQueues = new HashMap<String, HostQueue>();
 
 	private final HttpClient httpClient;
 
+	private final RedditRateLimiter redditRateLimiter = new RedditRateLimiter();
+	private final BandwidthScheduler bandwidthScheduler = new BandwidthScheduler();
+
 	public PrioritisedDownloadQueue(final HttpClient httpClient) {
 		this.httpClient = httpClient;
 		new RedditQueueProcessor().start();
@@ -40,22 +63,171 @@ class PrioritisedDownloadQueue {
 		return httpClient;
 	}
 
-	public synchronized void add(final CacheRequest request, final CacheManager manager) {
+	RedditRateLimiter getRedditRateLimiter() {
+		return redditRateLimiter;
+	}
+
+	BandwidthScheduler getBandwidthScheduler() {
+		return bandwidthScheduler;
+	}
+
+	public void add(final CacheRequest request, final CacheManager manager) {
+
+		final DownloadKey key = DownloadKey.forRequest(request);
+
+		// A download which has refused the request, and mustn't be tried again
+		CacheDownload refused = null;
+
+		while(true) {
+
+			final CacheDownload existing;
+
+			synchronized(this) {
+
+				existing = key == null ? null : downloadsInProgress.get(key);
+
+				if(existing == null || existing == refused) {
+					startDownload(key, new CacheDownload(request, manager, this));
+					return;
+				}
+			}
+
+			// Outside the lock, as the request is sent any callbacks it has missed
+			if(existing.addSubscriber(request)) {
+
+				// The new request may be more urgent than the existing ones
+				Scheduler.updatePriority(Scheduler.Lane.NETWORK_IO, existing);
+
+				return;
+			}
+
+			refused = existing;
+		}
+	}
 
-		if(request.isRedditApi) {
-			redditDownloadsQueued.add(new CacheDownload(request, manager, this));
+	// Must be called with the lock held
+	private void startDownload(final DownloadKey key, final CacheDownload download) {
+
+		if(key != null) {
+			downloadsInProgress.put(key, download);
+		}
+
+		if(download.getInitiator().isRedditApi) {
+			redditDownloadsQueued.add(download);
 			notifyAll();
 
 		} else {
-			mDownloadThreadPool.add(new CacheDownload(request, manager, this));
+			getHostQueue(download.getInitiator()).queued.add(download);
+			startHostDownloads();
 		}
 	}
 
-	private synchronized CacheDownload getNextRedditInQueue() {
+	// Must be called with the lock held
+	private HostQueue getHostQueue(final CacheRequest request) {
+
+		final String host = request.url.getHost() == null ? "" : request.url.getHost().toLowerCase();
+
+		HostQueue hostQueue = hostQueues.get(host);
+
+		if(hostQueue == null) {
+			hostQueue = new HostQueue(host);
+			hostQueues.put(host, hostQueue);
+		}
+
+		return hostQueue;
+	}
+
+	public synchronized ArrayList<DownloadHostStats> getHostStats() {
+
+		final ArrayList<DownloadHostStats> result = new ArrayList<DownloadHostStats>(hostQueues.size());
+
+		for(final HostQueue hostQueue : hostQueues.values()) {
+			result.add(new DownloadHostStats(
+					hostQueue.host,
+					hostQueue.inFlight,
+					hostQueue.queued.size(),
+					hostQueue.completed,
+					hostQueue.completed == 0 ? 0 : hostQueue.totalLatencyMs / hostQueue.completed));
+		}
+
+		return result;
+	}
+
+	// Only downloads on the network lane need to be moved. Reddit downloads and those waiting for a free
+	// slot for their host are chosen in priority order each time one is started.
+	void updatePriority(final CacheDownload download) {
+		Scheduler.updatePriority(Scheduler.Lane.NETWORK_IO, download);
+		download.updateForeground();
+	}
+
+	synchronized void onDownloadFinished(final CacheDownload download, final long latencyMs) {
+
+		final CacheRequest initiator = download.getInitiator();
+		final DownloadKey key = DownloadKey.forRequest(initiator);
+
+		if(key != null && downloadsInProgress.get(key) == download) {
+			downloadsInProgress.remove(key);
+		}
+
+		if(!initiator.isRedditApi) {
+			final HostQueue hostQueue = getHostQueue(initiator);
+			hostQueue.inFlight--;
+			hostQueue.completed++;
+			hostQueue.totalLatencyMs += latencyMs;
+			hostDownloadsInFlight--;
+			startHostDownloads();
+		}
+	}
+
+	// Must be called with the lock held
+	private void startHostDownloads() {
 
+		while(hostDownloadsInFlight < MAX_HOST_DOWNLOADS) {
+
+			// Priorities may have changed while queued, so the most urgent is found each time
+			HostQueue nextHost = null;
+			int nextIndex = -1;
+
+			for(final HostQueue hostQueue : hostQueues.values()) {
+
+				if(hostQueue.inFlight >= MAX_DOWNLOADS_PER_HOST) continue;
+
+				final int index = hostQueue.getMostUrgentIndex();
+				if(index < 0) continue;
+
+				if(nextHost == null) {
+					nextHost = hostQueue;
+					nextIndex = index;
+					continue;
+				}
+
+				final CacheDownload candidate = hostQueue.queued.get(index);
+				final CacheDownload next = nextHost.queued.get(nextIndex);
+
+				if(candidate.isHigherPriorityThan(next)
+						|| (!next.isHigherPriorityThan(candidate) && hostQueue.inFlight < nextHost.inFlight)) {
+					nextHost = hostQueue;
+					nextIndex = index;
+				}
+			}
+
+			if(nextHost == null) return;
+
+			nextHost.inFlight++;
+			hostDownloadsInFlight++;
+			Scheduler.add(Scheduler.Lane.NETWORK_IO, nextHost.queued.remove(nextIndex));
+		}
+	}
+
+	private synchronized void waitForRedditDownload() {
 		while(redditDownloadsQueued.isEmpty()) {
 			try { wait(); } catch (InterruptedException e) { throw new RuntimeException(e); }
 		}
+	}
+
+	private synchronized CacheDownload getNextRedditInQueue() {
+
+		waitForRedditDownload();
 
 		CacheDownload next = null;
 
@@ -70,6 +242,73 @@ class PrioritisedDownloadQueue {
 		return next;
 	}
 
+	// Guarded by the lock of the PrioritisedDownloadQueue
+	private static final class HostQueue {
+
+		private final String host;
+
+		private final ArrayList<CacheDownload> queued = new ArrayList<CacheDownload>();
+		private int inFlight = 0;
+
+		private long completed = 0, totalLatencyMs = 0;
+
+		private HostQueue(final String host) {
+			this.host = host;
+		}
+
+		// Returns -1 if nothing is queued
+		private int getMostUrgentIndex() {
+
+			int result = -1;
+
+			for(int i = 0; i < queued.size(); i++) {
+				if(result < 0 || queued.get(i).isHigherPriorityThan(queued.get(result))) {
+					result = i;
+				}
+			}
+
+			return result;
+		}
+	}
+
+	private static final class DownloadKey {
+
+		private final URI url;
+		private final String user;
+		private final boolean isJson;
+
+		private DownloadKey(final URI url, final String user, final boolean isJson) {
+			this.url = url;
+			this.user = user;
+			this.isJson = isJson;
+		}
+
+		// Returns null if the request must not share a download with other requests
+		private static DownloadKey forRequest(final CacheRequest request) {
+
+			if(!request.cache || request.postFields != null || request.requestSession != null) {
+				return null;
+			}
+
+			return new DownloadKey(request.url, request.user.username, request.isJson);
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+
+			if(this == o) return true;
+			if(!(o instanceof DownloadKey)) return false;
+
+			final DownloadKey other = (DownloadKey)o;
+			return isJson == other.isJson && url.equals(other.url) && user.equals(other.user);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * url.hashCode() + user.hashCode()) + (isJson ? 1 : 0);
+		}
+	}
+
 	private class RedditQueueProcessor extends Thread {
 
 		public RedditQueueProcessor() {
@@ -81,16 +320,17 @@ class PrioritisedDownloadQueue {
 
 			while(true) {
 
-				synchronized(this) {
-					final CacheDownload download = getNextRedditInQueue();
-					new CacheDownloadThread(download, true, "Cache Download Thread: Reddit");
-				}
+				waitForRedditDownload();
 
 				try {
-					sleep(1500); // Delay imposed by reddit API restrictions.
+					redditRateLimiter.acquire();
 				} catch (InterruptedException e) {
 					throw new RuntimeException(e);
 				}
+
+				// Chosen after waiting, in case something more urgent has been queued in the meantime
+				final CacheDownload download = getNextRedditInQueue();
+				Scheduler.add(Scheduler.Lane.NETWORK_IO, download);
 			}
 
 		}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.cache;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Token bucket which decides when the next reddit API request may start.
+ *
+ * Requests may be made in bursts while plenty of quota remains. The refill rate is recalculated from the
+ * X-Ratelimit-Remaining and X-Ratelimit-Reset headers of each response, so that the remaining quota is
+ * spread evenly over the time left until it resets. If the quota runs out, no requests are made until
+ * the reset.
+ */
+public final class RedditRateLimiter {
+
+	// Used until the first response arrives, and after each reset. Reddit allows 600 requests every 10 minutes.
+	private static final double DEFAULT_REQUESTS_PER_SECOND = 1;
+
+	private static final double MAX_REQUESTS_PER_SECOND = 10;
+	private static final double MAX_BURST = 10;
+
+	private double tokens = MAX_BURST;
+	private double capacity = MAX_BURST;
+	private double requestsPerSecond = DEFAULT_REQUESTS_PER_SECOND;
+	private long lastRefill = SystemClock.elapsedRealtime();
+
+	// Zero unless the quota has run out
+	private long quotaExhaustedUntil = 0;
+
+	private double quotaRemaining = -1;
+	private long quotaResetAt = -1;
+
+	private long requestsStarted = 0, totalWaitMs = 0;
+
+	/**
+	 * Blocks until another request may be made, and uses up the allowance for it.
+	 */
+	synchronized void acquire() throws InterruptedException {
+
+		final long startTime = SystemClock.elapsedRealtime();
+
+		while(true) {
+
+			final long now = SystemClock.elapsedRealtime();
+			refill(now);
+
+			if(tokens >= 1) {
+				tokens -= 1;
+				requestsStarted++;
+				totalWaitMs += now - startTime;
+				return;
+			}
+
+			wait(getMsUntilNextToken(now));
+		}
+	}
+
+	/**
+	 * Updates the rate from the headers of a reddit API response. Either value may be null if the header
+	 * was missing, in which case the response is ignored.
+	 */
+	synchronized void onResponse(final String remainingHeader, final String resetHeader) {
+
+		if(remainingHeader == null || resetHeader == null) {
+			return;
+		}
+
+		final double remaining, resetSecs;
+
+		try {
+			remaining = Double.parseDouble(remainingHeader.trim());
+			resetSecs = Double.parseDouble(resetHeader.trim());
+		} catch(NumberFormatException e) {
+			Log.e("RedditRateLimiter", "Invalid rate limit headers: " + remainingHeader + ", " + resetHeader);
+			return;
+		}
+
+		final long now = SystemClock.elapsedRealtime();
+		refill(now);
+
+		final long resetMs = (long)(Math.max(resetSecs, 1) * 1000);
+
+		quotaRemaining = remaining;
+		quotaResetAt = now + resetMs;
+
+		if(remaining < 1) {
+			Log.i("RedditRateLimiter", String.format("Quota used up, waiting %d ms", resetMs));
+			tokens = 0;
+			quotaExhaustedUntil = quotaResetAt;
+			return;
+		}
+
+		quotaExhaustedUntil = 0;
+
+		// Don't allow a burst to use more than what's left
+		capacity = Math.max(1, Math.min(MAX_BURST, remaining));
+		tokens = Math.min(tokens, capacity);
+
+		requestsPerSecond = Math.min(MAX_REQUESTS_PER_SECOND, remaining * 1000 / resetMs);
+
+		// The rate may have gone up
+		notifyAll();
+	}
+
+	// Must be called with the lock held
+	private void refill(final long now) {
+
+		if(quotaExhaustedUntil != 0) {
+
+			if(now < quotaExhaustedUntil) {
+				lastRefill = now;
+				return;
+			}
+
+			// The quota has been reset
+			quotaExhaustedUntil = 0;
+			quotaRemaining = -1;
+			quotaResetAt = -1;
+			capacity = MAX_BURST;
+			tokens = MAX_BURST;
+			requestsPerSecond = DEFAULT_REQUESTS_PER_SECOND;
+			lastRefill = now;
+			return;
+		}
+
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * requestsPerSecond / 1000);
+		lastRefill = now;
+	}
+
+	// Must be called with the lock held
+	private long getMsUntilNextToken(final long now) {
+
+		if(quotaExhaustedUntil != 0) {
+			return Math.max(1, quotaExhaustedUntil - now);
+		}
+
+		return Math.max(1, (long)Math.ceil((1 - tokens) * 1000 / requestsPerSecond));
+	}
+
+	public synchronized State getState() {
+
+		final long now = SystemClock.elapsedRealtime();
+		refill(now);
+
+		return new State(
+				tokens,
+				capacity,
+				requestsPerSecond,
+				quotaRemaining,
+				quotaResetAt < 0 ? -1 : Math.max(0, quotaResetAt - now),
+				quotaExhaustedUntil != 0,
+				requestsStarted,
+				requestsStarted == 0 ? 0 : totalWaitMs / requestsStarted);
+	}
+
+	public static final class State {
+
+		public final double tokens, capacity, requestsPerSecond;
+
+		// -1 if no response has reported the quota since the last reset
+		public final double quotaRemaining;
+		public final long msUntilQuotaReset;
+
+		public final boolean quotaExhausted;
+		public final long requestsStarted, averageWaitMs;
+
+		private State(final double tokens, final double capacity, final double requestsPerSecond,
+					  final double quotaRemaining, final long msUntilQuotaReset, final boolean quotaExhausted,
+					  final long requestsStarted, final long averageWaitMs) {
+			this.tokens = tokens;
+			this.capacity = capacity;
+			this.requestsPerSecond = requestsPerSecond;
+			this.quotaRemaining = quotaRemaining;
+			this.msUntilQuotaReset = msUntilQuotaReset;
+			this.quotaExhausted = quotaExhausted;
+			this.requestsStarted = requestsStarted;
+			this.averageWaitMs = averageWaitMs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("[RedditRateLimiter : tokens %.2f/%.0f, rate %.2f/s, quota %.0f, reset in %d ms, exhausted %b, started %d, average wait %d ms]",
+					tokens, capacity, requestsPerSecond, quotaRemaining, msUntilQuotaReset, quotaExhausted,
+					requestsStarted, averageWaitMs);
+		}
+	}
+}
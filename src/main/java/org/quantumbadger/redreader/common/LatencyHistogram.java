@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.common;
+
+/**
+ * Counts durations in buckets which double in size, from under a microsecond up to about a day, so that
+ * percentiles can be estimated without keeping every sample. Percentiles are rounded up to the end of
+ * the bucket they fall in. Not thread safe.
+ */
+public final class LatencyHistogram {
+
+	private static final int BUCKETS = 38;
+
+	// Bucket i counts durations of less than 2^i us, and at least 2^(i-1) us
+	private final long[] mCounts = new long[BUCKETS];
+
+	private long mCount = 0, mTotalNs = 0, mMaxNs = 0;
+
+	public void record(final long durationNs) {
+
+		final long durationUs = Math.max(0, durationNs) / 1000;
+		final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(durationUs));
+
+		mCounts[bucket]++;
+		mCount++;
+		mTotalNs += Math.max(0, durationNs);
+		mMaxNs = Math.max(mMaxNs, durationNs);
+	}
+
+	public long getCount() {
+		return mCount;
+	}
+
+	public long getAverageUs() {
+		return mCount == 0 ? 0 : mTotalNs / mCount / 1000;
+	}
+
+	public long getMaxUs() {
+		return mMaxNs / 1000;
+	}
+
+	public long getMaxMs() {
+		return mMaxNs / 1000000;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100.
+	 */
+	public long getPercentileUs(final double percentile) {
+
+		if(mCount == 0) return 0;
+
+		final long rank = Math.max(1, (long)Math.ceil(mCount * percentile / 100));
+		long seen = 0;
+
+		for(int i = 0; i < BUCKETS; i++) {
+
+			seen += mCounts[i];
+
+			if(seen >= rank) {
+				// The maximum is a tighter bound for the last bucket in use
+				return Math.min(1L << i, getMaxUs());
+			}
+		}
+
+		return getMaxUs();
+	}
+
+	public long getPercentileMs(final double percentile) {
+		return getPercentileUs(percentile) / 1000;
+	}
+}
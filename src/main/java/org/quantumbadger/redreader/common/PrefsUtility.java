@@ -24,6 +24,7 @@ import org.holoeverywhere.app.Activity;
 import org.holoeverywhere.preference.PreferenceManager;
 import org.holoeverywhere.preference.SharedPreferences;
 import org.quantumbadger.redreader.R;
+import org.quantumbadger.redreader.cache.CacheSizeBudget;
 import org.quantumbadger.redreader.fragments.MainMenuFragment;
 import org.quantumbadger.redreader.reddit.prepared.RedditPreparedPost;
 import org.quantumbadger.redreader.reddit.url.PostCommentListingURL;
@@ -289,6 +290,34 @@ public final class PrefsUtility {
 		return result;
 	}
 
+	// pref_cache_maxsize
+
+	public static long pref_cache_maxsize(final Context context, final SharedPreferences sharedPreferences) {
+		return 1024L * 1024L * Long.valueOf(getString(R.string.pref_cache_maxsize_key, "512", context, sharedPreferences));
+	}
+
+	// The listing types share one budget, so that the listing setting is the most they can take up together
+	public static ArrayList<CacheSizeBudget> pref_cache_maxsize_budgets(final Context context, final SharedPreferences sharedPreferences) {
+
+		final ArrayList<CacheSizeBudget> result = new ArrayList<CacheSizeBudget>();
+
+		final long maxSizeListing = 1024L * 1024L * Long.valueOf(getString(R.string.pref_cache_maxsize_listing_key, "64", context, sharedPreferences));
+		final long maxSizeThumb = 1024L * 1024L * Long.valueOf(getString(R.string.pref_cache_maxsize_thumb_key, "64", context, sharedPreferences));
+		final long maxSizeImage = 1024L * 1024L * Long.valueOf(getString(R.string.pref_cache_maxsize_image_key, "512", context, sharedPreferences));
+
+		result.add(new CacheSizeBudget(maxSizeListing,
+				Constants.FileType.POST_LIST,
+				Constants.FileType.COMMENT_LIST,
+				Constants.FileType.SUBREDDIT_LIST,
+				Constants.FileType.USER_ABOUT,
+				Constants.FileType.INBOX_LIST));
+
+		result.add(new CacheSizeBudget(maxSizeThumb, Constants.FileType.THUMBNAIL));
+		result.add(new CacheSizeBudget(maxSizeImage, Constants.FileType.IMAGE));
+
+		return result;
+	}
+
 	// pref_cache_precache_images
 
 	public static enum CachePrecacheImages {
@@ -18,10 +18,37 @@
 package org.quantumbadger.redreader.common;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Runs tasks on up to a fixed number of threads, most urgent first. Threads are started as needed, and
+ * stop after being idle for 30 seconds.
+ *
+ * Queued tasks are kept in a binary heap, ordered by primary priority, then secondary priority, then the
+ * order in which they were added. Lower numbers are more urgent. The priorities are read when the task
+ * is added, or when updatePriority() is called.
+ *
+ * Aging may be enabled, so that tasks which have waited longer than a threshold gradually become more
+ * urgent, and are not held back forever by a stream of more urgent tasks. Queued tasks are re-ordered
+ * with their new priorities at most once per aging interval.
+ *
+ * Pools may share a budget, in which case a thread must take a permit from it before running each task.
+ * This limits the number of tasks running at once across all of those pools. A task which has to wait for
+ * something other than the CPU may give its permit back in the meantime: see releaseBudgetWhileBlocked().
+ */
 public class PrioritisedCachedThreadPool {
 
-	private final ArrayList<Task> mTasks = new ArrayList<Task>(16);
+	private final Object mLock = new Object();
+
+	private Task[] mHeap = new Task[16];
+	private int mQueued = 0;
+	private long mNextSequence = 0;
+
 	private final Executor mExecutor = new Executor();
 
 	private final int mMaxThreads;
@@ -30,16 +57,106 @@ public class PrioritisedCachedThreadPool {
 
 	private int mRunningThreads, mIdleThreads;
 
+	// May be null
+	private final Semaphore mBudget;
+
+	// The budget permit taken by the current thread for the task it is running, if any
+	private static final ThreadLocal<HeldBudget> sHeldBudget = new ThreadLocal<HeldBudget>();
+
+	private static final class HeldBudget {
+		private Semaphore budget;
+		private boolean released;
+	}
+
+	private long mTasksRun = 0, mTotalWaitNs = 0, mMaxWaitNs = 0;
+
+	// Keyed by the primary priority the task was queued with, before any aging
+	private final HashMap<Integer, LatencyHistogram> mWaitByPriority = new HashMap<Integer, LatencyHistogram>();
+
+	// Aging is disabled while the threshold is negative
+	private long mAgingThresholdNs = -1, mAgingIntervalNs;
+	private int mAgingBoost;
+	private long mLastAgingPassNs;
+
 	public PrioritisedCachedThreadPool(int threads, String threadName) {
+		this(threads, threadName, null);
+	}
+
+	public PrioritisedCachedThreadPool(int threads, String threadName, Semaphore budget) {
 		mMaxThreads = threads;
 		mThreadName = threadName;
+		mBudget = budget;
+	}
+
+	/**
+	 * Enables aging. Once a task has waited for thresholdMs, its primary priority is reduced by boost for
+	 * every further intervalMs that it waits.
+	 */
+	public void setAging(final long thresholdMs, final long intervalMs, final int boost) {
+
+		if(intervalMs <= 0 || boost <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		synchronized(mLock) {
+			mAgingThresholdNs = thresholdMs * 1000000;
+			mAgingIntervalNs = intervalMs * 1000000;
+			mAgingBoost = boost;
+		}
+	}
+
+	public void disableAging() {
+		synchronized(mLock) {
+			mAgingThresholdNs = -1;
+		}
+	}
+
+	/**
+	 * Gives back the budget permit held by the current thread, if it is running a task from a budgeted
+	 * pool, so that another task can use the CPU while this one waits.
+	 *
+	 * @return True if a permit was given back, in which case reacquireBudget() must be called once the
+	 * wait is over. That call may block, so it must be made after releasing any locks which the other
+	 * tasks might need.
+	 */
+	public static boolean releaseBudgetWhileBlocked() {
+
+		final HeldBudget held = sHeldBudget.get();
+
+		if(held == null || held.budget == null || held.released) {
+			return false;
+		}
+
+		held.released = true;
+		held.budget.release();
+		return true;
+	}
+
+	/**
+	 * Takes back the permit given up by releaseBudgetWhileBlocked(), waiting for one to become free.
+	 */
+	public static void reacquireBudget() {
+
+		final HeldBudget held = sHeldBudget.get();
+
+		held.budget.acquireUninterruptibly();
+		held.released = false;
 	}
 
 	public void add(Task task) {
 
-		synchronized(mTasks) {
-			mTasks.add(task);
-			mTasks.notifyAll();
+		synchronized(mLock) {
+
+			final long now = System.nanoTime();
+
+			task.mSequence = mNextSequence++;
+			task.mQueuedAt = now;
+			task.mClassPriority = task.getPrimaryPriority();
+			task.mQueuedPrimary = getAgedPriority(task, now);
+			task.mQueuedSecondary = task.getSecondaryPriority();
+			offer(task);
+
+			mLock.notify();
 
 			if(mIdleThreads < 1 && mRunningThreads < mMaxThreads) {
 				mRunningThreads++;
@@ -48,11 +165,129 @@ public class PrioritisedCachedThreadPool {
 		}
 	}
 
+	/**
+	 * Moves the task to its new place in the queue, after its priority has changed. Has no effect if the
+	 * task isn't waiting in this pool.
+	 */
+	public void updatePriority(Task task) {
+
+		synchronized(mLock) {
+
+			if(!isQueued(task)) return;
+
+			task.mClassPriority = task.getPrimaryPriority();
+			task.mQueuedPrimary = getAgedPriority(task, System.nanoTime());
+			task.mQueuedSecondary = task.getSecondaryPriority();
+
+			siftUp(task.mHeapIndex, task);
+			siftDown(task.mHeapIndex, mHeap[task.mHeapIndex]);
+		}
+	}
+
+	public int getQueuedCount() {
+		synchronized(mLock) {
+			return mQueued;
+		}
+	}
+
+	public Stats getStats() {
+		synchronized(mLock) {
+			return new Stats(
+					mThreadName,
+					mQueued,
+					mRunningThreads - mIdleThreads,
+					mTasksRun,
+					mTasksRun == 0 ? 0 : mTotalWaitNs / mTasksRun / 1000000,
+					mMaxWaitNs / 1000000,
+					getPriorityClassStats());
+		}
+	}
+
+	// Must be called with mLock held
+	private ArrayList<PriorityClassStats> getPriorityClassStats() {
+
+		final ArrayList<PriorityClassStats> result = new ArrayList<PriorityClassStats>(mWaitByPriority.size());
+
+		for(final Map.Entry<Integer, LatencyHistogram> entry : mWaitByPriority.entrySet()) {
+
+			final LatencyHistogram histogram = entry.getValue();
+
+			result.add(new PriorityClassStats(
+					entry.getKey(),
+					histogram.getCount(),
+					histogram.getMaxMs(),
+					histogram.getPercentileMs(99)));
+		}
+
+		Collections.sort(result);
+		return result;
+	}
+
+	public static final class PriorityClassStats implements Comparable<PriorityClassStats> {
+
+		public final int priority;
+		public final long tasksRun, maxWaitMs, p99WaitMs;
+
+		private PriorityClassStats(final int priority, final long tasksRun, final long maxWaitMs, final long p99WaitMs) {
+			this.priority = priority;
+			this.tasksRun = tasksRun;
+			this.maxWaitMs = maxWaitMs;
+			this.p99WaitMs = p99WaitMs;
+		}
+
+		public int compareTo(final PriorityClassStats o) {
+			return priority < o.priority ? -1 : (priority == o.priority ? 0 : 1);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("[priority %d : run %d, max wait %d ms, p99 wait %d ms]",
+					priority, tasksRun, maxWaitMs, p99WaitMs);
+		}
+	}
+
+	public static final class Stats {
+
+		public final String name;
+		public final int queued, activeThreads;
+		public final long tasksRun, averageWaitMs, maxWaitMs;
+
+		// In order of priority
+		public final List<PriorityClassStats> priorityClasses;
+
+		private Stats(final String name, final int queued, final int activeThreads,
+					  final long tasksRun, final long averageWaitMs, final long maxWaitMs,
+					  final List<PriorityClassStats> priorityClasses) {
+			this.name = name;
+			this.queued = queued;
+			this.activeThreads = activeThreads;
+			this.tasksRun = tasksRun;
+			this.averageWaitMs = averageWaitMs;
+			this.maxWaitMs = maxWaitMs;
+			this.priorityClasses = Collections.unmodifiableList(priorityClasses);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("[%s : queued %d, active threads %d, run %d, average wait %d ms, max wait %d ms, by priority %s]",
+					name, queued, activeThreads, tasksRun, averageWaitMs, maxWaitMs, priorityClasses);
+		}
+	}
+
 	public static abstract class Task {
 
+		// Managed by the pool while the task is queued
+		private int mQueuedPrimary, mQueuedSecondary, mClassPriority;
+		private long mSequence, mQueuedAt;
+		private int mHeapIndex = -1;
+
 		public boolean isHigherPriorityThan(Task o) {
-			return getPrimaryPriority() < o.getPrimaryPriority()
-					|| getSecondaryPriority() < o.getSecondaryPriority();
+
+			if(getPrimaryPriority() != o.getPrimaryPriority()) {
+				return getPrimaryPriority() < o.getPrimaryPriority();
+			}
+
+			return getSecondaryPriority() < o.getSecondaryPriority();
 		}
 
 		public abstract int getPrimaryPriority();
@@ -60,48 +295,213 @@ public class PrioritisedCachedThreadPool {
 		public abstract void run();
 	}
 
+	// Heap operations. Must be called with mLock held.
+
+	private int getAgedPriority(final Task task, final long now) {
+
+		if(mAgingThresholdNs < 0) return task.mClassPriority;
+
+		final long overdueNs = now - task.mQueuedAt - mAgingThresholdNs;
+
+		if(overdueNs <= 0) return task.mClassPriority;
+
+		final long aged = task.mClassPriority - (overdueNs / mAgingIntervalNs) * mAgingBoost;
+		return (int)Math.max(Integer.MIN_VALUE + 1, aged);
+	}
+
+	// Recalculates the aged priorities, and rebuilds the heap in the new order
+	private void applyAging() {
+
+		if(mAgingThresholdNs < 0 || mQueued == 0) return;
+
+		final long now = System.nanoTime();
+
+		if(now - mLastAgingPassNs < mAgingIntervalNs) return;
+		mLastAgingPassNs = now;
+
+		for(int i = 0; i < mQueued; i++) {
+			mHeap[i].mQueuedPrimary = getAgedPriority(mHeap[i], now);
+		}
+
+		for(int i = (mQueued >>> 1) - 1; i >= 0; i--) {
+			siftDown(i, mHeap[i]);
+		}
+	}
+
+	private static boolean isBefore(final Task a, final Task b) {
+
+		if(a.mQueuedPrimary != b.mQueuedPrimary) {
+			return a.mQueuedPrimary < b.mQueuedPrimary;
+		}
+
+		if(a.mQueuedSecondary != b.mQueuedSecondary) {
+			return a.mQueuedSecondary < b.mQueuedSecondary;
+		}
+
+		return a.mSequence < b.mSequence;
+	}
+
+	private void recordWait(final Task task) {
+
+		final long waitNs = System.nanoTime() - task.mQueuedAt;
+
+		mTasksRun++;
+		mTotalWaitNs += waitNs;
+		mMaxWaitNs = Math.max(mMaxWaitNs, waitNs);
+
+		LatencyHistogram histogram = mWaitByPriority.get(task.mClassPriority);
+
+		if(histogram == null) {
+			histogram = new LatencyHistogram();
+			mWaitByPriority.put(task.mClassPriority, histogram);
+		}
+
+		histogram.record(waitNs);
+	}
+
+	private boolean isQueued(final Task task) {
+		return task.mHeapIndex >= 0 && task.mHeapIndex < mQueued && mHeap[task.mHeapIndex] == task;
+	}
+
+	private void offer(final Task task) {
+
+		if(mQueued == mHeap.length) {
+			mHeap = Arrays.copyOf(mHeap, mQueued * 2);
+		}
+
+		siftUp(mQueued++, task);
+	}
+
+	private Task poll() {
+
+		if(mQueued == 0) return null;
+
+		final Task result = mHeap[0];
+		final Task last = mHeap[--mQueued];
+		mHeap[mQueued] = null;
+
+		if(mQueued > 0) {
+			siftDown(0, last);
+		}
+
+		result.mHeapIndex = -1;
+		return result;
+	}
+
+	// Places the task at or above the specified position
+	private void siftUp(int index, final Task task) {
+
+		while(index > 0) {
+
+			final int parentIndex = (index - 1) >>> 1;
+			final Task parent = mHeap[parentIndex];
+
+			if(!isBefore(task, parent)) break;
+
+			mHeap[index] = parent;
+			parent.mHeapIndex = index;
+			index = parentIndex;
+		}
+
+		mHeap[index] = task;
+		task.mHeapIndex = index;
+	}
+
+	// Places the task at or below the specified position
+	private void siftDown(int index, final Task task) {
+
+		final int half = mQueued >>> 1;
+
+		while(index < half) {
+
+			int childIndex = 2 * index + 1;
+			Task child = mHeap[childIndex];
+
+			final int rightIndex = childIndex + 1;
+
+			if(rightIndex < mQueued && isBefore(mHeap[rightIndex], child)) {
+				childIndex = rightIndex;
+				child = mHeap[rightIndex];
+			}
+
+			if(!isBefore(child, task)) break;
+
+			mHeap[index] = child;
+			child.mHeapIndex = index;
+			index = childIndex;
+		}
+
+		mHeap[index] = task;
+		task.mHeapIndex = index;
+	}
+
 	private final class Executor implements Runnable {
 
 		@Override
 		public void run() {
 
-			while(true) {
+			final HeldBudget held = new HeldBudget();
+			sHeldBudget.set(held);
 
-				Task taskToRun = null;
+			while(true) {
 
-				synchronized(mTasks) {
+				synchronized(mLock) {
 
-					if(mTasks.isEmpty()) {
+					if(mQueued == 0) {
 
 						mIdleThreads++;
 
 						try {
-							mTasks.wait(30000);
+							mLock.wait(30000);
 						} catch(InterruptedException e) {
 							throw new RuntimeException(e);
 						} finally {
 							mIdleThreads--;
 						}
 
-						if(mTasks.isEmpty()) {
+						if(mQueued == 0) {
 							mRunningThreads--;
 							return;
 						}
 					}
+				}
+
+				// Taken outside the lock, so that other threads can still add tasks while we wait
+				if(mBudget != null) {
+					mBudget.acquireUninterruptibly();
+				}
+
+				try {
 
-					int taskIndex = -1;
-					for(int i = 0; i < mTasks.size(); i++) {
-						if(taskToRun == null || mTasks.get(i).isHigherPriorityThan(taskToRun)) {
-							taskToRun = mTasks.get(i);
-							taskIndex = i;
+					final Task taskToRun;
+
+					synchronized(mLock) {
+
+						applyAging();
+
+						// Another thread may have taken the task while we were waiting for the budget
+						taskToRun = poll();
+
+						if(taskToRun != null) {
+							recordWait(taskToRun);
 						}
 					}
 
-					mTasks.remove(taskIndex);
-				}
+					if(taskToRun != null) {
+						held.budget = mBudget;
+						taskToRun.run();
+					}
+
+				} finally {
 
-				assert taskToRun != null;
-				taskToRun.run();
+					// The task may have returned without taking back a permit it gave up
+					if(mBudget != null && !held.released) {
+						mBudget.release();
+					}
+
+					held.budget = null;
+					held.released = false;
+				}
 			}
 		}
 	}
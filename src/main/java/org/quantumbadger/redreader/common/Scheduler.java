@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.common;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs background work for the whole app, on a small number of shared thread pools ("lanes"), rather than
+ * each part of the app starting threads of its own.
+ *
+ * Tasks which mostly wait for the network or the disk run on the I/O lanes. Tasks which keep a core busy
+ * run on the CPU lanes, which share a budget sized to the number of cores, so that only that many of
+ * them run at once however much work is queued.
+ */
+public final class Scheduler {
+
+	public enum Lane {
+
+		// Downloads, including reddit API requests once the rate limiter has allowed them
+		NETWORK_IO("Network I/O", 6, false, true),
+
+		// Reading from the cache and the database
+		DISK_IO("Disk I/O", 2, false, true),
+
+		// Streamed JSON, which is turned into objects as it is read from the cache
+		CPU_PARSE("CPU Parse", 2, true, false),
+
+		// JSON callbacks, which bind and format the tree as it is read from the network or the disk, and
+		// cancellation. Budgeted, but a callback gives back its permit while waiting for more of the tree, so
+		// that a slow download can't hold up the CPU lanes.
+		CALLBACK("Callbacks", 16, true, false),
+
+		// Image tiles and GIF frames
+		CPU_DECODE("CPU Decode", getCpuBudget(), true, false);
+
+		private final String name;
+		private final int maxThreads;
+		private final boolean cpuBound, aging;
+
+		Lane(final String name, final int maxThreads, final boolean cpuBound, final boolean aging) {
+			this.name = name;
+			this.maxThreads = maxThreads;
+			this.cpuBound = cpuBound;
+			this.aging = aging;
+		}
+
+		public int getMaxThreads() {
+			return maxThreads;
+		}
+	}
+
+	// Thumbnails and precached images would otherwise wait for as long as API requests keep arriving. After
+	// the threshold, a task gains one step of priority per interval: a precache overtakes comment lists
+	// after 14 seconds.
+	public static final long DEFAULT_AGING_THRESHOLD_MS = 5000;
+	private static final long AGING_INTERVAL_MS = 1000;
+	private static final int AGING_BOOST = 100;
+
+	// Runs before anything else queued on the same lane
+	public static final int PRIORITY_URGENT = Integer.MIN_VALUE;
+
+	private static final Semaphore CPU_BUDGET = new Semaphore(getCpuBudget());
+
+	private static final PrioritisedCachedThreadPool[] POOLS = new PrioritisedCachedThreadPool[Lane.values().length];
+
+	static {
+		for(final Lane lane : Lane.values()) {
+			POOLS[lane.ordinal()] = new PrioritisedCachedThreadPool(
+					lane.maxThreads, lane.name, lane.cpuBound ? CPU_BUDGET : null);
+
+			if(lane.aging) {
+				setAgingThreshold(lane, DEFAULT_AGING_THRESHOLD_MS);
+			}
+		}
+	}
+
+	private Scheduler() {}
+
+	// At least two, so that a task blocking on a CPU lane can't hold up all the others on a single core device
+	private static int getCpuBudget() {
+		return Math.max(2, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static void add(final Lane lane, final PrioritisedCachedThreadPool.Task task) {
+		POOLS[lane.ordinal()].add(task);
+	}
+
+	public static void add(final Lane lane, final int priority, final Runnable runnable) {
+
+		add(lane, new PrioritisedCachedThreadPool.Task() {
+
+			@Override
+			public int getPrimaryPriority() {
+				return priority;
+			}
+
+			@Override
+			public int getSecondaryPriority() {
+				return 0;
+			}
+
+			@Override
+			public void run() {
+				runnable.run();
+			}
+		});
+	}
+
+	/**
+	 * See PrioritisedCachedThreadPool.updatePriority().
+	 */
+	public static void updatePriority(final Lane lane, final PrioritisedCachedThreadPool.Task task) {
+		POOLS[lane.ordinal()].updatePriority(task);
+	}
+
+	/**
+	 * Sets how long a task on the lane must wait before its priority starts to increase, or disables aging
+	 * if thresholdMs is negative.
+	 */
+	public static void setAgingThreshold(final Lane lane, final long thresholdMs) {
+
+		if(thresholdMs < 0) {
+			POOLS[lane.ordinal()].disableAging();
+		} else {
+			POOLS[lane.ordinal()].setAging(thresholdMs, AGING_INTERVAL_MS, AGING_BOOST);
+		}
+	}
+
+	public static PrioritisedCachedThreadPool.Stats getStats(final Lane lane) {
+		return POOLS[lane.ordinal()].getStats();
+	}
+
+	/**
+	 * The number of permits for the CPU lanes which are not in use.
+	 */
+	public static int getAvailableCpuBudget() {
+		return CPU_BUDGET.availablePermits();
+	}
+
+	public static String describe() {
+
+		final StringBuilder sb = new StringBuilder(256);
+
+		for(final Lane lane : Lane.values()) {
+			sb.append(getStats(lane)).append('\n');
+		}
+
+		sb.append(String.format("[CPU budget : %d/%d available]", getAvailableCpuBudget(), getCpuBudget()));
+
+		return sb.toString();
+	}
+}
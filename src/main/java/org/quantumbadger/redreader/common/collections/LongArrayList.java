@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.common.collections;
+
+import java.util.Arrays;
+
+// A list of primitive longs, to avoid boxing every element when there are many of them
+public final class LongArrayList {
+
+	private long[] mData;
+	private int mSize = 0;
+
+	public LongArrayList(final int initialCapacity) {
+		mData = new long[Math.max(initialCapacity, 1)];
+	}
+
+	public void add(final long value) {
+
+		if(mSize == mData.length) {
+			mData = Arrays.copyOf(mData, mSize * 2);
+		}
+
+		mData[mSize++] = value;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	// The backing array, which is only valid up to size(), and may be replaced by later additions
+	public long[] getArray() {
+		return mData;
+	}
+}
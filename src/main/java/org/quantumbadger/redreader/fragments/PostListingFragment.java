@@ -50,6 +50,7 @@ import org.quantumbadger.redreader.common.*;
 import org.quantumbadger.redreader.io.RequestResponseHandler;
 import org.quantumbadger.redreader.jsonwrap.JsonBufferedArray;
 import org.quantumbadger.redreader.jsonwrap.JsonBufferedObject;
+import org.quantumbadger.redreader.jsonwrap.JsonProjection;
 import org.quantumbadger.redreader.jsonwrap.JsonValue;
 import org.quantumbadger.redreader.listingcontrollers.PostListingController;
 import org.quantumbadger.redreader.reddit.RedditSubredditManager;
@@ -97,6 +98,9 @@ public class PostListingFragment extends Fragment implements RedditPostView.Post
 	private boolean readyToDownloadMore = false;
 	private long timestamp;
 
+	// Set while a cached copy of the first page is shown, and a fresh copy is being downloaded to replace it
+	private volatile boolean showingStaleData = false;
+
 	private LoadingView loadingView;
 
 	private int postCount = 0;
@@ -111,7 +115,8 @@ public class PostListingFragment extends Fragment implements RedditPostView.Post
 			NOTIF_PROGRESS = 6,
 			NOTIF_DOWNLOAD_DONE = 7,
 			NOTIF_ERROR_FOOTER = 8,
-			NOTIF_AUTHORIZING = 9;
+			NOTIF_AUTHORIZING = 9,
+			NOTIF_STALE_REPLACED = 10;
 
 	private final Handler notificationHandler = new Handler(Looper.getMainLooper()) {
 		@Override
@@ -174,6 +179,12 @@ public class PostListingFragment extends Fragment implements RedditPostView.Post
 				case NOTIF_AUTHORIZING:
 					if(loadingView != null) loadingView.setIndeterminate(R.string.download_authorizing);
 					break;
+
+				case NOTIF_STALE_REPLACED:
+					// Removes the age of the cached copy
+					listHeaderNotifications.removeAllViews();
+					adapter.notifyDataSetChanged();
+					break;
 			}
 		}
 	};
@@ -406,27 +417,33 @@ public class PostListingFragment extends Fragment implements RedditPostView.Post
 	public void onPostSelected(final RedditPreparedPost post) {
 		((RedditPostView.PostSelectionListener)getSupportActivity()).onPostSelected(post);
 
-		new Thread() {
+		Scheduler.add(Scheduler.Lane.DISK_IO, Constants.Priority.API_ACTION, new Runnable() {
 			public void run() {
 				post.markAsRead(getSupportActivity());
 			}
-		}.start();
+		});
 	}
 
 	public void onPostCommentsSelected(final RedditPreparedPost post) {
 		
 		((RedditPostView.PostSelectionListener)getSupportActivity()).onPostCommentsSelected(post);
 
-		new Thread() {
+		Scheduler.add(Scheduler.Lane.DISK_IO, Constants.Priority.API_ACTION, new Runnable() {
 			public void run() {
 				post.markAsRead(getSupportActivity());
 			}
-		}.start();
+		});
 	}
 
 	public void onScrollStateChanged(AbsListView view, int scrollState) {}
 
 	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+
+		if(visibleItemCount > 0) {
+			final int firstPost = Math.max(0, firstVisibleItem - lv.getHeaderViewsCount());
+			adapter.onVisibleRangeChanged(firstPost, Math.max(firstPost, firstVisibleItem + visibleItemCount - 1 - lv.getHeaderViewsCount()));
+		}
+
 		onLoadMoreItemsCheck();
 	}
 
@@ -494,6 +511,11 @@ public class PostListingFragment extends Fragment implements RedditPostView.Post
 			this.firstDownload = firstDownload;
 		}
 
+		@Override
+		public JsonProjection getJsonProjection() {
+			return RedditThing.POST_LISTING_PROJECTION;
+		}
+
 		@Override
 		protected void onDownloadNecessary() {
 			notificationHandler.sendMessage(General.handlerMessage(NOTIF_DOWNLOAD_NECESSARY, null));
@@ -512,6 +534,19 @@ public class PostListingFragment extends Fragment implements RedditPostView.Post
 		@Override
 		protected void onFailure(final RequestFailureType type, final Throwable t, final StatusLine status, final String readableMessage) {
 
+			if(firstDownload && showingStaleData) {
+
+				// Only the refresh failed, so carry on with the cached copy
+				showingStaleData = false;
+
+				final RRError error = General.getGeneralErrorForFailure(context, type, t, status, url.toString());
+				notificationHandler.sendMessage(General.handlerMessage(NOTIF_ERROR_FOOTER, error));
+
+				request = null;
+				readyToDownloadMore = true;
+				return;
+			}
+
 			if(type == RequestFailureType.CACHE_MISS) {
 
 				final RRError error = new RRError(
@@ -540,6 +575,40 @@ public class PostListingFragment extends Fragment implements RedditPostView.Post
 		@Override
 		public void onJsonParseStarted(final JsonValue value, final long timestamp, final UUID session, final boolean fromCache) {
 
+			if(firstDownload && downloadType == DownloadType.STALE_WHILE_REVALIDATE) {
+
+				if(fromCache) {
+					showingStaleData = true;
+
+				} else if(showingStaleData) {
+
+					showingStaleData = false;
+
+					if(session.equals(PostListingFragment.this.session)) {
+						// The server says the cached copy is still current, so there's nothing to replace
+						notificationHandler.sendMessage(General.handlerMessage(NOTIF_STALE_REPLACED, null));
+						notificationHandler.sendMessage(General.handlerMessage(NOTIF_DOWNLOAD_DONE, null));
+						PostListingFragment.this.timestamp = timestamp;
+						request = null;
+						readyToDownloadMore = true;
+						onLoadMoreItemsCheck();
+						return;
+					}
+
+					adapter.clearPosts();
+					notificationHandler.sendMessage(General.handlerMessage(NOTIF_STALE_REPLACED, null));
+
+					synchronized(PostListingFragment.this) {
+						postCount = 0;
+						postTotalCount = 0;
+						postRefreshCount = 0;
+						restackRefreshCount();
+						after = null;
+						lastAfter = null;
+					}
+				}
+			}
+
 			notificationHandler.sendMessage(General.handlerMessage(NOTIF_STARTING, null));
 
 			postTotalCount += 25; // TODO this can vary with the user's reddit settings
@@ -616,6 +685,11 @@ public class PostListingFragment extends Fragment implements RedditPostView.Post
 
 				notificationHandler.sendMessage(General.handlerMessage(NOTIF_DOWNLOAD_DONE, null));
 
+				if(showingStaleData) {
+					// Wait for the fresh copy before loading the next page
+					return;
+				}
+
 				request = null;
 				readyToDownloadMore = true;
 				onLoadMoreItemsCheck();
@@ -23,6 +23,8 @@ import android.os.Looper;
 import android.os.Message;
 import android.widget.ImageView;
 import jp.tomorrowkey.android.gifplayer.GifDecoder;
+import org.quantumbadger.redreader.common.Constants;
+import org.quantumbadger.redreader.common.Scheduler;
 
 import java.io.InputStream;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -74,7 +76,8 @@ public class GifDecoderThread extends Thread {
 
 		final GifDecoder decoder = new GifDecoder();
 
-		new Thread("GIF decoding thread") {
+		// This thread only sleeps between frames, so the decoding itself is the part which needs a core
+		Scheduler.add(Scheduler.Lane.CPU_DECODE, Constants.Priority.IMAGE_VIEW, new Runnable() {
 			@Override
 			public void run() {
 				try {
@@ -85,7 +88,7 @@ public class GifDecoderThread extends Thread {
 					failed.set(true);
 				}
 			}
-		}.start();
+		});
 
 		try {
 
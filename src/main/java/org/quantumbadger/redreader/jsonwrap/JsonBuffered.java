@@ -19,6 +19,7 @@ package org.quantumbadger.redreader.jsonwrap;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
+import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
 
 import java.io.IOException;
 
@@ -54,6 +55,22 @@ public abstract class JsonBuffered {
 	
 	private volatile Status status = Status.LOADING;
 	private Throwable failReason = null;
+
+	// Held here rather than in JsonValue, so that values which aren't objects or arrays are smaller
+	private JsonParser jp;
+	private JsonProjection projection;
+	private JsonStringTable strings;
+
+	/**
+	 * @param jp The stream to build this from, once build() is called.
+	 * @param projection The parts of the stream to keep, or null to keep all of it.
+	 * @param strings Shares repeated string values within the parse. May be null.
+	 */
+	JsonBuffered(final JsonParser jp, final JsonProjection projection, final JsonStringTable strings) {
+		this.jp = jp;
+		this.projection = projection;
+		this.strings = strings;
+	}
 	
 	/**
 	 * @return The current status of this object: LOADING, LOADED, or FAILED.
@@ -69,13 +86,25 @@ public abstract class JsonBuffered {
 	 * @return The final status of the object (either LOADED or FAILED).
 	 * @throws InterruptedException
 	 */
-	public final synchronized Status join() throws InterruptedException {
-		
-		while(status == Status.LOADING) {
-			wait();
+	public final Status join() throws InterruptedException {
+
+		boolean releasedBudget = false;
+
+		try {
+			synchronized(this) {
+
+				while(status == Status.LOADING) {
+					if(!releasedBudget) releasedBudget = PrioritisedCachedThreadPool.releaseBudgetWhileBlocked();
+					wait();
+				}
+
+				return status;
+			}
+
+		} finally {
+			// Outside the lock, as the thread building this object may need it
+			if(releasedBudget) PrioritisedCachedThreadPool.reacquireBudget();
 		}
-		
-		return status;
 	}
 	
 	private synchronized void setLoaded() {
@@ -112,10 +141,18 @@ public abstract class JsonBuffered {
 			throw new RuntimeException(t);
 	}
 	
-	protected final void build(final JsonParser jp) throws IOException {
+	final void build() throws IOException {
+
+		final JsonParser jp = this.jp;
+		final JsonProjection projection = this.projection;
+		final JsonStringTable strings = this.strings;
+
+		this.jp = null;
+		this.projection = null;
+		this.strings = null;
 		
 		try {
-			buildBuffered(jp);
+			buildBuffered(jp, projection, strings);
 			setLoaded();
 			
 		} catch (final IOException e) {
@@ -128,7 +165,12 @@ public abstract class JsonBuffered {
 		}
 	}
 	
-	protected abstract void buildBuffered(JsonParser jp) throws IOException;
+	/**
+	 * @param projection The parts of this value to keep, or null to keep all of it.
+	 * @param strings Shares repeated string values within the parse. May be null.
+	 */
+	protected abstract void buildBuffered(JsonParser jp, JsonProjection projection, JsonStringTable strings)
+			throws IOException;
 	
 	@Override
 	public String toString() {
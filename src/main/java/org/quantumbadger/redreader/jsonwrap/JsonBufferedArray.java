@@ -19,6 +19,7 @@ package org.quantumbadger.redreader.jsonwrap;
 
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
+import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
@@ -33,15 +34,22 @@ public final class JsonBufferedArray extends JsonBuffered implements Iterable<Js
 	
 	private final ArrayList<JsonValue> contents = new ArrayList<JsonValue>(16);
 	private int items = 0;
+
+	JsonBufferedArray(final JsonParser jp, final JsonProjection projection, final JsonStringTable strings) {
+		super(jp, projection, strings);
+	}
 	
 	@Override
-	protected void buildBuffered(final JsonParser jp) throws IOException {
+	protected void buildBuffered(final JsonParser jp, final JsonProjection projection, final JsonStringTable strings)
+			throws IOException {
 		
+		final JsonProjection elementProjection = projection == null ? null : projection.getElements();
+
 		JsonToken jt;
 		
 		while((jt = jp.nextToken()) != JsonToken.END_ARRAY) {
 			
-			final JsonValue value = new JsonValue(jp, jt);
+			final JsonValue value = new JsonValue(jp, jt, elementProjection, strings);
 			
 			synchronized(this) {
 				contents.add(value);
@@ -70,21 +78,29 @@ public final class JsonBufferedArray extends JsonBuffered implements Iterable<Js
 		if(id < 0)
 			throw new ArrayIndexOutOfBoundsException(id);
 		
-		synchronized(this) {
-			
-			while(getStatus() == Status.LOADING && items <= id) {
-				wait();
-			}
+		boolean releasedBudget = false;
 
-			if(getStatus() != Status.FAILED || items > id) {
-				return contents.get(id);
-			}
+		try {
+			synchronized(this) {
+
+				while(getStatus() == Status.LOADING && items <= id) {
+					if(!releasedBudget) releasedBudget = PrioritisedCachedThreadPool.releaseBudgetWhileBlocked();
+					wait();
+				}
+
+				if(getStatus() != Status.FAILED || items > id) {
+					return contents.get(id);
+				}
 
-			if(getStatus() == Status.FAILED) {
-				throwFailReasonException();
+				if(getStatus() == Status.FAILED) {
+					throwFailReasonException();
+				}
+
+				throw new ArrayIndexOutOfBoundsException(id);
 			}
 
-			throw new ArrayIndexOutOfBoundsException(id);
+		} finally {
+			if(releasedBudget) PrioritisedCachedThreadPool.reacquireBudget();
 		}
 	}
 	
@@ -198,25 +214,33 @@ public final class JsonBufferedArray extends JsonBuffered implements Iterable<Js
 
 		public boolean hasNext() {
 			
-			synchronized(JsonBufferedArray.this) {
-				
-				while(getStatus() == Status.LOADING && items <= currentId) {
-					try {
-						JsonBufferedArray.this.wait();
-					} catch (final InterruptedException e) {
-						throw new RuntimeException(e);
+			boolean releasedBudget = false;
+
+			try {
+				synchronized(JsonBufferedArray.this) {
+
+					while(getStatus() == Status.LOADING && items <= currentId) {
+						if(!releasedBudget) releasedBudget = PrioritisedCachedThreadPool.releaseBudgetWhileBlocked();
+						try {
+							JsonBufferedArray.this.wait();
+						} catch (final InterruptedException e) {
+							throw new RuntimeException(e);
+						}
 					}
-				}
-				
-				if(getStatus() == Status.FAILED) {
-					try {
-						throwFailReasonException();
-					} catch (final IOException e) {
-						throw new RuntimeException(e);
+
+					if(getStatus() == Status.FAILED) {
+						try {
+							throwFailReasonException();
+						} catch (final IOException e) {
+							throw new RuntimeException(e);
+						}
 					}
+
+					return items > currentId;
 				}
-				
-				return items > currentId;
+
+			} finally {
+				if(releasedBudget) PrioritisedCachedThreadPool.reacquireBudget();
 			}
 		}
 
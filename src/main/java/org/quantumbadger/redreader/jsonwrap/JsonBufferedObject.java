@@ -20,11 +20,10 @@ package org.quantumbadger.redreader.jsonwrap;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
+import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Modifier;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -37,9 +36,14 @@ import java.util.Set;
 public final class JsonBufferedObject extends JsonBuffered implements Iterable<Map.Entry<String, JsonValue>> {
 	
 	private final HashMap<String, JsonValue> properties = new HashMap<String, JsonValue>();
+
+	JsonBufferedObject(final JsonParser jp, final JsonProjection projection, final JsonStringTable strings) {
+		super(jp, projection, strings);
+	}
 	
 	@Override
-	protected void buildBuffered(final JsonParser jp) throws IOException {
+	protected void buildBuffered(final JsonParser jp, final JsonProjection projection, final JsonStringTable strings)
+			throws IOException {
 		
 		JsonToken jt;
 
@@ -50,7 +54,16 @@ public final class JsonBufferedObject extends JsonBuffered implements Iterable<M
 						jp.getCurrentLocation());
 
 			final String fieldName = jp.getCurrentName();
-			final JsonValue value = new JsonValue(jp);
+
+			if(projection != null && !projection.keepsProperty(fieldName)) {
+				// Not needed, so it isn't stored
+				jp.nextToken();
+				jp.skipChildren();
+				continue;
+			}
+
+			final JsonValue value = new JsonValue(jp, jp.nextToken(),
+					projection == null ? null : projection.getProperty(fieldName), strings);
 
 			synchronized(this) {
 				properties.put(fieldName, value);
@@ -74,21 +87,29 @@ public final class JsonBufferedObject extends JsonBuffered implements Iterable<M
 	 */
 	public JsonValue get(final String name) throws InterruptedException, IOException {
 		
-		synchronized(this) {
-			
-			while(getStatus() == Status.LOADING && !properties.containsKey(name)) {
-				wait();
-			}
+		boolean releasedBudget = false;
 
-			if(getStatus() != Status.FAILED || properties.containsKey(name)) {
-				return properties.get(name);
-			}
-			
-			if(getStatus() == Status.FAILED) {
-				throwFailReasonException();
+		try {
+			synchronized(this) {
+
+				while(getStatus() == Status.LOADING && !properties.containsKey(name)) {
+					if(!releasedBudget) releasedBudget = PrioritisedCachedThreadPool.releaseBudgetWhileBlocked();
+					wait();
+				}
+
+				if(getStatus() != Status.FAILED || properties.containsKey(name)) {
+					return properties.get(name);
+				}
+
+				if(getStatus() == Status.FAILED) {
+					throwFailReasonException();
+				}
+
+				return null;
 			}
 
-			return null;
+		} finally {
+			if(releasedBudget) PrioritisedCachedThreadPool.reacquireBudget();
 		}
 	}
 	
@@ -213,95 +234,16 @@ public final class JsonBufferedObject extends JsonBuffered implements Iterable<M
 	}
 	
 	public <E> E asObject(final Class<E> clazz) throws InstantiationException, IllegalAccessException, InterruptedException, IOException, NoSuchMethodException, InvocationTargetException {
-		final E obj = clazz.getConstructor().newInstance();
-		populateObject(obj);
-		return obj;
+		return JsonObjectBinder.forClass(clazz).bind(this);
 	}
 	
 	public void populateObject(final Object o) throws InterruptedException, IOException, IllegalArgumentException, InstantiationException, NoSuchMethodException, InvocationTargetException {
-		
-		if(join() != Status.LOADED) {
-			throwFailReasonException();
-		}
-		
-		final Field[] objectFields = o.getClass().getFields();
-		
-		try {
-			
-			for(final Field objectField : objectFields) {
-				
-				if((objectField.getModifiers() & Modifier.TRANSIENT) != 0) {
-					continue;
-				}
-
-				final JsonValue val;
-
-				if(properties.containsKey(objectField.getName())) {
-					val = properties.get(objectField.getName());
-
-				} else if(objectField.getName().startsWith("_json_")) {
-					val = properties.get(objectField.getName().substring("_json_".length()));
-				} else {
-					val = null;
-				}
-
-				if(val == null) {
-					continue;
-				}
-				
-				objectField.setAccessible(true);
-				
-				final Class<?> fieldType = objectField.getType();
-				
-				if(fieldType == Long.class || fieldType == Long.TYPE) {
-					objectField.set(o, val.asLong());
-					
-				} else if(fieldType == Double.class || fieldType == Double.TYPE) {
-					objectField.set(o, val.asDouble());
-					
-				} else if(fieldType == Integer.class || fieldType == Integer.TYPE) {
-					objectField.set(o, val.isNull() ? null : val.asLong().intValue());
-					
-				} else if(fieldType == Float.class || fieldType == Float.TYPE) {
-					objectField.set(o, val.isNull() ? null : val.asDouble().floatValue());
-					
-				} else if(fieldType == Boolean.class || fieldType == Boolean.TYPE) {
-					objectField.set(o, val.asBoolean());
-					
-				} else if(fieldType == String.class) {
-					objectField.set(o, val.asString());
-					
-				} else if(fieldType == JsonBufferedArray.class) {
-					objectField.set(o, val.asArray());
-					
-				} else if(fieldType == JsonBufferedObject.class) {
-					objectField.set(o, val.asObject());
-					
-				} else if(fieldType == JsonValue.class) {
-					objectField.set(o, val);
-
-				} else if(fieldType == Object.class) {
-
-					final Object result;
-
-					switch(val.getType()) {
-						case BOOLEAN: result = val.asBoolean(); break;
-						case INTEGER: result = val.asLong(); break;
-						case STRING: result = val.asString(); break;
-						case FLOAT: result = val.asDouble(); break;
-						default: result = val;
-					}
+		JsonObjectBinder.forClass(o.getClass()).populate(this, o);
+	}
 
-					objectField.set(o, result);
-					
-				} else {
-					objectField.set(o, val.asObject(fieldType));
-				}
-			}
-			
-		} catch(IllegalAccessException e) {
-			throw new RuntimeException(e);
-		}
+	// Only called once the object is fully received, so doesn't need to block
+	JsonValue getLoaded(final String name) {
+		return properties.get(name);
 	}
 
 	public Iterator<Map.Entry<String, JsonValue>> iterator() {
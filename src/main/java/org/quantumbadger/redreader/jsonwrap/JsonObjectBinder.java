@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.jsonwrap;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * Copies the properties of a JSON object into the public fields of a class with the same names. A field
+ * whose name starts with "_json_" is also filled from the property without the prefix, for properties
+ * whose name isn't a valid Java identifier. Transient fields are ignored.
+ *
+ * The fields of each class are looked up once, when its binder is created, and each field is given a
+ * setter for its type. Binding an object then only looks up the properties.
+ *
+ * An object can also be bound directly from a JsonParser, without building a JsonBufferedObject first.
+ * Only the values of fields which exist in the class are kept.
+ */
+public final class JsonObjectBinder<E> {
+
+	static final String JSON_PREFIX = "_json_";
+
+	private static final HashMap<Class<?>, JsonObjectBinder<?>> binders = new HashMap<Class<?>, JsonObjectBinder<?>>();
+
+	private enum FieldType {
+		LONG, LONG_BOXED, DOUBLE, DOUBLE_BOXED, INT, INT_BOXED, FLOAT, FLOAT_BOXED, BOOLEAN, BOOLEAN_BOXED,
+		STRING, ARRAY, OBJECT, VALUE, ANY, BOUND_OBJECT
+	}
+
+	private static final class FieldBinding {
+
+		private final Field field;
+		private final FieldType type;
+		private final String name, alternativeName;
+
+		private FieldBinding(final Field field) {
+
+			this.field = field;
+			this.type = getFieldType(field.getType());
+			this.name = field.getName();
+			this.alternativeName = name.startsWith(JSON_PREFIX) ? name.substring(JSON_PREFIX.length()) : null;
+
+			field.setAccessible(true);
+		}
+
+		private void bind(final Object o, final JsonValue val) throws IllegalAccessException, InterruptedException,
+				IOException, InstantiationException, NoSuchMethodException, InvocationTargetException {
+
+			switch(type) {
+
+				case LONG:
+					field.setLong(o, checkNotNull(val).getLongValue());
+					break;
+
+				case LONG_BOXED:
+					field.set(o, val.asLong());
+					break;
+
+				case DOUBLE:
+					field.setDouble(o, checkNotNull(val).getDoubleValue());
+					break;
+
+				case DOUBLE_BOXED:
+					field.set(o, val.asDouble());
+					break;
+
+				case INT:
+					field.setInt(o, (int)checkNotNull(val).getLongValue());
+					break;
+
+				case INT_BOXED:
+					field.set(o, val.isNull() ? null : (int)val.getLongValue());
+					break;
+
+				case FLOAT:
+					field.setFloat(o, (float)checkNotNull(val).getDoubleValue());
+					break;
+
+				case FLOAT_BOXED:
+					field.set(o, val.isNull() ? null : (float)val.getDoubleValue());
+					break;
+
+				case BOOLEAN:
+					field.setBoolean(o, checkNotNull(val).getBooleanValue());
+					break;
+
+				case BOOLEAN_BOXED:
+					field.set(o, val.asBoolean());
+					break;
+
+				case STRING:
+					field.set(o, val.asString());
+					break;
+
+				case ARRAY:
+					field.set(o, val.asArray());
+					break;
+
+				case OBJECT:
+					field.set(o, val.asObject());
+					break;
+
+				case VALUE:
+					field.set(o, val);
+					break;
+
+				case ANY: {
+
+					final Object result;
+
+					switch(val.getType()) {
+						case BOOLEAN: result = val.asBoolean(); break;
+						case INTEGER: result = val.asLong(); break;
+						case STRING: result = val.asString(); break;
+						case FLOAT: result = val.asDouble(); break;
+						default: result = val;
+					}
+
+					field.set(o, result);
+					break;
+				}
+
+				case BOUND_OBJECT:
+					field.set(o, val.asObject(field.getType()));
+					break;
+			}
+		}
+
+		// A null can't be stored in a primitive field
+		private JsonValue checkNotNull(final JsonValue value) {
+
+			if(value.isNull()) {
+				throw new IllegalArgumentException("Null value for primitive field " + name);
+			}
+
+			return value;
+		}
+	}
+
+	private static FieldType getFieldType(final Class<?> fieldType) {
+
+		if(fieldType == Long.TYPE) return FieldType.LONG;
+		if(fieldType == Long.class) return FieldType.LONG_BOXED;
+		if(fieldType == Double.TYPE) return FieldType.DOUBLE;
+		if(fieldType == Double.class) return FieldType.DOUBLE_BOXED;
+		if(fieldType == Integer.TYPE) return FieldType.INT;
+		if(fieldType == Integer.class) return FieldType.INT_BOXED;
+		if(fieldType == Float.TYPE) return FieldType.FLOAT;
+		if(fieldType == Float.class) return FieldType.FLOAT_BOXED;
+		if(fieldType == Boolean.TYPE) return FieldType.BOOLEAN;
+		if(fieldType == Boolean.class) return FieldType.BOOLEAN_BOXED;
+		if(fieldType == String.class) return FieldType.STRING;
+		if(fieldType == JsonBufferedArray.class) return FieldType.ARRAY;
+		if(fieldType == JsonBufferedObject.class) return FieldType.OBJECT;
+		if(fieldType == JsonValue.class) return FieldType.VALUE;
+		if(fieldType == Object.class) return FieldType.ANY;
+
+		return FieldType.BOUND_OBJECT;
+	}
+
+	/**
+	 * Reads some of the properties of an object which is being bound from a stream, instead of the binder.
+	 */
+	public interface StreamedFieldHandler {
+
+		/**
+		 * Called with the parser at the first token of the value of each property.
+		 *
+		 * @return True if the value has been read, leaving the parser at its last token. False if it should
+		 * be bound as usual, in which case the parser must not have been moved.
+		 */
+		boolean onField(String name, JsonParser jp) throws IOException, InterruptedException,
+				IllegalAccessException, InstantiationException, NoSuchMethodException, InvocationTargetException;
+	}
+
+	private final Constructor<E> constructor;
+	private final FieldBinding[] bindings;
+
+	// The bindings by property name, for binding from a stream
+	private final HashMap<String, FieldBinding> bindingsByName = new HashMap<String, FieldBinding>();
+
+	private JsonObjectBinder(final Class<E> clazz) throws NoSuchMethodException {
+
+		constructor = clazz.getConstructor();
+
+		final ArrayList<FieldBinding> bindingList = new ArrayList<FieldBinding>();
+
+		for(final Field field : clazz.getFields()) {
+			if((field.getModifiers() & Modifier.TRANSIENT) == 0) {
+				bindingList.add(new FieldBinding(field));
+			}
+		}
+
+		bindings = bindingList.toArray(new FieldBinding[bindingList.size()]);
+
+		// A field is filled from the property with its own name in preference to the one without the prefix
+		for(final FieldBinding binding : bindings) {
+			if(binding.alternativeName != null) {
+				bindingsByName.put(binding.alternativeName, binding);
+			}
+		}
+
+		for(final FieldBinding binding : bindings) {
+			bindingsByName.put(binding.name, binding);
+		}
+	}
+
+	/**
+	 * Returns the binder for the specified class, creating it the first time the class is used.
+	 *
+	 * @throws NoSuchMethodException If the class has no public constructor without arguments.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <E> JsonObjectBinder<E> forClass(final Class<E> clazz) throws NoSuchMethodException {
+
+		synchronized(binders) {
+
+			JsonObjectBinder<E> binder = (JsonObjectBinder<E>)binders.get(clazz);
+
+			if(binder == null) {
+				binder = new JsonObjectBinder<E>(clazz);
+				binders.put(clazz, binder);
+			}
+
+			return binder;
+		}
+	}
+
+	/**
+	 * Creates a new object, and fills it from the JSON object, blocking until it is fully received.
+	 */
+	public E bind(final JsonBufferedObject jsonObject) throws InstantiationException, IllegalAccessException,
+			InterruptedException, IOException, NoSuchMethodException, InvocationTargetException {
+
+		if(jsonObject == null) {
+			return null;
+		}
+
+		final E obj = constructor.newInstance();
+		populate(jsonObject, obj);
+		return obj;
+	}
+
+	/**
+	 * Creates a new object, and fills it from the object at the current token of the parser, which must be
+	 * the start of an object. The parser is left at the end of the object.
+	 *
+	 * @param strings Shares repeated string values within the parse. May be null.
+	 * @param handler Reads any properties which must not be bound as usual. May be null.
+	 */
+	public E bind(final JsonParser jp, final JsonStringTable strings, final StreamedFieldHandler handler)
+			throws InstantiationException, IllegalAccessException, InterruptedException, IOException,
+			NoSuchMethodException, InvocationTargetException {
+
+		final E obj = constructor.newInstance();
+		populate(jp, obj, strings, handler);
+		return obj;
+	}
+
+	/**
+	 * Fills an existing object from the object at the current token of the parser. If the stream contains
+	 * both the property named after a field and the one without its "_json_" prefix, whichever comes last
+	 * is used.
+	 *
+	 * @param strings Shares repeated string values within the parse. May be null.
+	 * @param handler Reads any properties which must not be bound as usual. May be null.
+	 */
+	public void populate(final JsonParser jp, final Object o, final JsonStringTable strings,
+			final StreamedFieldHandler handler) throws InterruptedException, IOException, IllegalAccessException,
+			InstantiationException, NoSuchMethodException, InvocationTargetException {
+
+		if(jp.getCurrentToken() != JsonToken.START_OBJECT) {
+			throw new JsonParseException("Expecting an object, got " + jp.getCurrentToken(), jp.getCurrentLocation());
+		}
+
+		JsonToken jt;
+
+		while((jt = jp.nextToken()) != JsonToken.END_OBJECT) {
+
+			if(jt != JsonToken.FIELD_NAME)
+				throw new JsonParseException("Expecting field name, got " + jt, jp.getCurrentLocation());
+
+			final String name = jp.getCurrentName();
+			jp.nextToken();
+
+			if(handler != null && handler.onField(name, jp)) {
+				continue;
+			}
+
+			final FieldBinding binding = bindingsByName.get(name);
+
+			if(binding == null) {
+				jp.skipChildren();
+				continue;
+			}
+
+			binding.bind(o, JsonValue.buildFromCurrentToken(jp, strings));
+		}
+	}
+
+	/**
+	 * Fills an existing object from the JSON object, blocking until it is fully received.
+	 */
+	public void populate(final JsonBufferedObject jsonObject, final Object o) throws InterruptedException,
+			IOException, InstantiationException, NoSuchMethodException, InvocationTargetException {
+
+		if(jsonObject.join() != JsonBuffered.Status.LOADED) {
+			jsonObject.throwFailReasonException();
+		}
+
+		try {
+
+			for(final FieldBinding binding : bindings) {
+
+				JsonValue val = jsonObject.getLoaded(binding.name);
+
+				if(val == null && binding.alternativeName != null) {
+					val = jsonObject.getLoaded(binding.alternativeName);
+				}
+
+				if(val != null) {
+					binding.bind(o, val);
+				}
+			}
+
+		} catch(IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
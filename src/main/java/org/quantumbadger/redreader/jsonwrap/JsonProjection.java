@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.jsonwrap;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+
+
+/**
+ * Describes which parts of a JSON document should be kept when it is parsed into a tree. Properties of an
+ * object which aren't in the projection are skipped by the parser, and are never stored. A projection is
+ * immutable, and may be shared between parses.
+ *
+ * Where no projection is given, for the document or for a kept property or array element, the whole
+ * value is kept. A caller which needs the raw tree parses without a projection.
+ */
+public final class JsonProjection {
+
+	// The properties kept when applied to an object, or null if all of them are kept
+	private final HashMap<String, JsonProjection> properties;
+
+	// Applied to each element when applied to an array, or null if they are kept whole
+	private final JsonProjection elements;
+
+	private JsonProjection(final HashMap<String, JsonProjection> properties, final JsonProjection elements) {
+		this.properties = properties;
+		this.elements = elements;
+	}
+
+	/**
+	 * Keeps only the specified properties of an object, each of them whole.
+	 */
+	public static JsonProjection properties(final String... names) {
+
+		final HashMap<String, JsonProjection> properties = new HashMap<String, JsonProjection>();
+
+		for(final String name : names) {
+			properties.put(name, null);
+		}
+
+		return new JsonProjection(properties, null);
+	}
+
+	/**
+	 * Keeps only the properties of an object which would be bound to the public fields of the specified
+	 * class, each of them whole.
+	 */
+	public static JsonProjection forClass(final Class<?> clazz) {
+
+		final HashMap<String, JsonProjection> properties = new HashMap<String, JsonProjection>();
+
+		for(final Field field : clazz.getFields()) {
+
+			if((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0) {
+				continue;
+			}
+
+			final String name = field.getName();
+			properties.put(name, null);
+
+			if(name.startsWith(JsonObjectBinder.JSON_PREFIX)) {
+				properties.put(name.substring(JsonObjectBinder.JSON_PREFIX.length()), null);
+			}
+		}
+
+		return new JsonProjection(properties, null);
+	}
+
+	/**
+	 * Keeps every element of an array, applying the specified projection to each.
+	 */
+	public static JsonProjection arrayOf(final JsonProjection elements) {
+		return new JsonProjection(null, elements);
+	}
+
+	/**
+	 * Returns a copy of this projection which also keeps the specified property, applying another
+	 * projection to its value. Any projection this one had for the property is replaced.
+	 */
+	public JsonProjection with(final String name, final JsonProjection value) {
+
+		final HashMap<String, JsonProjection> newProperties = properties == null
+				? new HashMap<String, JsonProjection>()
+				: new HashMap<String, JsonProjection>(properties);
+
+		newProperties.put(name, value);
+
+		return new JsonProjection(newProperties, elements);
+	}
+
+	boolean keepsProperty(final String name) {
+		return properties == null || properties.containsKey(name);
+	}
+
+	// Returns null if the value of the property is kept whole
+	JsonProjection getProperty(final String name) {
+		return properties == null ? null : properties.get(name);
+	}
+
+	// Returns null if the elements are kept whole
+	JsonProjection getElements() {
+		return elements;
+	}
+}
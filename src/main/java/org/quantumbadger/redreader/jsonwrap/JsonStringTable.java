@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.jsonwrap;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+
+
+/**
+ * Shares one String between the repeated short string values of a parse, such as the author, subreddit
+ * and kind of each thing in a listing. A value is compared with the table before a String is created for
+ * it, so a repeated value doesn't allocate.
+ *
+ * Property names don't need this, as the parser already returns the same String for each occurrence of
+ * a name.
+ *
+ * The table has a fixed number of slots, so it never holds more than a few KB however much is parsed.
+ * Each slot counts how often its value is found, and a new value only replaces it once other values have
+ * missed it as often, so that values which are only seen once, such as IDs, don't push out the common ones.
+ * It isn't thread safe, so each parse needs its own table.
+ */
+public final class JsonStringTable {
+
+	/**
+	 * Values up to this many characters are shared by default. Longer values, such as comment bodies,
+	 * are rarely repeated.
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 32;
+
+	private static final int SLOTS = 1024;
+
+	// A slot's value is kept while its count is above zero
+	private static final int MAX_COUNT = 16;
+
+	private final String[] strings = new String[SLOTS];
+	private final byte[] counts = new byte[SLOTS];
+	private final int maxLength;
+
+	public JsonStringTable() {
+		this(DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * @param maxLength Values longer than this are never shared. To share none, parse without a table.
+	 */
+	public JsonStringTable(final int maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Returns the text of the current token of the parser, which must be a string value.
+	 */
+	public String getText(final JsonParser jp) throws IOException {
+
+		final int length = jp.getTextLength();
+
+		if(length > maxLength) {
+			return jp.getText();
+		}
+
+		final char[] chars = jp.getTextCharacters();
+		final int offset = jp.getTextOffset();
+
+		// The same hash as String.hashCode()
+		int hash = 0;
+
+		for(int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + chars[i];
+		}
+
+		final int slot = (hash ^ (hash >>> 16)) & (SLOTS - 1);
+		final String existing = strings[slot];
+
+		if(existing != null && existing.hashCode() == hash && matches(existing, chars, offset, length)) {
+
+			if(counts[slot] < MAX_COUNT) {
+				counts[slot]++;
+			}
+
+			return existing;
+		}
+
+		final String result = new String(chars, offset, length);
+
+		if(counts[slot] > 0) {
+			counts[slot]--;
+		} else {
+			strings[slot] = result;
+			counts[slot] = 1;
+		}
+
+		return result;
+	}
+
+	private static boolean matches(final String string, final char[] chars, final int offset, final int length) {
+
+		if(string.length() != length) {
+			return false;
+		}
+
+		for(int i = 0; i < length; i++) {
+			if(string.charAt(i) != chars[offset + i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -47,9 +47,12 @@ public final class JsonValue {
 	}
 	
 	private final Type type;
+
+	// The object, array or string. Null for other types.
 	private final Object value;
-	
-	private JsonParser jp = null;
+
+	// Integers, and booleans as 0 or 1, are stored as they are. Floats are stored as the bits of the double.
+	private final long primitiveValue;
 	
 	/**
 	 * Begins parsing a JSON stream into a tree structure. The JsonValue object
@@ -163,59 +166,122 @@ public final class JsonValue {
 		this(new JsonFactory().createParser(source));
 	}
 	
-	// The main constructor
+	/**
+	 * Begins parsing a JSON stream into a tree structure, keeping only the
+	 * parts of it described by the projection. Anything else is skipped, and
+	 * can't be retrieved from the tree. Repeated short strings in the stream
+	 * share one String.
+	 * 
+	 * This constructor will block until the first JSON token is received. To
+	 * continue building the tree, the "build" method (inherited from
+	 * JsonBuffered) must be called in another thread.
+	 * 
+	 * @param source
+	 *			The source of incoming JSON data.
+	 * @param projection
+	 *			The parts of the stream to keep, or null to keep all of it.
+	 * @throws java.io.IOException
+	 */
+	public JsonValue(final InputStream source, final JsonProjection projection) throws IOException {
+		this(source, projection, new JsonStringTable());
+	}
+	
+	/**
+	 * Begins parsing a JSON stream into a tree structure, keeping only the
+	 * parts of it described by the projection.
+	 * 
+	 * This constructor will block until the first JSON token is received. To
+	 * continue building the tree, the "build" method (inherited from
+	 * JsonBuffered) must be called in another thread.
+	 * 
+	 * @param source
+	 *			The source of incoming JSON data.
+	 * @param projection
+	 *			The parts of the stream to keep, or null to keep all of it.
+	 * @param strings
+	 *			Shares repeated string values within this parse, or null to
+	 *			create a new String for each value.
+	 * @throws java.io.IOException
+	 */
+	public JsonValue(final InputStream source, final JsonProjection projection, final JsonStringTable strings)
+			throws IOException {
+		this(new JsonFactory().createParser(source), projection, strings);
+	}
+	
+	private JsonValue(final JsonParser jp, final JsonProjection projection, final JsonStringTable strings)
+			throws IOException {
+		this(jp, jp.nextToken(), projection, strings);
+	}
+	
 	protected JsonValue(final JsonParser jp, final JsonToken firstToken) throws IOException {
+		this(jp, firstToken, null, null);
+	}
+	
+	// The main constructor
+	JsonValue(final JsonParser jp, final JsonToken firstToken, final JsonProjection projection,
+			final JsonStringTable strings) throws IOException {
 		
 		switch(firstToken) {
 			
 			case START_OBJECT:
 				type = Type.OBJECT;
-				value = new JsonBufferedObject();
-				this.jp = jp;
+				value = new JsonBufferedObject(jp, projection, strings);
+				primitiveValue = 0;
 				break;
 				
 			case START_ARRAY:
 				type = Type.ARRAY;
-				value = new JsonBufferedArray();
-				this.jp = jp;
+				value = new JsonBufferedArray(jp, projection, strings);
+				primitiveValue = 0;
 				break;
 				
 			case VALUE_FALSE:
 				type = Type.BOOLEAN;
-				value = false;
+				value = null;
+				primitiveValue = 0;
 				break;
 				
 			case VALUE_TRUE:
 				type = Type.BOOLEAN;
-				value = true;
+				value = null;
+				primitiveValue = 1;
 				break;
 				
 			case VALUE_NULL:
 				type = Type.NULL;
 				value = null;
+				primitiveValue = 0;
 				break;
 				
 			case VALUE_STRING:
 				type = Type.STRING;
-				value = jp.getValueAsString();
+				value = strings == null ? jp.getText() : strings.getText(jp);
+				primitiveValue = 0;
 				break;
 				
-			case VALUE_NUMBER_FLOAT:
+			case VALUE_NUMBER_FLOAT: {
+
+				final double doubleValue = jp.getValueAsDouble();
+				final long longValue = jp.getValueAsLong();
+
+				value = null;
 
 				//noinspection FloatingPointEquality,UnnecessaryExplicitNumericCast
-				if(jp.getValueAsDouble() == (double)jp.getValueAsLong()) {
+				if(doubleValue == (double)longValue) {
 					type = Type.INTEGER;
-					value = jp.getValueAsLong();
+					primitiveValue = longValue;
 				} else {
 					type = Type.FLOAT;
-					value = jp.getValueAsDouble();
+					primitiveValue = Double.doubleToRawLongBits(doubleValue);
 				}
 				
 				break;
+			}
 				
 			case VALUE_NUMBER_INT:
 				type = Type.INTEGER;
-				value = jp.getValueAsLong();
+				value = null;
+				primitiveValue = jp.getValueAsLong();
 				break;
 				
 			default:
@@ -223,6 +289,36 @@ public final class JsonValue {
 		}
 	}
 	
+	/**
+	 * Reads the value at the current token of the parser, including all of its children, and leaves the
+	 * parser at the last token of the value. Used to keep part of a stream which is otherwise read directly
+	 * from the parser.
+	 *
+	 * @param jp
+	 *			The incoming JSON stream, positioned at the first token of the value
+	 * @throws java.io.IOException
+	 */
+	public static JsonValue buildFromCurrentToken(final JsonParser jp) throws IOException {
+		return buildFromCurrentToken(jp, null);
+	}
+	
+	/**
+	 * Reads the value at the current token of the parser, as buildFromCurrentToken(JsonParser) does,
+	 * sharing repeated string values through the table.
+	 *
+	 * @param jp
+	 *			The incoming JSON stream, positioned at the first token of the value
+	 * @param strings
+	 *			Shares repeated string values within the parse. May be null.
+	 * @throws java.io.IOException
+	 */
+	public static JsonValue buildFromCurrentToken(final JsonParser jp, final JsonStringTable strings)
+			throws IOException {
+		final JsonValue result = new JsonValue(jp, jp.getCurrentToken(), null, strings);
+		result.buildInThisThread();
+		return result;
+	}
+
 	/**
 	 * Continues the process of parsing the specified JSON stream.
 	 * 
@@ -235,10 +331,8 @@ public final class JsonValue {
 	public void buildInThisThread() throws IOException {
 		
 		if(type == Type.OBJECT || type == Type.ARRAY) {
-			((JsonBuffered)value).build(jp);
+			((JsonBuffered)value).build();
 		}
-		
-		this.jp = null;
 	}
 	
 	/**
@@ -306,7 +400,7 @@ public final class JsonValue {
 			case NULL:
 				return null;
 			default:
-				return (Boolean)value;
+				return getBooleanValue();
 		}
 	}
 	
@@ -319,11 +413,11 @@ public final class JsonValue {
 		
 		switch(type) {
 			case FLOAT:
-				return String.valueOf(asDouble());
+				return String.valueOf(getDoubleValue());
 			case INTEGER:
-				return String.valueOf(asLong());
+				return String.valueOf(primitiveValue);
 			case BOOLEAN:
-				return String.valueOf(asBoolean());
+				return String.valueOf(getBooleanValue());
 			case NULL:
 				return null;
 			default:
@@ -340,12 +434,8 @@ public final class JsonValue {
 		switch(type) {
 			case NULL:
 				return null;
-			case INTEGER:
-				return ((Long)value).doubleValue();
-			case STRING:
-				return Double.parseDouble(asString());
 			default:
-				return (Double)value;
+				return getDoubleValue();
 		}
 	}
 	
@@ -358,14 +448,76 @@ public final class JsonValue {
 		switch(type) {
 			case NULL:
 				return null;
+			default:
+				return getLongValue();
+		}
+	}
+
+	/**
+	 * Returns the value of an integer, float or numeric string as a long,
+	 * without allocating anything for integers and floats.
+	 *
+	 * @throws NullPointerException If the value is null.
+	 * @throws ClassCastException If the value isn't a number or string.
+	 * @throws NumberFormatException If the string isn't a number.
+	 */
+	public long getLongValue() {
+		switch(type) {
+			case INTEGER:
+				return primitiveValue;
 			case FLOAT:
-				return ((Double)value).longValue();
+				return (long)Double.longBitsToDouble(primitiveValue);
 			case STRING:
-				return Long.parseLong(asString());
+				return Long.parseLong((String)value);
 			default:
-				return (Long)value;
+				throw wrongType("long");
 		}
 	}
+
+	/**
+	 * Returns the value of an integer, float or numeric string as a double,
+	 * without allocating anything for integers and floats.
+	 *
+	 * @throws NullPointerException If the value is null.
+	 * @throws ClassCastException If the value isn't a number or string.
+	 * @throws NumberFormatException If the string isn't a number.
+	 */
+	public double getDoubleValue() {
+		switch(type) {
+			case INTEGER:
+				return (double)primitiveValue;
+			case FLOAT:
+				return Double.longBitsToDouble(primitiveValue);
+			case STRING:
+				return Double.parseDouble((String)value);
+			default:
+				throw wrongType("double");
+		}
+	}
+
+	/**
+	 * Returns the value of a boolean, without allocating anything.
+	 *
+	 * @throws NullPointerException If the value is null.
+	 * @throws ClassCastException If the value isn't a boolean.
+	 */
+	public boolean getBooleanValue() {
+		switch(type) {
+			case BOOLEAN:
+				return primitiveValue != 0;
+			default:
+				throw wrongType("boolean");
+		}
+	}
+
+	private RuntimeException wrongType(final String wanted) {
+
+		if(type == Type.NULL) {
+			return new NullPointerException("Null JSON value read as a " + wanted);
+		}
+
+		return new ClassCastException("JSON " + type.name() + " read as a " + wanted);
+	}
 	
 	@Override
 	public String toString() {
@@ -388,9 +540,9 @@ public final class JsonValue {
 	protected void prettyPrint(final int indent, final StringBuilder sb) throws InterruptedException, IOException {
 		
 		switch(type) {
-			case BOOLEAN:	sb.append(asBoolean()); break;
-			case FLOAT:		sb.append(asDouble()); break;
-			case INTEGER:	sb.append(asLong()); break;
+			case BOOLEAN:	sb.append(getBooleanValue()); break;
+			case FLOAT:		sb.append(getDoubleValue()); break;
+			case INTEGER:	sb.append(primitiveValue); break;
 			case NULL:		sb.append("null"); break;
 			case STRING:	sb.append("\"").append(asString().replace("\\", "\\\\").replace("\"", "\\\"")).append("\""); break;
 			case ARRAY:
@@ -89,7 +89,19 @@ public class PostListingController {
 
 	public final PostListingFragment get(final boolean force) {
 		if(force) session = null;
-		return PostListingFragment.newInstance(getUri(), session, force ? CacheRequest.DownloadType.FORCE : CacheRequest.DownloadType.IF_NECESSARY);
+
+		final CacheRequest.DownloadType downloadType;
+
+		if(force) {
+			downloadType = CacheRequest.DownloadType.FORCE;
+		} else if(session == null) {
+			// Show what we have straight away, and replace it once the listing has been downloaded again
+			downloadType = CacheRequest.DownloadType.STALE_WHILE_REVALIDATE;
+		} else {
+			downloadType = CacheRequest.DownloadType.IF_NECESSARY;
+		}
+
+		return PostListingFragment.newInstance(getUri(), session, downloadType);
 	}
 
 	public final boolean isSubreddit() {
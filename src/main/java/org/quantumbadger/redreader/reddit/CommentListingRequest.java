@@ -21,14 +21,13 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import com.fasterxml.jackson.core.JsonParser;
 import org.apache.http.StatusLine;
 import org.quantumbadger.redreader.account.RedditAccount;
 import org.quantumbadger.redreader.cache.CacheManager;
 import org.quantumbadger.redreader.cache.CacheRequest;
 import org.quantumbadger.redreader.cache.RequestFailureType;
 import org.quantumbadger.redreader.common.*;
-import org.quantumbadger.redreader.jsonwrap.JsonBufferedArray;
-import org.quantumbadger.redreader.jsonwrap.JsonBufferedObject;
 import org.quantumbadger.redreader.jsonwrap.JsonValue;
 import org.quantumbadger.redreader.reddit.prepared.RedditChangeDataManager;
 import org.quantumbadger.redreader.reddit.prepared.RedditPreparedComment;
@@ -37,7 +36,6 @@ import org.quantumbadger.redreader.reddit.prepared.RedditPreparedPost;
 import org.quantumbadger.redreader.reddit.things.RedditComment;
 import org.quantumbadger.redreader.reddit.things.RedditMoreComments;
 import org.quantumbadger.redreader.reddit.things.RedditPost;
-import org.quantumbadger.redreader.reddit.things.RedditThing;
 import org.quantumbadger.redreader.reddit.url.RedditURLParser;
 
 import java.io.IOException;
@@ -223,7 +221,14 @@ public class CommentListingRequest {
 		protected void onSuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final UUID session, final boolean fromCache, final String mimetype) {}
 
 		@Override
-		public void onJsonParseStarted(final JsonValue value, final long timestamp, final UUID session, final boolean fromCache) {
+		public boolean isJsonStreamed() {
+			return true;
+		}
+
+		@Override
+		protected void onJsonStreamed(final JsonParser jp, final long timestamp, final UUID session, final boolean fromCache)
+				throws IOException, InterruptedException, IllegalAccessException, InstantiationException,
+				NoSuchMethodException, InvocationTargetException {
 
 			if(fromCache) {
 				notifyListener(Event.EVENT_CACHED_COPY, timestamp);
@@ -231,101 +236,98 @@ public class CommentListingRequest {
 
 			notifyListener(Event.EVENT_PARSE_START);
 
-			try {
-				// Download main post
-				if(value.getType() == JsonValue.Type.ARRAY) {
-
-					// lol, reddit api
-					final JsonBufferedArray root = value.asArray();
-					final JsonBufferedObject thing = root.get(0).asObject();
-					final JsonBufferedObject listing = thing.getObject("data");
-					final JsonBufferedArray postContainer = listing.getArray("children");
-					final RedditThing postThing = postContainer.getObject(0, RedditThing.class);
-					final RedditPost post = postThing.asPost();
-
-					final RedditPreparedPost preparedPost = new RedditPreparedPost(
-							context,
-							mCacheManager,
-							0,
-							post,
-							timestamp,
-							true,
-							false,
-							false,
-							false,
-							user,
-							mParsePostSelfText);
-
-					notifyListener(Event.EVENT_POST_DOWNLOADED, preparedPost);
-
-					mParentPost = preparedPost;
-				}
-
-				// Download comments
-
-				final JsonBufferedObject thing;
+			// The cache discards a copy which can't be read. Once the post or a comment has been passed on, the
+			// request fails rather than downloading the page again, which would pass them on twice.
+			final CommentBuilder builder = new CommentBuilder(timestamp);
 
-				if(value.getType() == JsonValue.Type.ARRAY) {
-					thing = value.asArray().get(1).asObject();
-				} else {
-					thing = value.asObject();
+			try {
+				RedditCommentListingParser.parse(jp, builder);
+			} finally {
+				if(builder.mItemsDelivered) {
+					setJsonStreamDelivered();
 				}
+			}
 
-				final JsonBufferedObject listing = thing.getObject("data");
-				final JsonBufferedArray topLevelComments = listing.getArray("children");
-
-				final String parentId;
+			notifyListener(Event.EVENT_COMPLETE);
+		}
 
-				switch(mUrl.pathType()) {
-					case PostCommentListingURL:
-						parentId = "t3_" + mUrl.asPostCommentListURL().postId;
-						break;
-					case UserCommentListingURL:
-						parentId = "/u/" + mUrl.asUserCommentListURL().user + "/comments";
-						break;
-					default:
-						throw new RuntimeException("Unknown url type");
-				}
+		@Override
+		public void onJsonParseStarted(final JsonValue value, final long timestamp, final UUID session, final boolean fromCache) {
 
-				final HashSet<String> needsChanging = RedditChangeDataManager
-						.getInstance(context)
-						.getChangedForParent(parentId, user);
+			if(fromCache) {
+				notifyListener(Event.EVENT_CACHED_COPY, timestamp);
+			}
 
-				for(final JsonValue commentThingValue : topLevelComments) {
-					buildComments(commentThingValue, null, timestamp, needsChanging);
-				}
+			notifyListener(Event.EVENT_PARSE_START);
 
+			try {
+				RedditCommentListingParser.parse(value, new CommentBuilder(timestamp));
 				notifyListener(Event.EVENT_COMPLETE);
 
-
 			} catch (Throwable t) {
 				notifyFailure(RequestFailureType.PARSE, t, null, "Parse failure");
 			}
 		}
 	}
 
-	private void buildComments(final JsonValue value, final RedditCommentListItem parent, final long timestamp, final HashSet<String> needsChanging) throws IOException, InterruptedException, IllegalAccessException, java.lang.InstantiationException, NoSuchMethodException, InvocationTargetException {
+	// Prepares the post and comments, and passes them to the listener as they are read
+	private class CommentBuilder implements RedditCommentListingParser.Visitor<RedditCommentListItem> {
+
+		private final long mTimestamp;
+		private final HashSet<String> mNeedsChanging;
+
+		private boolean mItemsDelivered = false;
 
-		final RedditThing commentThing = value.asObject(RedditThing.class);
+		private CommentBuilder(final long timestamp) {
 
-		final RedditCommentListItem item;
-		boolean shouldRecurse = false;
+			mTimestamp = timestamp;
 
-		if(commentThing.getKind() == RedditThing.Kind.MORE_COMMENTS
-				&& mUrl.pathType() == RedditURLParser.PathType.PostCommentListingURL) {
+			final String parentId;
 
-			final RedditMoreComments redditMoreComments = commentThing.asMoreComments();
-			final RedditPreparedMoreComments preparedMoreComments = new RedditPreparedMoreComments(redditMoreComments, mUrl.asPostCommentListURL());
-			item = new RedditCommentListItem(parent, preparedMoreComments);
+			switch(mUrl.pathType()) {
+				case PostCommentListingURL:
+					parentId = "t3_" + mUrl.asPostCommentListURL().postId;
+					break;
+				case UserCommentListingURL:
+					parentId = "/u/" + mUrl.asUserCommentListURL().user + "/comments";
+					break;
+				default:
+					throw new RuntimeException("Unknown url type");
+			}
+
+			mNeedsChanging = RedditChangeDataManager
+					.getInstance(mContext)
+					.getChangedForParent(parentId, mUser);
+		}
+
+		public void onPost(final RedditPost post) {
+
+			final RedditPreparedPost preparedPost = new RedditPreparedPost(
+					mContext,
+					mCacheManager,
+					0,
+					post,
+					mTimestamp,
+					true,
+					false,
+					false,
+					false,
+					mUser,
+					mParsePostSelfText);
+
+			notifyListener(Event.EVENT_POST_DOWNLOADED, preparedPost);
+			mItemsDelivered = true;
+
+			mParentPost = preparedPost;
+		}
 
-		} else if(commentThing.getKind() == RedditThing.Kind.COMMENT) {
+		public RedditCommentListItem onComment(final RedditComment comment, final RedditCommentListItem parent) {
 
-			final RedditComment comment = commentThing.asComment();
 			final RedditPreparedComment preparedComment = new RedditPreparedComment(
 					mContext,
 					comment,
-					timestamp,
-					needsChanging.contains(comment.name),
+					mTimestamp,
+					mNeedsChanging.contains(comment.name),
 					mParentPost,
 					mUser,
 					mCommentHeaderItems);
@@ -334,26 +336,24 @@ public class CommentListingRequest {
 				parent.asComment().addChild(preparedComment);
 			}
 
-			item = new RedditCommentListItem(parent, preparedComment);
+			final RedditCommentListItem item = new RedditCommentListItem(parent, preparedComment);
+			notifyListener(Event.EVENT_ITEM_DOWNLOADED, item);
+			mItemsDelivered = true;
 
-			if(comment.replies.getType() == JsonValue.Type.OBJECT) {
-				shouldRecurse = true;
-			}
-
-		} else {
-			return;
+			return item;
 		}
 
-		notifyListener(Event.EVENT_ITEM_DOWNLOADED, item);
-
-		if(shouldRecurse) {
-			final RedditComment comment = commentThing.asComment();
-			final JsonBufferedObject replies = comment.replies.asObject();
-			final JsonBufferedArray children = replies.getObject("data").getArray("children");
+		public void onMoreComments(final RedditMoreComments moreComments, final RedditCommentListItem parent) {
 
-			for(final JsonValue v : children) {
-				buildComments(v, item, timestamp, needsChanging);
+			if(mUrl.pathType() != RedditURLParser.PathType.PostCommentListingURL) {
+				return;
 			}
+
+			final RedditPreparedMoreComments preparedMoreComments
+					= new RedditPreparedMoreComments(moreComments, mUrl.asPostCommentListURL());
+
+			notifyListener(Event.EVENT_ITEM_DOWNLOADED, new RedditCommentListItem(parent, preparedMoreComments));
+			mItemsDelivered = true;
 		}
 	}
 
@@ -0,0 +1,410 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.reddit;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedArray;
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedObject;
+import org.quantumbadger.redreader.jsonwrap.JsonObjectBinder;
+import org.quantumbadger.redreader.jsonwrap.JsonStringTable;
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+import org.quantumbadger.redreader.reddit.things.RedditMoreComments;
+import org.quantumbadger.redreader.reddit.things.RedditPost;
+import org.quantumbadger.redreader.reddit.things.RedditThing;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+
+/**
+ * Reads a page of comments, as returned by reddit, and passes the post and each comment to a visitor in
+ * the order they appear on the page. Each comment is passed before its replies.
+ *
+ * The page can be read from a JsonValue tree, or straight from a JsonParser. When reading from a parser,
+ * no tree is built: each comment is bound as its properties are read, and only the bound objects are
+ * kept. The replies of a comment may come before the rest of its properties, so the comments are passed
+ * to the visitor once each top-level comment has been read, along with all of its replies. Comments read
+ * from a parser have no replies value. Repeated short strings, such as authors and subreddit names, share
+ * one String for the whole page.
+ */
+public final class RedditCommentListingParser {
+
+	/**
+	 * @param <E> The type of the item made for each comment, which is passed back as the parent of its replies.
+	 */
+	public interface Visitor<E> {
+
+		void onPost(RedditPost post);
+
+		/**
+		 * @param parent The item made for the comment this one replies to, or null for a top-level comment.
+		 * @return The item made for this comment.
+		 */
+		E onComment(RedditComment comment, E parent);
+
+		void onMoreComments(RedditMoreComments moreComments, E parent);
+	}
+
+	private static final JsonObjectBinder<RedditPost> postBinder = createBinder(RedditPost.class);
+	private static final JsonObjectBinder<RedditComment> commentBinder = createBinder(RedditComment.class);
+	private static final JsonObjectBinder<RedditMoreComments> moreCommentsBinder = createBinder(RedditMoreComments.class);
+
+	private static <E> JsonObjectBinder<E> createBinder(final Class<E> clazz) {
+		try {
+			return JsonObjectBinder.forClass(clazz);
+		} catch(NoSuchMethodException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private RedditCommentListingParser() {}
+
+	/**
+	 * Reads the page from a tree. If the root is an array, the first element contains the post.
+	 */
+	public static <E> void parse(final JsonValue value, final Visitor<E> visitor) throws IOException,
+			InterruptedException, IllegalAccessException, InstantiationException, NoSuchMethodException,
+			InvocationTargetException {
+
+		final JsonBufferedObject commentListing;
+
+		if(value.getType() == JsonValue.Type.ARRAY) {
+
+			final JsonBufferedArray root = value.asArray();
+
+			// lol, reddit api
+			final JsonBufferedObject thing = root.get(0).asObject();
+			final JsonBufferedObject listing = thing.getObject("data");
+			final JsonBufferedArray postContainer = listing.getArray("children");
+			final RedditThing postThing = postContainer.getObject(0, RedditThing.class);
+
+			visitor.onPost(postThing.asPost());
+
+			commentListing = root.get(1).asObject();
+
+		} else {
+			commentListing = value.asObject();
+		}
+
+		for(final JsonValue commentThingValue : commentListing.getObject("data").getArray("children")) {
+			parseTree(commentThingValue, null, visitor);
+		}
+	}
+
+	private static <E> void parseTree(final JsonValue value, final E parent, final Visitor<E> visitor)
+			throws IOException, InterruptedException, IllegalAccessException, InstantiationException,
+			NoSuchMethodException, InvocationTargetException {
+
+		final RedditThing thing = value.asObject(RedditThing.class);
+
+		if(thing.getKind() == RedditThing.Kind.MORE_COMMENTS) {
+			visitor.onMoreComments(thing.asMoreComments(), parent);
+
+		} else if(thing.getKind() == RedditThing.Kind.COMMENT) {
+
+			final RedditComment comment = thing.asComment();
+			final E item = visitor.onComment(comment, parent);
+
+			if(comment.replies.getType() == JsonValue.Type.OBJECT) {
+
+				final JsonBufferedArray children = comment.replies.asObject().getObject("data").getArray("children");
+
+				for(final JsonValue child : children) {
+					parseTree(child, item, visitor);
+				}
+			}
+		}
+	}
+
+	// A comment, post or "more comments" item, and any replies
+	private static final class ParsedThing {
+
+		private RedditThing.Kind kind;
+		private Object data;
+		private ArrayList<ParsedThing> replies;
+
+		private <E> void visit(final E parent, final Visitor<E> visitor) {
+
+			if(kind == RedditThing.Kind.MORE_COMMENTS) {
+				visitor.onMoreComments((RedditMoreComments)data, parent);
+
+			} else if(kind == RedditThing.Kind.COMMENT) {
+
+				final E item = visitor.onComment((RedditComment)data, parent);
+
+				if(replies != null) {
+					for(final ParsedThing reply : replies) {
+						reply.visit(item, visitor);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the page from a parser which hasn't read anything yet, stopping at the end of the root value.
+	 * If the root is an array, the first element contains the post, and any elements after the second
+	 * are skipped.
+	 */
+	public static <E> void parse(final JsonParser jp, final Visitor<E> visitor) throws IOException,
+			InterruptedException, IllegalAccessException, InstantiationException, NoSuchMethodException,
+			InvocationTargetException {
+
+		final JsonStringTable strings = new JsonStringTable();
+		final JsonToken firstToken = jp.nextToken();
+
+		if(firstToken == JsonToken.START_ARRAY) {
+
+			expect(jp, jp.nextToken(), JsonToken.START_OBJECT);
+
+			final ArrayList<ParsedThing> postContainer = readListing(jp, true, strings);
+
+			if(postContainer.isEmpty() || postContainer.get(0).data == null) {
+				throw new JsonParseException("No post found", jp.getCurrentLocation());
+			}
+
+			visitor.onPost((RedditPost)postContainer.get(0).data);
+
+			expect(jp, jp.nextToken(), JsonToken.START_OBJECT);
+			readTopLevelComments(jp, strings, visitor);
+
+			JsonToken jt;
+
+			while((jt = jp.nextToken()) != JsonToken.END_ARRAY) {
+				expectNotEnd(jp, jt);
+				jp.skipChildren();
+			}
+
+		} else {
+			expect(jp, firstToken, JsonToken.START_OBJECT);
+			readTopLevelComments(jp, strings, visitor);
+		}
+	}
+
+	// Passes each top-level comment to the visitor as soon as it has been read
+	private static <E> void readTopLevelComments(final JsonParser jp, final JsonStringTable strings,
+			final Visitor<E> visitor) throws IOException, InterruptedException, IllegalAccessException,
+			InstantiationException, NoSuchMethodException, InvocationTargetException {
+
+		readListing(jp, false, strings, new ChildReader() {
+			public void readChild(final JsonParser jp) throws IOException, InterruptedException,
+					IllegalAccessException, InstantiationException, NoSuchMethodException, InvocationTargetException {
+				readThing(jp, false, strings).visit(null, visitor);
+			}
+		});
+	}
+
+	private interface ChildReader {
+		void readChild(JsonParser jp) throws IOException, InterruptedException, IllegalAccessException,
+				InstantiationException, NoSuchMethodException, InvocationTargetException;
+	}
+
+	private static ArrayList<ParsedThing> readListing(final JsonParser jp, final boolean isPostListing,
+			final JsonStringTable strings) throws IOException, InterruptedException, IllegalAccessException,
+			InstantiationException, NoSuchMethodException, InvocationTargetException {
+
+		final ArrayList<ParsedThing> result = new ArrayList<ParsedThing>();
+
+		readListing(jp, isPostListing, strings, new ChildReader() {
+			public void readChild(final JsonParser jp) throws IOException, InterruptedException,
+					IllegalAccessException, InstantiationException, NoSuchMethodException, InvocationTargetException {
+				result.add(readThing(jp, isPostListing, strings));
+			}
+		});
+
+		return result;
+	}
+
+	// Reads a listing, with the parser at its first token, and passes each of its children to the reader
+	private static void readListing(final JsonParser jp, final boolean isPostListing,
+			final JsonStringTable strings, final ChildReader reader) throws IOException, InterruptedException,
+			IllegalAccessException, InstantiationException, NoSuchMethodException, InvocationTargetException {
+
+		expect(jp, jp.getCurrentToken(), JsonToken.START_OBJECT);
+
+		JsonToken jt;
+
+		while((jt = jp.nextToken()) != JsonToken.END_OBJECT) {
+
+			expectNotEnd(jp, jt);
+			final String name = jp.getCurrentName();
+			jp.nextToken();
+
+			if(!"data".equals(name) || jp.getCurrentToken() != JsonToken.START_OBJECT) {
+				jp.skipChildren();
+				continue;
+			}
+
+			while((jt = jp.nextToken()) != JsonToken.END_OBJECT) {
+
+				expectNotEnd(jp, jt);
+				final String dataName = jp.getCurrentName();
+				jp.nextToken();
+
+				if(!"children".equals(dataName) || jp.getCurrentToken() != JsonToken.START_ARRAY) {
+					jp.skipChildren();
+					continue;
+				}
+
+				while((jt = jp.nextToken()) != JsonToken.END_ARRAY) {
+					expectNotEnd(jp, jt);
+					reader.readChild(jp);
+				}
+			}
+		}
+	}
+
+	// Reads a thing, with the parser at its first token. Things of other kinds are skipped.
+	private static ParsedThing readThing(final JsonParser jp, final boolean isPost,
+			final JsonStringTable strings) throws IOException, InterruptedException, IllegalAccessException,
+			InstantiationException, NoSuchMethodException, InvocationTargetException {
+
+		expect(jp, jp.getCurrentToken(), JsonToken.START_OBJECT);
+
+		final ParsedThing result = new ParsedThing();
+
+		String kind = null;
+		JsonValue dataBeforeKind = null;
+
+		JsonToken jt;
+
+		while((jt = jp.nextToken()) != JsonToken.END_OBJECT) {
+
+			expectNotEnd(jp, jt);
+			final String name = jp.getCurrentName();
+			jp.nextToken();
+
+			if("kind".equals(name)) {
+				kind = jp.getValueAsString();
+				result.kind = getKind(kind);
+
+			} else if("data".equals(name)) {
+
+				if(kind == null) {
+					// Not the order reddit uses, so this just falls back to building a tree
+					dataBeforeKind = JsonValue.buildFromCurrentToken(jp, strings);
+				} else {
+					readData(jp, isPost, strings, result);
+				}
+
+			} else {
+				jp.skipChildren();
+			}
+		}
+
+		if(dataBeforeKind != null && kind != null) {
+			readData(dataBeforeKind, isPost, result);
+		}
+
+		return result;
+	}
+
+	private static RedditThing.Kind getKind(final String kind) {
+		final RedditThing thing = new RedditThing();
+		thing.kind = kind;
+		return thing.getKind();
+	}
+
+	private static void readData(final JsonParser jp, final boolean isPost, final JsonStringTable strings,
+			final ParsedThing result) throws IOException, InterruptedException, IllegalAccessException,
+			InstantiationException, NoSuchMethodException, InvocationTargetException {
+
+		if(isPost) {
+			result.data = postBinder.bind(jp, strings, null);
+
+		} else if(result.kind == RedditThing.Kind.MORE_COMMENTS) {
+			result.data = moreCommentsBinder.bind(jp, strings, null);
+
+		} else if(result.kind == RedditThing.Kind.COMMENT) {
+
+			result.data = commentBinder.bind(jp, strings, new JsonObjectBinder.StreamedFieldHandler() {
+				public boolean onField(final String name, final JsonParser jp) throws IOException,
+						InterruptedException, IllegalAccessException, InstantiationException, NoSuchMethodException,
+						InvocationTargetException {
+
+					if(!"replies".equals(name) || jp.getCurrentToken() != JsonToken.START_OBJECT) {
+						return false;
+					}
+
+					result.replies = readListing(jp, false, strings);
+					return true;
+				}
+			});
+
+		} else {
+			jp.skipChildren();
+		}
+	}
+
+	private static void readData(final JsonValue data, final boolean isPost, final ParsedThing result)
+			throws IOException, InterruptedException, IllegalAccessException, InstantiationException,
+			NoSuchMethodException, InvocationTargetException {
+
+		if(isPost) {
+			result.data = postBinder.bind(data.asObject());
+
+		} else if(result.kind == RedditThing.Kind.MORE_COMMENTS) {
+			result.data = moreCommentsBinder.bind(data.asObject());
+
+		} else if(result.kind == RedditThing.Kind.COMMENT) {
+
+			final RedditComment comment = commentBinder.bind(data.asObject());
+			result.data = comment;
+
+			if(comment.replies != null && comment.replies.getType() == JsonValue.Type.OBJECT) {
+
+				result.replies = new ArrayList<ParsedThing>();
+
+				for(final JsonValue child : comment.replies.asObject().getObject("data").getArray("children")) {
+
+					final JsonBufferedObject childThing = child.asObject();
+
+					final ParsedThing reply = new ParsedThing();
+					reply.kind = getKind(childThing.getString("kind"));
+
+					if(reply.kind != null && childThing.get("data") != null) {
+						readData(childThing.get("data"), false, reply);
+					}
+
+					result.replies.add(reply);
+				}
+
+				comment.replies = null;
+			}
+		}
+	}
+
+	private static void expect(final JsonParser jp, final JsonToken actual, final JsonToken expected)
+			throws JsonParseException {
+
+		if(actual != expected) {
+			throw new JsonParseException("Expecting " + expected + ", got " + actual, jp.getCurrentLocation());
+		}
+	}
+
+	// The parser returns null at the end of the input
+	private static void expectNotEnd(final JsonParser jp, final JsonToken actual) throws JsonParseException {
+
+		if(actual == null) {
+			throw new JsonParseException("Unexpected end of input", jp.getCurrentLocation());
+		}
+	}
+}
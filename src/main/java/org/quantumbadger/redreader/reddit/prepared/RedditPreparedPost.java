@@ -87,6 +87,13 @@ public final class RedditPreparedPost {
 
 	private static final Object singleImageDecodeLock = new Object();
 
+	// Kept so that their priority can follow the post on and off the screen. Only changed on the UI thread
+	// after construction.
+	private final int listId;
+	private CacheRequest thumbnailRequest, precacheRequest;
+	private boolean thumbnailCancelled = false, precacheCancelled = false;
+	private int thumbnailPriorityAdjustment = 0;
+
 	private ThumbnailLoadedCallback thumbnailCallback;
 	private int usageId = -1;
 
@@ -111,6 +118,7 @@ public final class RedditPreparedPost {
 
 		this.src = post;
 		this.showSubreddit = showSubreddit;
+		this.listId = listId;
 
 		if(post.title == null) {
 			title = "[null]";
@@ -141,11 +149,11 @@ public final class RedditPreparedPost {
 		final int thumbnailWidth = General.dpToPixels(context, 64);
 
 		if(hasThumbnail && hasThumbnail(post)) {
-			downloadThumbnail(context, thumbnailWidth, cm, listId, false);
+			thumbnailRequest = downloadThumbnail(context, thumbnailWidth, cm, listId, false);
 		}
 
 		if(imageUrl != null && precacheImages) {
-			downloadThumbnail(context, thumbnailWidth, cm, listId, true);
+			precacheRequest = downloadThumbnail(context, thumbnailWidth, cm, listId, true);
 		}
 
 		// TODO precache comments (respect settings)
@@ -550,7 +558,51 @@ public final class RedditPreparedPost {
 				&& !post.thumbnail.equalsIgnoreCase("default");
 	}
 
-	private void downloadThumbnail(final Context context, final int widthPixels, final CacheManager cm, final int listId, final boolean highRes) {
+	/**
+	 * Called on the UI thread as the post moves towards or away from the screen. The thumbnail and
+	 * precache requests have the adjustment added to their priority. If cancel is set, any of them which
+	 * are still waiting to download are cancelled, and they are made again if the post comes back.
+	 */
+	public void setThumbnailPriority(final Context context, final int priorityAdjustment, final boolean cancel) {
+
+		final CacheManager cm = CacheManager.getInstance(context);
+
+		if(cancel) {
+
+			if(thumbnailRequest != null && !thumbnailCancelled) {
+				thumbnailCancelled = cm.cancelIfNotStarted(thumbnailRequest);
+			}
+
+			if(precacheRequest != null && !precacheCancelled) {
+				precacheCancelled = cm.cancelIfNotStarted(precacheRequest);
+			}
+
+			return;
+		}
+
+		final boolean adjustmentChanged = priorityAdjustment != thumbnailPriorityAdjustment;
+		thumbnailPriorityAdjustment = priorityAdjustment;
+
+		final int thumbnailWidth = General.dpToPixels(context, 64);
+
+		if(thumbnailCancelled) {
+			thumbnailCancelled = false;
+			thumbnailRequest = downloadThumbnail(context, thumbnailWidth, cm, listId, false);
+
+		} else if(adjustmentChanged && thumbnailRequest != null) {
+			cm.updatePriority(thumbnailRequest, priorityAdjustment);
+		}
+
+		if(precacheCancelled) {
+			precacheCancelled = false;
+			precacheRequest = downloadThumbnail(context, thumbnailWidth, cm, listId, true);
+
+		} else if(adjustmentChanged && precacheRequest != null) {
+			cm.updatePriority(precacheRequest, priorityAdjustment);
+		}
+	}
+
+	private CacheRequest downloadThumbnail(final Context context, final int widthPixels, final CacheManager cm, final int listId, final boolean highRes) {
 
 		final String uriStr = highRes ? imageUrl : thumbnailUrl;
 		final URI uri = General.uriFromString(uriStr);
@@ -560,7 +612,7 @@ public final class RedditPreparedPost {
 
 		final RedditAccount anon = RedditAccountManager.getAnon();
 
-		cm.makeRequest(new CacheRequest(uri, anon, null, priority, listId, CacheRequest.DownloadType.IF_NECESSARY, fileType, false, false, false, context) {
+		final CacheRequest request = new CacheRequest(uri, anon, null, priority, listId, CacheRequest.DownloadType.IF_NECESSARY, fileType, false, false, false, context) {
 
 			@Override
 			protected void onDownloadNecessary() {}
@@ -621,7 +673,12 @@ public final class RedditPreparedPost {
 					// Just ignore it.
 				}
 			}
-		});
+		};
+
+		cm.updatePriority(request, thumbnailPriorityAdjustment);
+		cm.makeRequest(request);
+
+		return request;
 	}
 
 	// These operations are ordered so as to avoid race conditions
@@ -18,6 +18,8 @@
 package org.quantumbadger.redreader.reddit.things;
 
 import org.quantumbadger.redreader.jsonwrap.JsonBufferedObject;
+import org.quantumbadger.redreader.jsonwrap.JsonObjectBinder;
+import org.quantumbadger.redreader.jsonwrap.JsonProjection;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
@@ -43,6 +45,26 @@ public final class RedditThing {
 		kinds.put("Listing", Kind.LISTING);
 	}
 	
+	private static final JsonObjectBinder<RedditPost> postBinder = createBinder(RedditPost.class);
+	private static final JsonObjectBinder<RedditComment> commentBinder = createBinder(RedditComment.class);
+
+	/**
+	 * Keeps only what RedditPost needs from a listing of posts. Properties such as media_embed, preview and
+	 * user_reports are skipped while parsing.
+	 */
+	public static final JsonProjection POST_LISTING_PROJECTION = JsonProjection.forClass(RedditThing.class)
+			.with("data", JsonProjection.properties("after", "before")
+					.with("children", JsonProjection.arrayOf(JsonProjection.forClass(RedditThing.class)
+							.with("data", JsonProjection.forClass(RedditPost.class)))));
+
+	private static <E> JsonObjectBinder<E> createBinder(final Class<E> clazz) {
+		try {
+			return JsonObjectBinder.forClass(clazz);
+		} catch(NoSuchMethodException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public String kind;
 	public JsonBufferedObject data;
 	
@@ -55,11 +77,11 @@ public final class RedditThing {
 	}
 
 	public RedditComment asComment() throws InstantiationException, IllegalAccessException, InterruptedException, IOException, NoSuchMethodException, InvocationTargetException {
-		return data.asObject(RedditComment.class);
+		return commentBinder.bind(data);
 	}
 	
 	public RedditPost asPost() throws InstantiationException, IllegalAccessException, InterruptedException, IOException, NoSuchMethodException, InvocationTargetException {
-		return data.asObject(RedditPost.class);
+		return postBinder.bind(data);
 	}
 
 	public RedditSubreddit asSubreddit() throws InstantiationException, IllegalAccessException, InterruptedException, IOException, NoSuchMethodException, InvocationTargetException {
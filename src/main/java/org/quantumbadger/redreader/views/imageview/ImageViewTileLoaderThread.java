@@ -17,19 +17,33 @@
 
 package org.quantumbadger.redreader.views.imageview;
 
-import org.quantumbadger.redreader.common.TriggerableThread;
+import org.quantumbadger.redreader.common.Constants;
+import org.quantumbadger.redreader.common.Scheduler;
 import org.quantumbadger.redreader.common.collections.Stack;
 
+/**
+ * Loads the tiles of one image, most recently requested first, on the CPU decode lane of the Scheduler.
+ * Only one task drains the stack at a time, so that tiles for one image don't take over the whole lane.
+ */
 public class ImageViewTileLoaderThread {
 
-	private final InternalThread mThread = new InternalThread(new InternalRunnable(), 0);
 	private final Stack<ImageViewTileLoader> mStack = new Stack<ImageViewTileLoader>(128);
 
+	// Guarded by mStack
+	private boolean mScheduled = false;
+
+	private final Runnable mRunnable = new InternalRunnable();
+
 	public void enqueue(ImageViewTileLoader tile) {
 
 		synchronized(mStack) {
+
 			mStack.push(tile);
-			mThread.trigger();
+
+			if(!mScheduled) {
+				mScheduled = true;
+				Scheduler.add(Scheduler.Lane.CPU_DECODE, Constants.Priority.IMAGE_VIEW, mRunnable);
+			}
 		}
 	}
 
@@ -45,6 +59,7 @@ public class ImageViewTileLoaderThread {
 				synchronized(mStack) {
 
 					if(mStack.isEmpty()) {
+						mScheduled = false;
 						return;
 					}
 
@@ -56,11 +71,4 @@ public class ImageViewTileLoaderThread {
 
 		}
 	}
-
-	private class InternalThread extends TriggerableThread {
-
-		public InternalThread(Runnable task, long initialDelay) {
-			super(task, initialDelay);
-		}
-	}
 }
@@ -0,0 +1,106 @@
+package org.quantumbadger.redreader.test.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.quantumbadger.redreader.cache.CacheEntry;
+import org.quantumbadger.redreader.cache.CacheFileLocator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheFileLocatorTest {
+
+	private File externalDir, internalDir;
+
+	@Before
+	public void setUp() throws IOException {
+
+		final File root = File.createTempFile("locator", "");
+		assertTrue(root.delete());
+
+		externalDir = new File(root, "external");
+		internalDir = new File(root, "internal");
+
+		assertTrue(externalDir.mkdirs());
+		assertTrue(internalDir.mkdirs());
+	}
+
+	@After
+	public void tearDown() {
+		delete(externalDir.getParentFile());
+	}
+
+	private static void delete(final File file) {
+
+		final File[] children = file.listFiles();
+
+		if(children != null) {
+			for(final File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	private static File write(final File dir, final long id) throws IOException {
+
+		final File file = new File(dir, id + CacheFileLocator.EXT);
+		final FileOutputStream fos = new FileOutputStream(file);
+		fos.write(new byte[] {1, 2, 3});
+		fos.close();
+
+		return file;
+	}
+
+	@Test
+	public void findsFileAtRecordedLocation() throws IOException {
+
+		final CacheFileLocator locator = new CacheFileLocator(externalDir, internalDir);
+
+		final File external = write(externalDir, 1);
+		final File internal = write(internalDir, 2);
+
+		assertEquals(CacheEntry.LOCATION_EXTERNAL, locator.getLocation(external));
+		assertEquals(CacheEntry.LOCATION_INTERNAL, locator.getLocation(internal));
+
+		assertEquals(external, locator.findFile(1, CacheEntry.LOCATION_EXTERNAL));
+		assertEquals(internal, locator.findFile(2, CacheEntry.LOCATION_INTERNAL));
+		assertEquals(internal, locator.findFile(2, CacheEntry.LOCATION_UNKNOWN));
+	}
+
+	@Test
+	public void fileDeletedBehindIndexIsMissing() throws IOException {
+
+		final CacheFileLocator locator = new CacheFileLocator(externalDir, internalDir);
+
+		final File file = write(externalDir, 3);
+		final int recordedLocation = locator.getLocation(file);
+
+		// As when the system clears the external cache directory
+		delete(externalDir);
+
+		// The expected path is still known, but the file isn't there
+		assertEquals(file, locator.getFile(3, recordedLocation));
+		assertNull(locator.findFile(3, recordedLocation));
+		assertNull(locator.findFile(3, CacheEntry.LOCATION_UNKNOWN));
+	}
+
+	@Test
+	public void externalLocationWithoutExternalDirIsMissing() throws IOException {
+
+		write(externalDir, 4);
+
+		// The external storage has been removed
+		final CacheFileLocator locator = new CacheFileLocator(null, internalDir);
+
+		assertNull(locator.getFile(4, CacheEntry.LOCATION_EXTERNAL));
+		assertNull(locator.findFile(4, CacheEntry.LOCATION_EXTERNAL));
+	}
+}
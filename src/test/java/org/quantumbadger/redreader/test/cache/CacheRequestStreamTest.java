@@ -0,0 +1,148 @@
+package org.quantumbadger.redreader.test.cache;
+
+import com.fasterxml.jackson.core.JsonParser;
+import org.apache.http.StatusLine;
+import org.junit.Test;
+import org.quantumbadger.redreader.account.RedditAccount;
+import org.quantumbadger.redreader.cache.CacheManager;
+import org.quantumbadger.redreader.cache.CacheRequest;
+import org.quantumbadger.redreader.cache.RequestFailureType;
+import org.quantumbadger.redreader.common.Constants;
+import org.quantumbadger.redreader.reddit.RedditCommentListingParser;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+import org.quantumbadger.redreader.reddit.things.RedditMoreComments;
+import org.quantumbadger.redreader.reddit.things.RedditPost;
+import org.quantumbadger.redreader.test.jsonwrap.ListingFixture;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheRequestStreamTest {
+
+	// Streams a comment page as CommentListingRequest does, recording what it passes on
+	private static final class CommentPageRequest extends CacheRequest {
+
+		private final ArrayList<Object> delivered = new ArrayList<Object>();
+
+		private CommentPageRequest() {
+			super(URI.create("https://www.reddit.com/comments/abc.json"), new RedditAccount("", null, 10),
+					UUID.randomUUID(), Constants.Priority.API_COMMENT_LIST, 0, DownloadType.IF_NECESSARY,
+					Constants.FileType.COMMENT_LIST, true, true, false, null);
+		}
+
+		@Override
+		public boolean isJsonStreamed() {
+			return true;
+		}
+
+		@Override
+		protected void onJsonStreamed(final JsonParser jp, final long timestamp, final UUID session, final boolean fromCache)
+				throws IOException, InterruptedException, IllegalAccessException, InstantiationException,
+				NoSuchMethodException, InvocationTargetException {
+
+			try {
+				RedditCommentListingParser.parse(jp, new RedditCommentListingParser.Visitor<Object>() {
+
+					public void onPost(final RedditPost post) {
+						delivered.add(post);
+					}
+
+					public Object onComment(final RedditComment comment, final Object parent) {
+						delivered.add(comment);
+						return comment;
+					}
+
+					public void onMoreComments(final RedditMoreComments moreComments, final Object parent) {
+						delivered.add(moreComments);
+					}
+				});
+
+			} finally {
+				if(!delivered.isEmpty()) {
+					setJsonStreamDelivered();
+				}
+			}
+		}
+
+		@Override
+		protected void onCallbackException(final Throwable t) {
+			throw new RuntimeException(t);
+		}
+
+		@Override
+		protected void onDownloadNecessary() {}
+
+		@Override
+		protected void onDownloadStarted() {}
+
+		@Override
+		protected void onFailure(final RequestFailureType type, final Throwable t, final StatusLine status, final String readableMessage) {}
+
+		@Override
+		protected void onProgress(final boolean authorizationInProgress, final long bytesRead, final long totalBytes) {}
+
+		@Override
+		protected void onSuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final UUID session, final boolean fromCache, final String mimetype) {}
+	}
+
+	// Delivers the data as the cache does with a cached copy, returning what was thrown, if anything
+	private static Throwable streamFromCache(final CacheRequest request, final String json) {
+
+		try {
+			request.notifyJsonStreamed(new ByteArrayInputStream(json.getBytes("UTF-8")), 0, UUID.randomUUID(), true);
+			return null;
+
+		} catch(Throwable t) {
+			return t;
+		}
+	}
+
+	@Test
+	public void completePageIsDelivered() {
+
+		final CommentPageRequest request = new CommentPageRequest();
+
+		assertNull(streamFromCache(request, ListingFixture.commentPage(4, 20)));
+		assertFalse(request.delivered.isEmpty());
+	}
+
+	/**
+	 * A cached page which ends part way through, after the post and some comments have been passed on, must
+	 * not be downloaded again, as the download would pass them on a second time.
+	 */
+	@Test
+	public void truncatedPageIsNotDownloadedAgainOnceDelivered() {
+
+		final String page = ListingFixture.commentPage(4, 20);
+
+		final CommentPageRequest request = new CommentPageRequest();
+		assertTrue(streamFromCache(request, page.substring(0, page.length() * 3 / 4)) != null);
+
+		assertFalse(request.delivered.isEmpty());
+		assertFalse(request.canDownloadAfterCacheFailure());
+	}
+
+	/**
+	 * A cached page which ends before anything has been passed on can be replaced by a download.
+	 */
+	@Test
+	public void pageTruncatedBeforeAnyItemIsDownloadedAgain() {
+
+		final String page = ListingFixture.commentPage(4, 20);
+
+		final CommentPageRequest request = new CommentPageRequest();
+		assertTrue(streamFromCache(request, page.substring(0, 20)) != null);
+
+		assertEquals(0, request.delivered.size());
+		assertTrue(request.canDownloadAfterCacheFailure());
+	}
+}
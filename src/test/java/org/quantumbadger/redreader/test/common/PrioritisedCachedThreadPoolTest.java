@@ -0,0 +1,345 @@
+package org.quantumbadger.redreader.test.common;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.common.Constants;
+import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrioritisedCachedThreadPoolTest {
+
+	private static class RecordingTask extends PrioritisedCachedThreadPool.Task {
+
+		private final int primary, secondary;
+		private final List<RecordingTask> runOrder;
+		private final CountDownLatch done;
+
+		private RecordingTask(final int primary, final int secondary, final List<RecordingTask> runOrder, final CountDownLatch done) {
+			this.primary = primary;
+			this.secondary = secondary;
+			this.runOrder = runOrder;
+			this.done = done;
+		}
+
+		@Override
+		public int getPrimaryPriority() {
+			return primary;
+		}
+
+		@Override
+		public int getSecondaryPriority() {
+			return secondary;
+		}
+
+		@Override
+		public void run() {
+			synchronized(runOrder) {
+				runOrder.add(this);
+			}
+			done.countDown();
+		}
+	}
+
+	// Occupies the pool's only thread until released, so that everything added afterwards is queued
+	private static CountDownLatch blockPool(final PrioritisedCachedThreadPool pool) throws InterruptedException {
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		pool.add(new PrioritisedCachedThreadPool.Task() {
+
+			@Override
+			public int getPrimaryPriority() {
+				return Integer.MIN_VALUE;
+			}
+
+			@Override
+			public int getSecondaryPriority() {
+				return 0;
+			}
+
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+
+		started.await();
+		return release;
+	}
+
+	@Test
+	public void runsInPriorityThenInsertionOrder() throws InterruptedException {
+
+		final PrioritisedCachedThreadPool pool = new PrioritisedCachedThreadPool(1, "Test");
+		final CountDownLatch release = blockPool(pool);
+
+		final Random random = new Random(1);
+		final int count = 2000;
+
+		final ArrayList<RecordingTask> added = new ArrayList<RecordingTask>(count);
+		final ArrayList<RecordingTask> runOrder = new ArrayList<RecordingTask>(count);
+		final CountDownLatch done = new CountDownLatch(count);
+
+		for(int i = 0; i < count; i++) {
+			final RecordingTask task = new RecordingTask(random.nextInt(4), random.nextInt(8), runOrder, done);
+			added.add(task);
+			pool.add(task);
+		}
+
+		assertEquals(count, pool.getQueuedCount());
+
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		for(int i = 1; i < count; i++) {
+
+			final RecordingTask previous = runOrder.get(i - 1), current = runOrder.get(i);
+
+			if(previous.primary != current.primary) {
+				assertTrue(previous.primary < current.primary);
+
+			} else if(previous.secondary != current.secondary) {
+				assertTrue(previous.secondary < current.secondary);
+
+			} else {
+				assertTrue(added.indexOf(previous) < added.indexOf(current));
+			}
+		}
+	}
+
+	@Test
+	public void updatePriorityMovesQueuedTask() throws InterruptedException {
+
+		final PrioritisedCachedThreadPool pool = new PrioritisedCachedThreadPool(1, "Test");
+		final CountDownLatch release = blockPool(pool);
+
+		final ArrayList<RecordingTask> runOrder = new ArrayList<RecordingTask>();
+		final CountDownLatch done = new CountDownLatch(3);
+
+		final int[] lastPriority = {Constants.Priority.IMAGE_PRECACHE};
+
+		final RecordingTask thumbnail = new RecordingTask(Constants.Priority.THUMBNAIL, 0, runOrder, done);
+
+		final RecordingTask precache = new RecordingTask(0, 0, runOrder, done) {
+			@Override
+			public int getPrimaryPriority() {
+				return lastPriority[0];
+			}
+		};
+
+		final RecordingTask other = new RecordingTask(Constants.Priority.IMAGE_PRECACHE, 1, runOrder, done);
+
+		pool.add(thumbnail);
+		pool.add(precache);
+		pool.add(other);
+
+		lastPriority[0] = Constants.Priority.IMAGE_VIEW;
+		pool.updatePriority(precache);
+
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		assertEquals(precache, runOrder.get(0));
+		assertEquals(thumbnail, runOrder.get(1));
+		assertEquals(other, runOrder.get(2));
+	}
+
+	@Test
+	public void agingPromotesWaitingTask() throws InterruptedException {
+
+		final PrioritisedCachedThreadPool pool = new PrioritisedCachedThreadPool(1, "Test");
+		pool.setAging(0, 1, 1000);
+
+		final CountDownLatch release = blockPool(pool);
+
+		final ArrayList<RecordingTask> runOrder = new ArrayList<RecordingTask>();
+		final CountDownLatch done = new CountDownLatch(2);
+
+		final RecordingTask precache = new RecordingTask(Constants.Priority.IMAGE_PRECACHE, 0, runOrder, done);
+		final RecordingTask api = new RecordingTask(Constants.Priority.API_COMMENT_LIST, 0, runOrder, done);
+
+		pool.add(precache);
+		Thread.sleep(20);
+		pool.add(api);
+
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		assertEquals(precache, runOrder.get(0));
+		assertEquals(api, runOrder.get(1));
+
+		// Counted under the priority they were queued with, before aging
+		final List<PrioritisedCachedThreadPool.PriorityClassStats> classes = pool.getStats().priorityClasses;
+
+		assertEquals(3, classes.size());
+		assertEquals(Constants.Priority.API_COMMENT_LIST, classes.get(1).priority);
+		assertEquals(Constants.Priority.IMAGE_PRECACHE, classes.get(2).priority);
+		assertEquals(1, classes.get(2).tasksRun);
+		assertTrue(classes.get(2).maxWaitMs >= 20);
+		assertTrue(classes.get(2).p99WaitMs <= classes.get(2).maxWaitMs);
+	}
+
+	/**
+	 * Thousands of thumbnail downloads queued in a random order are run in list order.
+	 */
+	@Test
+	public void manyQueuedTasksRunInOrder() throws InterruptedException {
+
+		final int count = 5000;
+
+		final ArrayList<Integer> listIds = new ArrayList<Integer>(count);
+		for(int i = 0; i < count; i++) listIds.add(i);
+		Collections.shuffle(listIds, new Random(2));
+
+		final PrioritisedCachedThreadPool pool = new PrioritisedCachedThreadPool(1, "Ordering");
+		final CountDownLatch release = blockPool(pool);
+
+		final ArrayList<RecordingTask> runOrder = new ArrayList<RecordingTask>(count);
+		final CountDownLatch done = new CountDownLatch(count);
+
+		for(final int listId : listIds) {
+			pool.add(new RecordingTask(Constants.Priority.THUMBNAIL, listId, runOrder, done));
+		}
+
+		release.countDown();
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+
+		for(int i = 0; i < count; i++) {
+			assertEquals(i, runOrder.get(i).secondary);
+		}
+	}
+
+	/**
+	 * Compares the cost of choosing the next task with thousands of thumbnail downloads queued, against the
+	 * linear scan the pool used to do. Prints the results rather than asserting on them, as timings vary
+	 * between machines.
+	 */
+	@Test
+	public void dispatchBenchmark() throws InterruptedException {
+
+		final int count = 5000;
+
+		final ArrayList<Integer> listIds = new ArrayList<Integer>(count);
+		for(int i = 0; i < count; i++) listIds.add(i);
+		Collections.shuffle(listIds, new Random(2));
+
+		for(int round = 0; round < 3; round++) {
+
+			// Heap
+			final PrioritisedCachedThreadPool pool = new PrioritisedCachedThreadPool(1, "Benchmark");
+			final CountDownLatch release = blockPool(pool);
+
+			final ArrayList<RecordingTask> runOrder = new ArrayList<RecordingTask>(count);
+			final CountDownLatch done = new CountDownLatch(count);
+
+			for(final int listId : listIds) {
+				pool.add(new RecordingTask(Constants.Priority.THUMBNAIL, listId, runOrder, done));
+			}
+
+			final long heapStart = System.nanoTime();
+			release.countDown();
+			done.await();
+			final long heapNs = System.nanoTime() - heapStart;
+
+			// Linear scan, as in the previous version of the pool
+			final ArrayList<PrioritisedCachedThreadPool.Task> tasks = new ArrayList<PrioritisedCachedThreadPool.Task>(count);
+			final ArrayList<RecordingTask> linearRunOrder = new ArrayList<RecordingTask>(count);
+			final CountDownLatch linearDone = new CountDownLatch(count);
+
+			for(final int listId : listIds) {
+				tasks.add(new RecordingTask(Constants.Priority.THUMBNAIL, listId, linearRunOrder, linearDone));
+			}
+
+			final long linearStart = System.nanoTime();
+
+			while(!tasks.isEmpty()) {
+
+				PrioritisedCachedThreadPool.Task taskToRun = null;
+				int taskIndex = -1;
+
+				for(int i = 0; i < tasks.size(); i++) {
+					if(taskToRun == null || tasks.get(i).isHigherPriorityThan(taskToRun)) {
+						taskToRun = tasks.get(i);
+						taskIndex = i;
+					}
+				}
+
+				tasks.remove(taskIndex);
+				taskToRun.run();
+			}
+
+			final long linearNs = System.nanoTime() - linearStart;
+
+			System.out.println(String.format("Dispatching %d thumbnail tasks: heap %.0f ns/task, linear scan %.0f ns/task",
+					count, (double)heapNs / count, (double)linearNs / count));
+		}
+	}
+
+	/**
+	 * A task waiting for something other than the CPU lets another task take its budget permit.
+	 */
+	@Test
+	public void blockedTaskGivesBackBudget() throws InterruptedException {
+
+		final Semaphore budget = new Semaphore(1);
+		final PrioritisedCachedThreadPool pool = new PrioritisedCachedThreadPool(2, "Budget", budget);
+
+		final CountDownLatch otherTaskRan = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final boolean[] released = new boolean[1];
+
+		pool.add(new PrioritisedCachedThreadPool.Task() {
+
+			@Override
+			public int getPrimaryPriority() {
+				return 0;
+			}
+
+			@Override
+			public int getSecondaryPriority() {
+				return 0;
+			}
+
+			@Override
+			public void run() {
+
+				released[0] = PrioritisedCachedThreadPool.releaseBudgetWhileBlocked();
+
+				try {
+					// Only runs if this task's permit was given back
+					pool.add(new RecordingTask(0, 0, new ArrayList<RecordingTask>(), otherTaskRan));
+					otherTaskRan.await(10, TimeUnit.SECONDS);
+				} catch(InterruptedException e) {
+					throw new RuntimeException(e);
+				} finally {
+					if(released[0]) PrioritisedCachedThreadPool.reacquireBudget();
+				}
+
+				done.countDown();
+			}
+		});
+
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertTrue(released[0]);
+		assertEquals(0, otherTaskRan.getCount());
+
+		// Outside a pool, there is no permit to give back
+		assertFalse(PrioritisedCachedThreadPool.releaseBudgetWhileBlocked());
+	}
+}
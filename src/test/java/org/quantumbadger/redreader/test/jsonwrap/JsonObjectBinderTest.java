@@ -0,0 +1,196 @@
+package org.quantumbadger.redreader.test.jsonwrap;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedArray;
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedObject;
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+import org.quantumbadger.redreader.reddit.things.RedditThing;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+public class JsonObjectBinderTest {
+
+	private static final int COMMENT_COUNT = 500;
+
+	private static ArrayList<RedditThing> readComments() throws Exception {
+
+		final JsonValue root = new JsonValue(ListingFixture.commentPage(1, COMMENT_COUNT));
+		root.buildInThisThread();
+
+		final ArrayList<RedditThing> result = new ArrayList<RedditThing>(COMMENT_COUNT);
+		addComments(root.asArray().get(1).asObject().getObject("data").getArray("children"), result);
+
+		return result;
+	}
+
+	private static void addComments(final JsonBufferedArray children, final ArrayList<RedditThing> result) throws Exception {
+
+		for(final JsonValue child : children) {
+
+			final RedditThing thing = child.asObject(RedditThing.class);
+			result.add(thing);
+
+			final JsonValue replies = thing.data.get("replies");
+
+			if(replies.getType() == JsonValue.Type.OBJECT) {
+				addComments(replies.asObject().getObject("data").getArray("children"), result);
+			}
+		}
+	}
+
+	// The previous implementation of JsonBufferedObject.populateObject(), which looked up the fields every time
+	private static void populateByReflection(final JsonBufferedObject json, final Object o) throws Exception {
+
+		for(final Field objectField : o.getClass().getFields()) {
+
+			if((objectField.getModifiers() & Modifier.TRANSIENT) != 0) {
+				continue;
+			}
+
+			final JsonValue val;
+
+			if(json.get(objectField.getName()) != null) {
+				val = json.get(objectField.getName());
+
+			} else if(objectField.getName().startsWith("_json_")) {
+				val = json.get(objectField.getName().substring("_json_".length()));
+			} else {
+				val = null;
+			}
+
+			if(val == null) {
+				continue;
+			}
+
+			objectField.setAccessible(true);
+
+			final Class<?> fieldType = objectField.getType();
+
+			if(fieldType == Long.class || fieldType == Long.TYPE) {
+				objectField.set(o, val.asLong());
+
+			} else if(fieldType == Double.class || fieldType == Double.TYPE) {
+				objectField.set(o, val.asDouble());
+
+			} else if(fieldType == Integer.class || fieldType == Integer.TYPE) {
+				objectField.set(o, val.isNull() ? null : val.asLong().intValue());
+
+			} else if(fieldType == Float.class || fieldType == Float.TYPE) {
+				objectField.set(o, val.isNull() ? null : val.asDouble().floatValue());
+
+			} else if(fieldType == Boolean.class || fieldType == Boolean.TYPE) {
+				objectField.set(o, val.asBoolean());
+
+			} else if(fieldType == String.class) {
+				objectField.set(o, val.asString());
+
+			} else if(fieldType == JsonBufferedArray.class) {
+				objectField.set(o, val.asArray());
+
+			} else if(fieldType == JsonBufferedObject.class) {
+				objectField.set(o, val.asObject());
+
+			} else if(fieldType == JsonValue.class) {
+				objectField.set(o, val);
+
+			} else if(fieldType == Object.class) {
+
+				final Object result;
+
+				switch(val.getType()) {
+					case BOOLEAN: result = val.asBoolean(); break;
+					case INTEGER: result = val.asLong(); break;
+					case STRING: result = val.asString(); break;
+					case FLOAT: result = val.asDouble(); break;
+					default: result = val;
+				}
+
+				objectField.set(o, result);
+
+			} else {
+				final Object nested = fieldType.getConstructor().newInstance();
+				populateByReflection(val.asObject(), nested);
+				objectField.set(o, nested);
+			}
+		}
+	}
+
+	@Test
+	public void bindsSameAsReflection() throws Exception {
+
+		final ArrayList<RedditThing> things = readComments();
+		assertEquals(COMMENT_COUNT, things.size());
+
+		for(final RedditThing thing : things) {
+
+			assertEquals(RedditThing.Kind.COMMENT, thing.getKind());
+
+			final RedditComment bound = thing.asComment();
+			final RedditComment reflected = new RedditComment();
+			populateByReflection(thing.data, reflected);
+
+			assertNotNull(bound.body);
+			assertNotNull(bound.name);
+
+			for(final Field field : RedditComment.class.getFields()) {
+
+				if((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0) {
+					continue;
+				}
+
+				if(field.getType() == JsonValue.class) {
+					assertSame(field.getName(), field.get(reflected), field.get(bound));
+				} else {
+					assertEquals(field.getName(), field.get(reflected), field.get(bound));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compares binding every comment of a 500-comment page with the binder, against looking up the fields
+	 * by reflection for each comment, as populateObject() used to. Prints the results rather than asserting
+	 * on them, as timings vary between machines.
+	 */
+	@Test
+	public void bindingBenchmark() throws Exception {
+
+		final ArrayList<RedditThing> things = readComments();
+		final int iterations = 20;
+
+		for(int round = 0; round < 5; round++) {
+
+			final long reflectionStart = System.nanoTime();
+
+			for(int i = 0; i < iterations; i++) {
+				for(final RedditThing thing : things) {
+					populateByReflection(thing.data, new RedditComment());
+				}
+			}
+
+			final long reflectionNs = System.nanoTime() - reflectionStart;
+
+			final long binderStart = System.nanoTime();
+
+			for(int i = 0; i < iterations; i++) {
+				for(final RedditThing thing : things) {
+					thing.asComment();
+				}
+			}
+
+			final long binderNs = System.nanoTime() - binderStart;
+
+			final int bound = iterations * things.size();
+
+			System.out.println(String.format("Binding %d comments: binder %.0f ns/comment, reflection %.0f ns/comment",
+					things.size(), (double)binderNs / bound, (double)reflectionNs / bound));
+		}
+	}
+}
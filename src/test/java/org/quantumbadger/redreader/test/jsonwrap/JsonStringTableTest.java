@@ -0,0 +1,140 @@
+package org.quantumbadger.redreader.test.jsonwrap;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedArray;
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedObject;
+import org.quantumbadger.redreader.jsonwrap.JsonStringTable;
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JsonStringTableTest {
+
+	private static JsonValue parse(final String json, final JsonStringTable strings) throws Exception {
+		final JsonValue root = new JsonValue(new ByteArrayInputStream(json.getBytes("UTF-8")), null, strings);
+		root.buildInThisThread();
+		return root;
+	}
+
+	private static ArrayList<JsonBufferedObject> getComments(final JsonValue root) throws Exception {
+		final ArrayList<JsonBufferedObject> result = new ArrayList<JsonBufferedObject>();
+		addComments(root.asArray().get(1).asObject().getObject("data").getArray("children"), result);
+		return result;
+	}
+
+	private static void addComments(final JsonBufferedArray children, final ArrayList<JsonBufferedObject> result)
+			throws Exception {
+
+		for(final JsonValue child : children) {
+
+			final JsonBufferedObject data = child.asObject().getObject("data");
+			result.add(data);
+
+			final JsonValue replies = data.get("replies");
+
+			if(replies.getType() == JsonValue.Type.OBJECT) {
+				addComments(replies.asObject().getObject("data").getArray("children"), result);
+			}
+		}
+	}
+
+	@Test
+	public void sharesRepeatedShortValues() throws Exception {
+
+		final String json = ListingFixture.commentPage(1, 500);
+		final ArrayList<JsonBufferedObject> comments = getComments(parse(json, new JsonStringTable()));
+
+		final HashSet<String> authors = new HashSet<String>();
+		final IdentityHashMap<String, Boolean> authorInstances = new IdentityHashMap<String, Boolean>();
+		final IdentityHashMap<String, Boolean> subredditInstances = new IdentityHashMap<String, Boolean>();
+
+		for(final JsonBufferedObject comment : comments) {
+			authors.add(comment.getString("author"));
+			authorInstances.put(comment.getString("author"), true);
+			subredditInstances.put(comment.getString("subreddit"), true);
+		}
+
+		// The table is bounded, so a value may occasionally be created again, but not for most comments
+		assertTrue(authors.size() > 1);
+		assertTrue(authorInstances.size() < authors.size() * 2);
+		assertEquals(1, subredditInstances.size());
+	}
+
+	@Test
+	public void doesNotShareLongValues() throws Exception {
+
+		final String json = "[\"" + "abcd" + "\", \"abcd\", \"abcdef\", \"abcdef\"]";
+		final JsonBufferedArray values = parse(json, new JsonStringTable(4)).asArray();
+
+		assertSame(values.getString(0), values.getString(1));
+		assertNotSame(values.getString(2), values.getString(3));
+		assertEquals(values.getString(2), values.getString(3));
+	}
+
+	@Test
+	public void sameTreeWithAndWithoutTable() throws Exception {
+
+		final String json = ListingFixture.commentPage(2, 500);
+
+		assertEquals(parse(json, null).toString(), parse(json, new JsonStringTable()).toString());
+		assertEquals(parse(json, null).toString(), parse(json, new JsonStringTable(0)).toString());
+	}
+
+	@Test
+	public void collidingValuesAreDistinguished() throws Exception {
+
+		// "Aa" and "BB" have the same hash code
+		final JsonBufferedArray values = parse("[\"Aa\", \"BB\", \"Aa\", \"BB\"]", new JsonStringTable()).asArray();
+
+		assertEquals("Aa", values.getString(0));
+		assertEquals("BB", values.getString(1));
+		assertEquals("Aa", values.getString(2));
+		assertEquals("BB", values.getString(3));
+	}
+
+	/**
+	 * Prints the heap retained by the tree of a 10,000-comment thread, with and without the table. Not
+	 * asserted on, as it depends on the VM.
+	 */
+	@Test
+	public void retainedHeapComparison() throws Exception {
+
+		final String json = ListingFixture.commentPage(3, 10000);
+
+		parse(json, null);
+		parse(json, new JsonStringTable());
+
+		final long before = usedHeap();
+		final JsonValue withoutTable = parse(json, null);
+		final long withoutTableBytes = usedHeap() - before;
+
+		final long middle = usedHeap();
+		final JsonValue withTable = parse(json, new JsonStringTable());
+		final long withTableBytes = usedHeap() - middle;
+
+		assertEquals(withoutTable.getType(), withTable.getType());
+
+		System.out.println(String.format("Tree of 10000 comments: %d KB without the table, %d KB with it",
+				withoutTableBytes / 1024, withTableBytes / 1024));
+	}
+
+	private static long usedHeap() throws InterruptedException {
+
+		final Runtime runtime = Runtime.getRuntime();
+
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
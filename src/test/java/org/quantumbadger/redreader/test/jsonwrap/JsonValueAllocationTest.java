@@ -0,0 +1,212 @@
+package org.quantumbadger.redreader.test.jsonwrap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedObject;
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+import org.quantumbadger.redreader.reddit.things.RedditPost;
+import org.quantumbadger.redreader.reddit.things.RedditThing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class JsonValueAllocationTest {
+
+	private static final int POST_COUNT = 100;
+	private static final int ITERATIONS = 1000;
+
+	private ThreadMXBean threadBean;
+	private Method getThreadAllocatedBytes;
+
+	@Before
+	public void setUp() throws Exception {
+
+		threadBean = ManagementFactory.getThreadMXBean();
+
+		// Only some VMs can count the bytes allocated by a thread, through an extension of ThreadMXBean. It's
+		// looked up by name, so that the test is skipped rather than failing where it doesn't exist.
+		final Class<?> extension;
+
+		try {
+			extension = Class.forName("com.sun.management.ThreadMXBean");
+		} catch(ClassNotFoundException e) {
+			assumeTrue(false);
+			return;
+		}
+
+		assumeTrue(extension.isInstance(threadBean));
+		assumeTrue((Boolean)extension.getMethod("isThreadAllocatedMemorySupported").invoke(threadBean));
+
+		extension.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(threadBean, true);
+		getThreadAllocatedBytes = extension.getMethod("getThreadAllocatedBytes", long.class);
+	}
+
+	private long allocatedBytes() throws Exception {
+		return (Long)getThreadAllocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+	}
+
+	private static JsonValue parseListing() throws Exception {
+		final JsonValue root = new JsonValue(ListingFixture.postListing(1, POST_COUNT));
+		root.buildInThisThread();
+		return root;
+	}
+
+	private static ArrayList<JsonBufferedObject> getPosts(final JsonValue root) throws Exception {
+
+		final ArrayList<JsonBufferedObject> result = new ArrayList<JsonBufferedObject>(POST_COUNT);
+
+		for(final JsonValue child : root.asObject().getObject("data").getArray("children")) {
+			result.add(child.asObject().getObject("data"));
+		}
+
+		return result;
+	}
+
+	// The number, boolean and null values of every post
+	private static JsonValue[] getScalars(final ArrayList<JsonBufferedObject> posts) {
+
+		final ArrayList<JsonValue> result = new ArrayList<JsonValue>();
+
+		for(final JsonBufferedObject post : posts) {
+			for(final Map.Entry<String, JsonValue> property : post) {
+				switch(property.getValue().getType()) {
+					case INTEGER:
+					case FLOAT:
+					case BOOLEAN:
+						result.add(property.getValue());
+				}
+			}
+		}
+
+		return result.toArray(new JsonValue[result.size()]);
+	}
+
+	private static long readPrimitives(final JsonValue[] values) {
+
+		long result = 0;
+
+		for(final JsonValue value : values) {
+			switch(value.getType()) {
+				case INTEGER: result += value.getLongValue(); break;
+				case FLOAT: result += (long)value.getDoubleValue(); break;
+				case BOOLEAN: result += value.getBooleanValue() ? 1 : 0; break;
+			}
+		}
+
+		return result;
+	}
+
+	// The boxed values are kept, as they would be in a field, so that the VM can't avoid creating them
+	private static long readBoxed(final JsonValue[] values, final Object[] boxed) {
+
+		for(int i = 0; i < values.length; i++) {
+			switch(values[i].getType()) {
+				case INTEGER: boxed[i] = values[i].asLong(); break;
+				case FLOAT: boxed[i] = values[i].asDouble(); break;
+				case BOOLEAN: boxed[i] = values[i].asBoolean(); break;
+			}
+		}
+
+		return boxed[values.length - 1].hashCode();
+	}
+
+	/**
+	 * The primitive accessors should allocate much less than the boxed ones. Whether they allocate at all
+	 * depends on the VM, so the two are compared, rather than expecting no allocation.
+	 */
+	@Test
+	public void primitiveAccessorsAllocateLessThanBoxed() throws Exception {
+
+		final JsonValue[] values = getScalars(getPosts(parseListing()));
+		assertTrue(values.length > POST_COUNT * 10);
+
+		final Object[] boxed = new Object[values.length];
+		long total = 0;
+
+		// Warm up, so that the class loading and compilation aren't counted
+		for(int i = 0; i < ITERATIONS; i++) {
+			total += readPrimitives(values);
+			total += readBoxed(values, boxed);
+		}
+
+		final long primitiveStart = allocatedBytes();
+
+		for(int i = 0; i < ITERATIONS; i++) {
+			total += readPrimitives(values);
+		}
+
+		final long primitiveBytes = allocatedBytes() - primitiveStart;
+
+		final long boxedStart = allocatedBytes();
+
+		for(int i = 0; i < ITERATIONS; i++) {
+			total += readBoxed(values, boxed);
+		}
+
+		final long boxedBytes = allocatedBytes() - boxedStart;
+
+		final String message = String.format("Reading %d values %d times: %d bytes with primitive accessors, %d bytes boxed (%d)",
+				values.length, ITERATIONS, primitiveBytes, boxedBytes, total);
+
+		assertTrue(message, primitiveBytes * 10 < boxedBytes);
+	}
+
+	@Test
+	public void primitiveAccessorsMatchBoxed() throws Exception {
+
+		for(final JsonValue value : getScalars(getPosts(parseListing()))) {
+			switch(value.getType()) {
+				case INTEGER:
+					assertEquals(value.asLong().longValue(), value.getLongValue());
+					assertEquals(value.asDouble(), value.getDoubleValue(), 0);
+					break;
+				case FLOAT:
+					assertEquals(value.asDouble(), value.getDoubleValue(), 0);
+					assertEquals(value.asLong().longValue(), value.getLongValue());
+					break;
+				case BOOLEAN:
+					assertEquals(value.asBoolean(), value.getBooleanValue());
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Prints the bytes allocated to parse the listing, and to bind each post. Not asserted on, as it
+	 * depends on the VM.
+	 */
+	@Test
+	public void listingAllocations() throws Exception {
+
+		final String json = ListingFixture.postListing(1, POST_COUNT);
+
+		for(int round = 0; round < 5; round++) {
+
+			final long parseStart = allocatedBytes();
+			final JsonValue root = new JsonValue(json);
+			root.buildInThisThread();
+			final long parseBytes = allocatedBytes() - parseStart;
+
+			final ArrayList<JsonBufferedObject> posts = getPosts(root);
+
+			final long bindStart = allocatedBytes();
+
+			for(final JsonValue child : root.asObject().getObject("data").getArray("children")) {
+				final RedditPost post = child.asObject(RedditThing.class).asPost();
+				assertEquals(post.ups, post.score);
+			}
+
+			final long bindBytes = allocatedBytes() - bindStart;
+
+			System.out.println(String.format("Listing of %d posts: %d bytes to parse, %d bytes/post to bind",
+					posts.size(), parseBytes, bindBytes / posts.size()));
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package org.quantumbadger.redreader.test.jsonwrap;
+
+import java.util.Random;
+
+/**
+ * Generates JSON in the formats returned by reddit, for tests which parse or bind listings. The JSON
+ * includes properties which RedReader doesn't read, such as media_embed and preview. The same seed always
+ * gives the same JSON.
+ */
+public final class ListingFixture {
+
+	private static final String[] POST_WORDS = {"the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog",
+			"today", "found", "my", "cat", "picture", "this", "finally", "after", "years", "built"};
+
+	private static final String[] COMMENT_WORDS = {"the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog",
+			"reddit", "comment", "thread", "upvote", "source", "edit", "thanks", "gold", "kind", "stranger"};
+
+	private static final String[] SUBREDDITS = {"pics", "funny", "aww", "gaming", "worldnews", "askreddit"};
+
+	private static final String[] DOMAINS = {"i.imgur.com", "imgur.com", "youtube.com", "self.askreddit",
+			"bbc.co.uk", "gfycat.com"};
+
+	private static final String[] AUTHORS = {"alice", "bob", "carol", "dave", "erin", "frank", "grace",
+			"heidi", "ivan", "judy", "mallory", "oscar", "peggy", "trent", "walter"};
+
+	private final Random random;
+	private final String[] words;
+	private final StringBuilder sb;
+
+	private int commentsLeft;
+	private int nextId = 1;
+
+	private ListingFixture(final long seed, final String[] words, final int capacity) {
+		this.random = new Random(seed);
+		this.words = words;
+		this.sb = new StringBuilder(capacity);
+	}
+
+	/**
+	 * A page of posts, as returned for a subreddit listing.
+	 */
+	public static String postListing(final long seed, final int postCount) {
+		final ListingFixture fixture = new ListingFixture(seed, POST_WORDS, 256 * 1024);
+		fixture.appendPostListing(postCount);
+		return fixture.sb.toString();
+	}
+
+	/**
+	 * A comment page: an array containing a listing with the post, followed by a listing of the top-level
+	 * comments, each with its replies nested inside it.
+	 */
+	public static String commentPage(final long seed, final int commentCount) {
+		final ListingFixture fixture = new ListingFixture(seed, COMMENT_WORDS, 1024 * 1024);
+		fixture.commentsLeft = commentCount;
+		fixture.appendCommentPage();
+		return fixture.sb.toString();
+	}
+
+	private void appendPostListing(final int postCount) {
+
+		sb.append("{\"kind\": \"Listing\", \"data\": {\"modhash\": \"\", \"children\": [");
+
+		for(int i = 0; i < postCount; i++) {
+			if(i > 0) sb.append(", ");
+			appendPost(i);
+		}
+
+		sb.append("], \"after\": \"t3_p").append(postCount).append("\", \"before\": null}}");
+	}
+
+	private void appendPost(final int index) {
+
+		final String id = "p" + index;
+		final String subreddit = SUBREDDITS[random.nextInt(SUBREDDITS.length)];
+		final String domain = DOMAINS[random.nextInt(DOMAINS.length)];
+		final boolean isSelf = domain.startsWith("self.");
+		final int score = random.nextInt(20000);
+
+		sb.append("{\"kind\": \"t3\", \"data\": {");
+
+		appendField("domain", domain).append(", ");
+		sb.append("\"banned_by\": null, ");
+		sb.append("\"media_embed\": {");
+		if(domain.equals("youtube.com")) {
+			appendField("content", "&lt;iframe width=\"600\" height=\"338\" src=\"https://www.youtube.com/embed/"
+					+ id + "\"&gt;&lt;/iframe&gt;").append(", ");
+			sb.append("\"width\": 600, \"scrolling\": false, \"height\": 338");
+		}
+		sb.append("}, ");
+		appendField("subreddit", subreddit).append(", ");
+		appendField("selftext_html", isSelf ? "&lt;p&gt;" + sentence(30) + "&lt;/p&gt;" : "").append(", ");
+		appendField("selftext", isSelf ? sentence(30) : "").append(", ");
+		sb.append("\"likes\": null, ");
+		sb.append("\"secure_media\": null, ");
+		sb.append("\"link_flair_text\": null, ");
+		appendField("id", id).append(", ");
+		sb.append("\"gilded\": ").append(random.nextInt(10) == 0 ? 1 : 0).append(", ");
+		sb.append("\"secure_media_embed\": {}, ");
+		sb.append("\"clicked\": false, ");
+		sb.append("\"stickied\": ").append(index == 0).append(", ");
+		appendField("author", "user" + random.nextInt(1000)).append(", ");
+		sb.append("\"media\": null, ");
+		sb.append("\"score\": ").append(score).append(", ");
+		sb.append("\"approved_by\": null, ");
+		sb.append("\"over_18\": ").append(random.nextInt(20) == 0).append(", ");
+		sb.append("\"hidden\": false, ");
+		sb.append("\"preview\": {\"images\": [{\"source\": {");
+		appendField("url", "https://i.redditmedia.com/" + id + ".jpg").append(", ");
+		sb.append("\"width\": 1024, \"height\": 768}, \"resolutions\": [");
+		for(int width = 108; width <= 960; width *= 2) {
+			if(width > 108) sb.append(", ");
+			sb.append("{");
+			appendField("url", "https://i.redditmedia.com/" + id + "_" + width + ".jpg").append(", ");
+			sb.append("\"width\": ").append(width).append(", \"height\": ").append(width * 3 / 4).append("}");
+		}
+		sb.append("], \"variants\": {}, ");
+		appendField("id", "preview" + id);
+		sb.append("}]}, ");
+		appendField("thumbnail", isSelf ? "self" : "http://b.thumbs.redditmedia.com/" + id + ".jpg").append(", ");
+		appendField("subreddit_id", "t5_" + subreddit).append(", ");
+		sb.append("\"edited\": false, ");
+		sb.append("\"link_flair_css_class\": null, ");
+		sb.append("\"author_flair_css_class\": null, ");
+		sb.append("\"downs\": 0, ");
+		sb.append("\"mod_reports\": [], ");
+		sb.append("\"saved\": false, ");
+		sb.append("\"is_self\": ").append(isSelf).append(", ");
+		appendField("name", "t3_" + id).append(", ");
+		appendField("permalink", "/r/" + subreddit + "/comments/" + id + "/title/").append(", ");
+		sb.append("\"created\": ").append(1420070400 + random.nextInt(100000)).append(".0, ");
+		appendField("url", isSelf ? "https://www.reddit.com/r/" + subreddit + "/comments/" + id + "/"
+				: "http://" + domain + "/" + id).append(", ");
+		sb.append("\"author_flair_text\": null, ");
+		appendField("title", sentence(4 + random.nextInt(12))).append(", ");
+		sb.append("\"created_utc\": ").append(1420041600 + random.nextInt(100000)).append(".0, ");
+		sb.append("\"ups\": ").append(score).append(", ");
+		sb.append("\"upvote_ratio\": 0.").append(50 + random.nextInt(50)).append(", ");
+		sb.append("\"num_comments\": ").append(random.nextInt(5000)).append(", ");
+		sb.append("\"visited\": false, ");
+		sb.append("\"num_reports\": null, ");
+		sb.append("\"distinguished\": null, ");
+		sb.append("\"user_reports\": []");
+
+		sb.append("}}");
+	}
+
+	private void appendCommentPage() {
+
+		sb.append("[{\"kind\": \"Listing\", \"data\": {\"modhash\": \"\", \"children\": [{\"kind\": \"t3\", \"data\": {");
+		appendField("id", "abc123").append(", ");
+		appendField("name", "t3_abc123").append(", ");
+		appendField("title", sentence(8)).append(", ");
+		appendField("url", "http://i.imgur.com/abcdefg.jpg").append(", ");
+		appendField("author", AUTHORS[0]).append(", ");
+		appendField("domain", "i.imgur.com").append(", ");
+		appendField("subreddit", "pics").append(", ");
+		appendField("subreddit_id", "t5_2qh0u").append(", ");
+		sb.append("\"num_comments\": ").append(commentsLeft).append(", ");
+		sb.append("\"score\": 5123, \"ups\": 5123, \"downs\": 0, ");
+		sb.append("\"over_18\": false, \"hidden\": false, \"saved\": false, \"is_self\": false, ");
+		sb.append("\"clicked\": false, \"stickied\": false, \"edited\": false, \"likes\": null, ");
+		sb.append("\"created\": 1420070400.0, \"created_utc\": 1420041600.0, ");
+		appendField("selftext", "").append(", ");
+		appendField("permalink", "/r/pics/comments/abc123/title/").append(", ");
+		sb.append("\"link_flair_text\": null, \"author_flair_text\": null, ");
+		appendField("thumbnail", "http://b.thumbs.redditmedia.com/abcdefg.jpg");
+		sb.append("}}], \"after\": null, \"before\": null}}, ");
+
+		appendCommentListing("t3_abc123", 0);
+
+		sb.append(']');
+	}
+
+	private void appendCommentListing(final String parentName, final int depth) {
+
+		sb.append("{\"kind\": \"Listing\", \"data\": {\"modhash\": \"\", \"children\": [");
+
+		final int count = depth == 0 ? Integer.MAX_VALUE : 1 + random.nextInt(3);
+
+		for(int i = 0; i < count && commentsLeft > 0; i++) {
+			if(i > 0) sb.append(", ");
+			appendComment(parentName, depth);
+		}
+
+		sb.append("], \"after\": null, \"before\": null}}");
+	}
+
+	private void appendComment(final String parentName, final int depth) {
+
+		commentsLeft--;
+
+		final String id = "c" + Integer.toString(nextId++, 36);
+		final String body = sentence(5 + random.nextInt(40));
+		final int ups = random.nextInt(1000);
+
+		sb.append("{\"kind\": \"t1\", \"data\": {");
+
+		appendField("subreddit_id", "t5_2qh0u").append(", ");
+		sb.append("\"banned_by\": null, ");
+		appendField("link_id", "t3_abc123").append(", ");
+
+		switch(random.nextInt(3)) {
+			case 0: sb.append("\"likes\": null, "); break;
+			case 1: sb.append("\"likes\": true, "); break;
+			default: sb.append("\"likes\": false, "); break;
+		}
+
+		sb.append("\"user_reports\": [], ");
+		sb.append("\"saved\": false, ");
+		appendField("id", id).append(", ");
+		sb.append("\"gilded\": ").append(random.nextInt(20) == 0 ? 1 : 0).append(", ");
+		sb.append("\"archived\": false, ");
+		appendField("author", AUTHORS[random.nextInt(AUTHORS.length)]).append(", ");
+		appendField("parent_id", parentName).append(", ");
+		sb.append("\"score\": ").append(ups).append(", ");
+		sb.append("\"approved_by\": null, ");
+		sb.append("\"controversiality\": 0, ");
+		appendField("body", body).append(", ");
+
+		if(random.nextInt(10) == 0) {
+			sb.append("\"edited\": ").append(1420080000 + random.nextInt(100000)).append(".0, ");
+		} else {
+			sb.append("\"edited\": false, ");
+		}
+
+		if(random.nextInt(5) == 0) {
+			appendField("author_flair_text", "Flair " + random.nextInt(100)).append(", ");
+		} else {
+			sb.append("\"author_flair_text\": null, ");
+		}
+
+		sb.append("\"downs\": 0, ");
+		appendField("body_html", "&lt;div class=\"md\"&gt;&lt;p&gt;" + body + "&lt;/p&gt;&lt;/div&gt;").append(", ");
+		appendField("subreddit", "pics").append(", ");
+		sb.append("\"score_hidden\": false, ");
+		appendField("name", "t1_" + id).append(", ");
+		sb.append("\"created\": ").append(1420070400 + random.nextInt(100000)).append(".0, ");
+		sb.append("\"author_flair_css_class\": null, ");
+		sb.append("\"created_utc\": ").append(1420041600 + random.nextInt(100000)).append(".0, ");
+		sb.append("\"distinguished\": null, ");
+		sb.append("\"mod_reports\": [], ");
+		sb.append("\"num_reports\": null, ");
+		sb.append("\"ups\": ").append(ups).append(", ");
+		sb.append("\"replies\": ");
+
+		if(depth < 8 && commentsLeft > 0 && random.nextInt(3) == 0) {
+			appendCommentListing("t1_" + id, depth + 1);
+		} else {
+			sb.append("\"\"");
+		}
+
+		sb.append("}}");
+	}
+
+	private String sentence(final int wordCount) {
+
+		final StringBuilder result = new StringBuilder();
+
+		for(int i = 0; i < wordCount; i++) {
+			if(i > 0) result.append(' ');
+			result.append(words[random.nextInt(words.length)]);
+		}
+
+		return result.toString();
+	}
+
+	private StringBuilder appendField(final String name, final String value) {
+		sb.append('"').append(name).append("\": \"");
+		sb.append(value.replace("\\", "\\\\").replace("\"", "\\\""));
+		return sb.append('"');
+	}
+}
@@ -0,0 +1,206 @@
+package org.quantumbadger.redreader.test.reddit;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import org.junit.Test;
+import org.quantumbadger.redreader.jsonwrap.JsonBuffered;
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+import org.quantumbadger.redreader.reddit.RedditCommentListingParser;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+import org.quantumbadger.redreader.reddit.things.RedditMoreComments;
+import org.quantumbadger.redreader.reddit.things.RedditPost;
+import org.quantumbadger.redreader.test.jsonwrap.ListingFixture;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class RedditCommentListingParserTest {
+
+	private static final class Item {
+
+		private final Object thing;
+		private final Item parent;
+		private final int index;
+
+		private Item(final Object thing, final Item parent, final int index) {
+			this.thing = thing;
+			this.parent = parent;
+			this.index = index;
+		}
+	}
+
+	private static final class RecordingVisitor implements RedditCommentListingParser.Visitor<Item> {
+
+		private final ArrayList<Item> items = new ArrayList<Item>();
+
+		public void onPost(final RedditPost post) {
+			items.add(new Item(post, null, items.size()));
+		}
+
+		public Item onComment(final RedditComment comment, final Item parent) {
+			final Item item = new Item(comment, parent, items.size());
+			items.add(item);
+			return item;
+		}
+
+		public void onMoreComments(final RedditMoreComments moreComments, final Item parent) {
+			items.add(new Item(moreComments, parent, items.size()));
+		}
+	}
+
+	private static RecordingVisitor parseTree(final String json) throws Exception {
+
+		final JsonValue root = new JsonValue(json);
+		root.buildInThisThread();
+
+		final RecordingVisitor visitor = new RecordingVisitor();
+		RedditCommentListingParser.parse(root, visitor);
+		return visitor;
+	}
+
+	private static RecordingVisitor parseStream(final String json) throws Exception {
+
+		final JsonParser jp = new JsonFactory().createParser(json);
+
+		final RecordingVisitor visitor = new RecordingVisitor();
+		RedditCommentListingParser.parse(jp, visitor);
+		jp.close();
+		return visitor;
+	}
+
+	private static void assertSameItems(final RecordingVisitor expected, final RecordingVisitor actual) throws Exception {
+
+		assertEquals(expected.items.size(), actual.items.size());
+
+		for(int i = 0; i < expected.items.size(); i++) {
+
+			final Item expectedItem = expected.items.get(i);
+			final Item actualItem = actual.items.get(i);
+
+			assertEquals(expectedItem.thing.getClass(), actualItem.thing.getClass());
+
+			if(expectedItem.parent == null) {
+				assertNull(actualItem.parent);
+			} else {
+				assertNotNull(actualItem.parent);
+				assertEquals(expectedItem.parent.index, actualItem.parent.index);
+			}
+
+			for(final Field field : expectedItem.thing.getClass().getFields()) {
+
+				if((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0) {
+					continue;
+				}
+
+				// Comments read from a stream don't keep their replies
+				if(field.getName().equals("replies")) {
+					continue;
+				}
+
+				// Any other JSON values are compared by their contents
+				if(field.getType() == JsonValue.class || JsonBuffered.class.isAssignableFrom(field.getType())) {
+					assertEquals(field.getName(), String.valueOf(field.get(expectedItem.thing)),
+							String.valueOf(field.get(actualItem.thing)));
+					continue;
+				}
+
+				assertEquals(field.getName(), field.get(expectedItem.thing), field.get(actualItem.thing));
+			}
+		}
+	}
+
+	@Test
+	public void streamMatchesTree() throws Exception {
+
+		for(final int commentCount : new int[] {0, 1, 50, 500}) {
+
+			final String json = ListingFixture.commentPage(commentCount, commentCount);
+
+			final RecordingVisitor tree = parseTree(json);
+			assertEquals(commentCount + 1, tree.items.size());
+
+			assertSameItems(tree, parseStream(json));
+		}
+	}
+
+	@Test
+	public void streamMatchesTreeForLargeThread() throws Exception {
+		final String json = ListingFixture.commentPage(2, 10000);
+		assertSameItems(parseTree(json), parseStream(json));
+	}
+
+	@Test
+	public void streamAcceptsDataBeforeKind() throws Exception {
+
+		final String json = "[{\"kind\": \"Listing\", \"data\": {\"children\": [{\"data\": {\"name\": \"t3_a\", \"title\": \"T\"}, \"kind\": \"t3\"}]}},"
+				+ " {\"data\": {\"children\": [{\"data\": {\"name\": \"t1_b\", \"body\": \"B\", \"replies\": \"\"}, \"kind\": \"t1\"},"
+				+ " {\"kind\": \"more\", \"data\": {\"count\": 3, \"parent_id\": \"t3_a\", \"children\": [\"c\", \"d\"]}}]}, \"kind\": \"Listing\"}]";
+
+		final RecordingVisitor tree = parseTree(json);
+		assertEquals(3, tree.items.size());
+
+		assertSameItems(tree, parseStream(json));
+	}
+
+	/**
+	 * Prints the heap used while reading a large thread each way. Not asserted on, as it depends on the VM.
+	 */
+	@Test
+	public void retainedHeapComparison() throws Exception {
+
+		final String json = ListingFixture.commentPage(3, 10000);
+
+		parseTree(json);
+		parseStream(json);
+
+		final long treeBytes = measureRetained(new Parse() {
+			public Object run() throws Exception {
+				final JsonValue root = new JsonValue(json);
+				root.buildInThisThread();
+				final RecordingVisitor visitor = new RecordingVisitor();
+				RedditCommentListingParser.parse(root, visitor);
+				return new Object[] {root, visitor};
+			}
+		});
+
+		final long streamBytes = measureRetained(new Parse() {
+			public Object run() throws Exception {
+				return parseStream(json);
+			}
+		});
+
+		System.out.println(String.format("Reading 10000 comments: tree retains %d KB, stream retains %d KB",
+				treeBytes / 1024, streamBytes / 1024));
+	}
+
+	private interface Parse {
+		Object run() throws Exception;
+	}
+
+	private static long measureRetained(final Parse parse) throws Exception {
+
+		final long before = usedHeap();
+		final Object result = parse.run();
+		final long after = usedHeap();
+
+		assertNotNull(result);
+		return after - before;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+
+		final Runtime runtime = Runtime.getRuntime();
+
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}